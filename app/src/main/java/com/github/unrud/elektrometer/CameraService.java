@@ -28,6 +28,7 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
+import android.graphics.Color;
 import android.graphics.ImageFormat;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
@@ -40,8 +41,12 @@ import android.media.ImageReader;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Range;
 import android.util.Size;
@@ -55,17 +60,18 @@ import androidx.core.app.NotificationCompat;
 import androidx.preference.PreferenceManager;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.EventListener;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TimeZone;
 import java.util.WeakHashMap;
 
 public class CameraService extends Service {
@@ -76,74 +82,180 @@ public class CameraService extends Service {
     private static final String TAG = "elektrometer::CameraService";
     private static final String NOTIFICATION_CHANNEL_ID = TAG + "::NotificationChannel";
     private static final String WAKE_LOCK_ID = TAG + "::WakeLock";
+    private static final String CAMERA_THREAD_NAME = TAG + "::CameraThread";
+    private static final String CALIBRATION_THREAD_NAME = TAG + "::CalibrationThread";
+    public static final int CALIBRATION_DURATION = 120000; // millis
+    private static final int CALIBRATION_FRAME_CAPACITY = 3600;
     private static final int NOTIFICATION_ID = 100;
-    private static final int PREFERRED_CAMERA_IMAGE_RESOLUTION = 320 * 240 * 4;  // u and v plane have quarter resolution
+    private static final int MAX_EVENT_CLIENTS = 4;
+    private static final int FRAMES_PER_MARKER = 4;
+    private static final int DOWNSCALED_PREVIEW_RESOLUTION = 320 * 240;
+    private static final int PREVIEW_MATCH_COLOR = Color.RED;
     private static final int CAMERA_IMAGE_FORMAT = ImageFormat.YUV_420_888;
-    private static final Charset FILE_CHARSET = StandardCharsets.UTF_8;
+    private static final long MIN_CAMERA_RETRY_DELAY = 1000; // millis
+    private static final long MAX_CAMERA_RETRY_DELAY = 5 * 60 * 1000; // millis
+    private static final double[] FRAME_INTERVAL_BUCKETS = {0.01, 0.02, 0.035, 0.05, 0.07, 0.1, 0.2, 0.5, 1, 2, 5};
+    private static final double[] STAGE_TIME_BUCKETS = {0.0005, 0.001, 0.002, 0.005, 0.01, 0.02, 0.035, 0.05, 0.1,
+            0.2};
+    private static final double[] WINDOW_FILL_BUCKETS = {0, 1, 5, 10, 20, 30, 40, 50, 60, 70, 80, 90, 100};
     private final CameraBinder binder = new CameraBinder();
+    // Modified from the main thread and checked from the camera thread
     private final Collection<CameraImageListener> externalCameraImageListener =
-            Collections.newSetFromMap(new WeakHashMap<>());
-    private SettingsActivity.CameraSettings cameraSettings;
+            Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Served at /metrics and shown in the overlay, updated from the camera thread
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final MetricsRegistry.Counter framesMetric = metrics.counter("frames_total",
+            "Camera images that were processed");
+    private final MetricsRegistry.Counter droppedFramesMetric = metrics.counter("dropped_frames_total",
+            "Camera images that were skipped because processing didn't keep up");
+    private final MetricsRegistry.Histogram frameIntervalMetric = metrics.histogram(
+            "frame_interval_seconds", "Time between the sensor timestamps of processed images",
+            FRAME_INTERVAL_BUCKETS);
+    private final MetricsRegistry.Histogram detectionTimeMetric = metrics.histogram(
+            "detection_seconds", "Time to measure the window fill", STAGE_TIME_BUCKETS);
+    private final MetricsRegistry.Histogram previewTimeMetric = metrics.histogram(
+            "preview_seconds", "Time to create the preview image", STAGE_TIME_BUCKETS);
+    private final MetricsRegistry.Histogram processingTimeMetric = metrics.histogram(
+            "processing_seconds", "Time from an image becoming available until it was processed",
+            STAGE_TIME_BUCKETS);
+    private final MetricsRegistry.Histogram windowFillMetric = metrics.histogram(
+            "window_fill_percent", "Window fill of processed images", WINDOW_FILL_BUCKETS);
+    private final MetricsRegistry.Counter pulsesMetric = metrics.counter("pulses_total",
+            "Detected passes of the marker");
+    private final MetricsRegistry.Counter captureRequestsMetric = metrics.counter(
+            "capture_requests_total", "Repeating capture requests submitted to the camera");
+    private final MetricsRegistry.Counter logCompressionFailuresMetric = metrics.counter(
+            "log_compression_failures_total", "Failed compressions of closed log segments");
+    private final MetricsRegistry.Counter cameraRecoveriesMetric = metrics.counter(
+            "camera_recoveries_total", "Times the camera delivered images again after an error");
+    // Camera callbacks and image processing run on this thread
+    private HandlerThread cameraThread;
+    private Handler cameraHandler;
+    private CameraSettingsObserver cameraSettingsObserver;
+    private CameraSettings detectionSettings;
     private Size cameraImageSize = null;
     private CameraDevice cameraDevice = null;
     private ImageReader cameraImageReader = null;
-    private CameraCharacteristics activeCameraCharacteristics;
+    private boolean sensorTimestampRealtime;
     private CameraCaptureSession activeCameraCaptureSession;
     private CaptureRequest.Builder activeCameraCaptureRequestBuilder;
+    private Range<Integer> defaultFpsRange;
+    private Range<Integer>[] availableFpsRanges;
+    private Range<Integer> exposureCompensationRange;
+    private boolean flashAvailable;
+    // Values of the submitted repeating request
+    private int requestFlashMode, requestExposureCompensation;
+    private Range<Integer> requestFpsRange;
+    private int requestTargetFps;
+    private FrameRateController frameRateController;
+    // Recovery from camera errors, only accessed from the camera thread
+    private boolean cameraRestartPending, cameraRecovering;
+    private long cameraRetryDelay = MIN_CAMERA_RETRY_DELAY;
     private final CameraCaptureSession.StateCallback cameraCaptureSessionCallback =
             new CameraCaptureSession.StateCallback() {
                 @Override
                 public void onConfigured(@NonNull CameraCaptureSession session) {
+                    if (session.getDevice() != cameraDevice) {
+                        session.close();
+                        return;
+                    }
                     activeCameraCaptureSession = session;
                     updateCameraCaptureRequest();
                 }
 
                 @Override
                 public void onConfigureFailed(@NonNull CameraCaptureSession session) {
-                    fatal("camera configure failed");
+                    if (session.getDevice() == cameraDevice) {
+                        restartCamera("camera configure failed", null);
+                    }
                 }
             };
     private Notification notification;
     private PowerManager.WakeLock wakeLock;
     private boolean serviceRunning;
-    private FileOutputStream detectionLog;
+    // The detection log and the web server are replaced on the main thread, the camera thread appends to the
+    // detection log while holding the lock
+    private final Object detectionLogLock = new Object();
+    private DetectionLogWriter detectionLog;
+    private boolean detectionLogBinary, detectionLogCompress;
+    private int detectionLogRetention;
+    private WebServer webServer;
+    private int webServerPort;
     private long lastImageMonotonicTime;
-    private long triggerResetTimeRunningSinceMonotonicTime;
-    private boolean triggerArmed;
-    private boolean dumpRequested;
+    private final DetectionEngine detectionEngine = new DetectionEngine();
+    private final MarkerTracker markerTracker = new MarkerTracker();
+    private final EventBroadcaster eventBroadcaster = new EventBroadcaster(MAX_EVENT_CLIENTS);
+    private ParallelWindowScanner parallelWindowScanner;
+    private volatile boolean dumpRequested, rawDumpRequested;
+    private DumpWriter dumpWriter;
+    // Recording for the calibration, only accessed from the camera thread
+    private Calibrator calibrator;
+    private CalibrationListener calibrationListener;
+    private long calibrationEndMonotonicTime;
+    // Only accessed from the camera thread
+    private boolean recordingRequested;
+    private FrameRecorder frameRecorder;
+    private final PreviewImage.Pool previewImagePool = new PreviewImage.Pool(3);
+    private ByteBuffer previewBuffer;
+    private int[] previewPixels;
+    private boolean previewTriggered;
+    private long lastImageTimestamp;
     private final ImageReader.OnImageAvailableListener cameraImageListener = reader -> {
-        Image image = reader.acquireLatestImage();
-        if (image != null) {
-            handleCameraImage(image);
+        long imageAvailableNanoTime = System.nanoTime();
+        // Like acquireLatestImage, but counts the skipped images
+        Image image = reader.acquireNextImage();
+        if (image == null) {
+            return;
+        }
+        Image nextImage;
+        while ((nextImage = reader.acquireNextImage()) != null) {
             image.close();
+            image = nextImage;
+            droppedFramesMetric.increment();
         }
-        updateCameraCaptureRequest();
+        handleCameraImage(image, imageAvailableNanoTime);
+        image.close();
+        framesMetric.increment();
+        processingTimeMetric.observeNanos(System.nanoTime() - imageAvailableNanoTime);
     };
     private final CameraDevice.StateCallback cameraDeviceStateCallback = new CameraDevice.StateCallback() {
         @Override
         public void onOpened(@NonNull CameraDevice camera) {
+            if (cameraRestartPending || cameraDevice != null) {
+                camera.close();
+                return;
+            }
             cameraDevice = camera;
             try {
                 cameraImageReader = ImageReader.newInstance(
                         cameraImageSize.getWidth(), cameraImageSize.getHeight(),
                         CAMERA_IMAGE_FORMAT, 2);
-                cameraImageReader.setOnImageAvailableListener(cameraImageListener, null);
+                cameraImageReader.setOnImageAvailableListener(cameraImageListener, cameraHandler);
                 ArrayList<Surface> surfaces = new ArrayList<>();
                 surfaces.add(cameraImageReader.getSurface());
-                cameraDevice.createCaptureSession(surfaces, cameraCaptureSessionCallback, null);
-            } catch (CameraAccessException e) {
-                fatal("failed to open camera", e);
+                cameraDevice.createCaptureSession(surfaces, cameraCaptureSessionCallback, cameraHandler);
+            } catch (CameraAccessException | IllegalStateException e) {
+                restartCamera("failed to open camera", e);
             }
         }
 
         @Override
         public void onDisconnected(@NonNull CameraDevice camera) {
-            fatal("camera disconnected");
+            if (cameraDevice != null && camera != cameraDevice) {
+                camera.close();
+                return;
+            }
+            restartCamera("camera disconnected", null);
         }
 
         @Override
         public void onError(@NonNull CameraDevice camera, int error) {
-            fatal("camera error");
+            if (cameraDevice != null && camera != cameraDevice) {
+                camera.close();
+                return;
+            }
+            restartCamera("camera error " + error, null);
         }
     };
 
@@ -163,15 +275,22 @@ public class CameraService extends Service {
         return START_STICKY;
     }
 
+    /**
+     * Resubmits the repeating request when the settings or the target frame rate changed.
+     * Called on the camera thread.
+     */
     private void updateCameraCaptureRequest() {
         CameraCaptureSession session = activeCameraCaptureSession;
+        if (session == null) {
+            return; // called again when the session is configured
+        }
         CaptureRequest.Builder requestBuilder = activeCameraCaptureRequestBuilder;
         if (requestBuilder == null) {
             try {
                 requestBuilder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-            } catch (CameraAccessException e) {
-                fatal("failed to open camera", e);
-                throw new AssertionError("unreachable"); // fixes compiler warning
+            } catch (CameraAccessException | IllegalStateException e) {
+                restartCamera("failed to create capture request", e);
+                return;
             }
             requestBuilder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_MACRO);
             // CONTROL_AE_MODE_ON required for FLASH_MODE:
@@ -180,33 +299,70 @@ public class CameraService extends Service {
             requestBuilder.set(CaptureRequest.CONTROL_AE_LOCK, true);
             requestBuilder.set(CaptureRequest.CONTROL_AWB_MODE, CaptureRequest.CONTROL_AWB_MODE_DAYLIGHT);
             requestBuilder.addTarget(cameraImageReader.getSurface());
+            defaultFpsRange = requestBuilder.get(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE);
         }
         boolean flash = false;
         int exposureCompensation = 0;
-        if (cameraSettings.load()) {
+        Range<Integer> fpsRange = defaultFpsRange;
+        CameraSettings cameraSettings = cameraSettingsObserver.get();
+        if (cameraSettings != null) {
             flash = cameraSettings.cameraFlash;
             exposureCompensation = cameraSettings.cameraExposureCompensation;
+            if (cameraSettings.cameraAdaptiveFrameRate) {
+                fpsRange = selectFpsRange(frameRateController.getTargetFps());
+            }
         }
-        Range<Integer> exposureCompensationRange = activeCameraCharacteristics.get(
-                CameraCharacteristics.CONTROL_AE_COMPENSATION_RANGE);
+        requestTargetFps = frameRateController.getTargetFps();
         exposureCompensation = exposureCompensationRange.clamp(exposureCompensation);
-        if (!activeCameraCharacteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE)) {
-            flash = false;
-        }
-        int flash_mode = flash ? CaptureRequest.FLASH_MODE_TORCH : CaptureRequest.FLASH_MODE_OFF;
+        int flash_mode = flash && flashAvailable ? CaptureRequest.FLASH_MODE_TORCH : CaptureRequest.FLASH_MODE_OFF;
         if (activeCameraCaptureRequestBuilder != null &&
-                requestBuilder.get(CaptureRequest.FLASH_MODE) == flash_mode &&
-                requestBuilder.get(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION) == exposureCompensation) {
+                requestFlashMode == flash_mode &&
+                requestExposureCompensation == exposureCompensation &&
+                Objects.equals(requestFpsRange, fpsRange)) {
             return;
         }
         requestBuilder.set(CaptureRequest.FLASH_MODE, flash_mode);
         requestBuilder.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, exposureCompensation);
+        requestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange);
         try {
-            session.setRepeatingRequest(requestBuilder.build(), null, null);
-        } catch (CameraAccessException e) {
-            fatal("failed to open camera", e);
+            session.setRepeatingRequest(requestBuilder.build(), null, cameraHandler);
+        } catch (CameraAccessException | IllegalStateException e) {
+            restartCamera("failed to submit capture request", e);
+            return;
         }
         activeCameraCaptureRequestBuilder = requestBuilder;
+        requestFlashMode = flash_mode;
+        requestExposureCompensation = exposureCompensation;
+        requestFpsRange = fpsRange;
+        captureRequestsMetric.increment();
+        Log.i(TAG, "submitted repeating request #" + captureRequestsMetric.get() + " (fps range: " + fpsRange + ")");
+    }
+
+    /**
+     * @return the range with the lowest upper bound that reaches {@code targetFps}, preferring high lower bounds
+     * for a steady frame rate, or the fastest range
+     */
+    private Range<Integer> selectFpsRange(int targetFps) {
+        Range<Integer> best = null;
+        for (Range<Integer> range : availableFpsRanges) {
+            if (best == null) {
+                best = range;
+                continue;
+            }
+            boolean reaches = range.getUpper() >= targetFps, bestReaches = best.getUpper() >= targetFps;
+            if (reaches != bestReaches) {
+                if (reaches) {
+                    best = range;
+                }
+            } else if (!range.getUpper().equals(best.getUpper())) {
+                if (reaches == range.getUpper() < best.getUpper()) {
+                    best = range;
+                }
+            } else if (range.getLower() > best.getLower()) {
+                best = range;
+            }
+        }
+        return best;
     }
 
     @SuppressLint("WakelockTimeout")
@@ -218,21 +374,140 @@ public class CameraService extends Service {
         serviceRunning = true;
         startForeground(NOTIFICATION_ID, notification);
         wakeLock.acquire();
-        File detectionLogFile = new File(Environment.getExternalStorageDirectory(), "ElektroMeter.log");
+        updateServiceSettings();
+        cameraHandler.post(this::startCamera);
+    }
+
+    /**
+     * Applies the settings of the detection log and the web server when the service starts and after the
+     * settings changed. Called on the main thread.
+     */
+    private void updateServiceSettings() {
+        if (!serviceRunning) {
+            return;
+        }
+        CameraSettings cameraSettings = cameraSettingsObserver.get();
+        if (cameraSettings == null) {
+            // Keep the current configuration until the settings are valid again
+            if (detectionLog == null) {
+                openDetectionLog(false, false, 0);
+            }
+            return;
+        }
+        if (detectionLog == null || cameraSettings.logBinary != detectionLogBinary ||
+                cameraSettings.logCompress != detectionLogCompress ||
+                cameraSettings.logRetention != detectionLogRetention) {
+            openDetectionLog(cameraSettings.logBinary, cameraSettings.logCompress, cameraSettings.logRetention);
+        }
+        detectionLog.setSyncPolicy(cameraSettings.logSyncInterval * 1000L, cameraSettings.logSyncCount);
+        updateWebServer(cameraSettings.webServer, cameraSettings.webServerPort);
+    }
+
+    /**
+     * Replaces the detection log writer, the previous writer syncs its detections while closing.
+     * Called on the main thread.
+     */
+    private void openDetectionLog(boolean binary, boolean compress, int retention) {
+        detectionLogBinary = binary;
+        detectionLogCompress = compress;
+        detectionLogRetention = retention;
+        DetectionLogWriter previousDetectionLog = detectionLog;
+        DetectionLogWriter newDetectionLog = new DetectionLogWriter(() -> {
+            ArrayList<PulseLog> pulseLogs = new ArrayList<>();
+            try {
+                pulseLogs.add(new SegmentedPulseLog(getDetectionLogFile(), TimeZone.getDefault(), compress,
+                        retention, (segment, e) -> {
+                            Log.w(TAG, "failed to compress detection log segment " + segment, e);
+                            logCompressionFailuresMetric.increment();
+                        }));
+                // Rebuilt from the text log when missing, while opening. The rebuild only reads the pulses
+                // that reached the file, not those still buffered by the text log. The writer appends its
+                // journal after the last pulse of each log, which covers the pulses the rebuild missed.
+                pulseLogs.add(new PulseRollups(getDetectionLogFile(), TimeZone.getDefault()));
+                if (binary) {
+                    pulseLogs.add(new BinaryPulseLog(new File(Environment.getExternalStorageDirectory(),
+                            "ElektroMeter.bin")));
+                }
+            } catch (IOException e) {
+                for (PulseLog pulseLog : pulseLogs) {
+                    try {
+                        pulseLog.close();
+                    } catch (IOException e2) {
+                        Log.w(TAG, "failed to close detection log file", e2);
+                    }
+                }
+                throw e;
+            }
+            return pulseLogs;
+        }, e -> Log.e(TAG, "failed to write detection log file, retrying", e), metrics);
+        synchronized (detectionLogLock) {
+            detectionLog = newDetectionLog;
+        }
+        if (previousDetectionLog != null) {
+            previousDetectionLog.close();
+        }
+    }
+
+    private static File getDetectionLogFile() {
+        return new File(Environment.getExternalStorageDirectory(), "ElektroMeter.log");
+    }
+
+    /**
+     * Starts, stops or restarts the web server when the settings changed.
+     * A failure to start is reported once and retried when the settings change. Called on the main thread.
+     */
+    private void updateWebServer(boolean enabled, int enabledPort) {
+        int port = enabled ? enabledPort : 0;
+        if (port == webServerPort) {
+            return;
+        }
+        closeWebServer();
+        webServerPort = port;
+        if (port == 0) {
+            return;
+        }
         try {
-            detectionLog = new FileOutputStream(detectionLogFile, true);
-        } catch (FileNotFoundException e) {
-            fatal("failed to open detection log file", e);
+            webServer = new WebServer(this, port, getDetectionLogFile(), eventBroadcaster);
+            webServer.addHandler("/metrics", metrics);
+            Log.i(TAG, "web server listening on port " + port);
+        } catch (IOException e) {
+            Log.w(TAG, "failed to start web server", e);
+            mainHandler.post(() -> Toast.makeText(this, "Failed to start web server on port " + port,
+                    Toast.LENGTH_LONG).show());
         }
-        startCamera();
     }
 
-    private void handleCameraImage(@NonNull Image image) {
+    private void closeWebServer() {
+        if (webServer != null) {
+            try {
+                webServer.close();
+            } catch (IOException e) {
+                Log.w(TAG, "failed to close web server", e);
+            }
+            webServer = null;
+        }
+    }
+
+    /**
+     * @param imageAvailableNanoTime {@link System#nanoTime()} when the image became available
+     */
+    private void handleCameraImage(@NonNull Image image, long imageAvailableNanoTime) {
         if (image.getFormat() != ImageFormat.YUV_420_888) {
-            fatal("unsupported image format");
+            restartCamera("unsupported image format", null);
+            return;
+        }
+        if (cameraRecovering) {
+            cameraRecovering = false;
+            cameraRecoveriesMetric.increment();
+            cameraRetryDelay = MIN_CAMERA_RETRY_DELAY;
+            Log.i(TAG, "camera recovered (" + cameraRecoveriesMetric.get() + " recoveries)");
+        }
+        if (lastImageTimestamp != 0 && image.getTimestamp() > lastImageTimestamp) {
+            frameIntervalMetric.observeNanos(image.getTimestamp() - lastImageTimestamp);
         }
+        lastImageTimestamp = image.getTimestamp();
         long monotonicTime = monotonicTimeMillis();
-        long wallClockTime = System.currentTimeMillis();
+        long sensorTime = image.getTimestamp() / 1000000;
         Image.Plane yPlane = image.getPlanes()[0];
         ByteBuffer yBuffer = yPlane.getBuffer();
         Image.Plane uPlane = image.getPlanes()[1];
@@ -240,164 +515,315 @@ public class CameraService extends Service {
         Image.Plane vPlane = image.getPlanes()[2];
         ByteBuffer vBuffer = vPlane.getBuffer();
 
-        if (dumpRequested) {
-            dumpRequested = false;
-            Bitmap dump = Bitmap.createBitmap(image.getWidth(), image.getHeight(), Bitmap.Config.ARGB_8888);
-            Bitmap dumpColor = Bitmap.createBitmap(image.getWidth(), image.getHeight(), Bitmap.Config.ARGB_8888);
-            for (int y = 0; y < image.getHeight(); y++) {
-                for (int x = 0; x < image.getWidth(); x++) {
-                    int pixelY = yBuffer.get(y * yPlane.getRowStride() + x * yPlane.getPixelStride()) & 0xff;
-                    int pixelU = uBuffer.get((y / 2) * uPlane.getRowStride() + (x / 2) * uPlane.getPixelStride()) & 0xff;
-                    int pixelV = vBuffer.get((y / 2) * vPlane.getRowStride() + (x / 2) * vPlane.getPixelStride()) & 0xff;
-                    dump.setPixel(x, y, 255 << 24 | pixelV << 16 | pixelY << 8 | pixelU);
-                    // Convert from JPEG YUV to RGB color space using 16.16 fixed point math
-                    int pixelY1 = 65536 * pixelY;
-                    int pixelR = Math.max(0, Math.min(255, pixelY1 + 91881 * pixelV - 11760828 >> 16));
-                    int pixelG = Math.max(0, Math.min(255, pixelY1 - 22553 * pixelU - 46802 * pixelV + 8877429 >> 16));
-                    int pixelB = Math.max(0, Math.min(255, pixelY1 + 116130 * pixelU - 14864613 >> 16));
-                    dumpColor.setPixel(x, y, 255 << 24 | pixelR << 16 | pixelG << 8 | pixelB);
-                }
-            }
-            yBuffer.rewind();
-            uBuffer.rewind();
-            vBuffer.rewind();
-            File dumpFile = new File(Environment.getExternalStorageDirectory(), "ElektroMeter.dump.png");
-            File dumpColorFile = new File(Environment.getExternalStorageDirectory(), "ElektroMeter.dump.color.png");
-            File dumpInfoFile = new File(Environment.getExternalStorageDirectory(), "ElektroMeter.dump.txt");
-            try (FileOutputStream outputStream = new FileOutputStream(dumpFile);
-                 FileOutputStream colorOutputStream = new FileOutputStream(dumpColorFile);
-                 FileOutputStream infoOutputStream = new FileOutputStream(dumpInfoFile)) {
-                if (!dump.compress(Bitmap.CompressFormat.PNG, 0, outputStream)
-                        || !dumpColor.compress(Bitmap.CompressFormat.PNG, 0, colorOutputStream)) {
-                    fatal("failed to compress image");
-                }
-                infoOutputStream.write(("Channel Mapping:\n" +
-                        "* R: Red Projection (V)\n" +
-                        "* G: Luma (Y)\n" +
-                        "* B: Blue Projection (U)\n").getBytes());
-            } catch (IOException e) {
-                fatal("failed to write dump file", e);
+        if (dumpRequested || rawDumpRequested) {
+            if (dumpWriter.dump(dumpRequested, rawDumpRequested, sensorTime, image.getWidth(), image.getHeight(),
+                    yBuffer, yPlane.getRowStride(), yPlane.getPixelStride(),
+                    uBuffer, uPlane.getRowStride(), uPlane.getPixelStride(),
+                    vBuffer, vPlane.getRowStride(), vPlane.getPixelStride())) {
+                dumpRequested = false;
+                rawDumpRequested = false;
             }
-            Toast.makeText(this, "Dumped to " + dumpFile.getPath(), Toast.LENGTH_LONG).show();
         }
 
-        if (!cameraSettings.load()) {
+        CameraSettings cameraSettings = cameraSettingsObserver.get();
+        if (cameraSettings == null) {
             Log.w(TAG, "invalid settings");
-            for (CameraImageListener listener : externalCameraImageListener) {
-                listener.onCameraImage(null, 0, false, 0);
-            }
+            notifyCameraImageListeners(null, 0, false, 0, 0);
             return;
         }
         float fps = 1000 / (float) (monotonicTime - lastImageMonotonicTime);
         lastImageMonotonicTime = monotonicTime;
-        int xStart, xEnd, yStart, yEnd;
-        if (cameraSettings.cameraRotation % 180 == 0) {
-            xStart = 0;
-            xEnd = image.getWidth();
-            if (cameraSettings.cameraRotation == 0) {
-                yStart = image.getHeight() * cameraSettings.windowOffset / 100;
-                yEnd = yStart + image.getHeight() * cameraSettings.windowHeight / 100;
-            } else {
-                yEnd = image.getHeight() * (100 - cameraSettings.windowOffset) / 100;
-                yStart = yEnd - image.getHeight() * cameraSettings.windowHeight / 100;
+        if (cameraSettings != detectionSettings || image.getWidth() != detectionEngine.getImageWidth() ||
+                image.getHeight() != detectionEngine.getImageHeight()) {
+            // Precompute the window bounds and thresholds only when something changed
+            detectionEngine.configure(image.getWidth(), image.getHeight(), cameraSettings.cameraRotation,
+                    cameraSettings.windowHeight, cameraSettings.windowOffset,
+                    cameraSettings.colorBlueProjection, cameraSettings.colorRedProjection,
+                    cameraSettings.colorDistanceThreshold, cameraSettings.colorLumaThreshold,
+                    cameraSettings.detectionParallel);
+            detectionEngine.configureColorRegions(cameraSettings.colorRegions);
+            detectionEngine.configureTrigger(cameraSettings.triggerFillThreshold,
+                    cameraSettings.triggerFillResetThreshold, cameraSettings.triggerResetTime,
+                    cameraSettings.triggerInterpolation);
+            markerTracker.configure(cameraSettings.triggerFillThreshold, cameraSettings.triggerFillResetThreshold,
+                    cameraSettings.triggerResetTime);
+            detectionSettings = cameraSettings;
+        }
+        long detectionStartNanoTime = System.nanoTime();
+        int windowFill;
+        if (cameraSettings.detectionParallel) {
+            if (parallelWindowScanner == null) {
+                parallelWindowScanner = new ParallelWindowScanner(detectionEngine,
+                        Runtime.getRuntime().availableProcessors());
             }
+            windowFill = parallelWindowScanner.measureWindowFill(
+                    yBuffer, yPlane.getRowStride(), yPlane.getPixelStride(),
+                    uBuffer, uPlane.getRowStride(), uPlane.getPixelStride(),
+                    vBuffer, vPlane.getRowStride(), vPlane.getPixelStride());
         } else {
-            yStart = 0;
-            yEnd = image.getHeight();
-            if (cameraSettings.cameraRotation == 90) {
-                xStart = image.getWidth() * cameraSettings.windowOffset / 100;
-                xEnd = xStart + image.getWidth() * cameraSettings.windowHeight / 100;
+            if (parallelWindowScanner != null) {
+                parallelWindowScanner.close();
+                parallelWindowScanner = null;
+            }
+            windowFill = detectionEngine.measureWindowFill(
+                    yBuffer, yPlane.getRowStride(), yPlane.getPixelStride(),
+                    uBuffer, uPlane.getRowStride(), uPlane.getPixelStride(),
+                    vBuffer, vPlane.getRowStride(), vPlane.getPixelStride());
+        }
+        detectionTimeMetric.observeNanos(System.nanoTime() - detectionStartNanoTime);
+        windowFillMetric.observe(windowFill);
+        if (calibrator != null) {
+            calibrator.addFrame(detectionEngine.getWindowStartX(), detectionEngine.getWindowEndX(),
+                    detectionEngine.getWindowStartY(), detectionEngine.getWindowEndY(),
+                    yBuffer, yPlane.getRowStride(), yPlane.getPixelStride(),
+                    uBuffer, uPlane.getRowStride(), uPlane.getPixelStride(),
+                    vBuffer, vPlane.getRowStride(), vPlane.getPixelStride());
+            if (monotonicTime >= calibrationEndMonotonicTime) {
+                finishCalibration();
+            }
+        }
+        if (recordingRequested && frameRecorder == null) {
+            startRecording(image.getWidth(), image.getHeight());
+        }
+        if (frameRecorder != null) {
+            if (image.getWidth() != frameRecorder.getImageWidth() ||
+                    image.getHeight() != frameRecorder.getImageHeight()) {
+                stopRecording("Recording stopped, the image size changed");
             } else {
-                xEnd = image.getWidth() * (100 - cameraSettings.windowOffset) / 100;
-                xStart = xEnd - image.getWidth() * cameraSettings.windowHeight / 100;
+                try {
+                    frameRecorder.addFrame(sensorTime,
+                            yBuffer, yPlane.getRowStride(), yPlane.getPixelStride(),
+                            uBuffer, uPlane.getRowStride(), uPlane.getPixelStride(),
+                            vBuffer, vPlane.getRowStride(), vPlane.getPixelStride());
+                } catch (IOException e) {
+                    Log.w(TAG, "failed to write frame recording", e);
+                    stopRecording("Recording stopped, failed to write " + getFrameRecordingFile().getPath());
+                }
             }
         }
+        boolean triggered;
+        long triggerTime;
+        if (cameraSettings.triggerTracking) {
+            triggered = markerTracker.update(sensorTime, windowFill, detectionEngine.getMarkerPosition());
+            triggerTime = markerTracker.getTriggerTime();
+        } else {
+            triggered = detectionEngine.updateTrigger(windowFill, sensorTime);
+            triggerTime = detectionEngine.getTriggerTime();
+        }
+        if (cameraSettings.cameraAdaptiveFrameRate) {
+            frameRateController.update(sensorTime, detectionEngine.isMarkerInWindow(windowFill), triggered);
+        } else {
+            // Start over at the maximal frame rate when enabled
+            frameRateController.reset();
+        }
+        if (frameRateController.getTargetFps() != requestTargetFps) {
+            updateCameraCaptureRequest();
+        }
+        if (triggered) {
+            pulsesMetric.increment();
+            long wallClockTime = sensorTimeToWallClockTime(triggerTime);
+            synchronized (detectionLogLock) {
+                detectionLog.append(wallClockTime);
+            }
+            eventBroadcaster.publish(EventBroadcaster.PULSE, String.format(Locale.US, "{\"time\":%d.%03d}",
+                    Math.floorDiv(wallClockTime, 1000), Math.floorMod(wallClockTime, 1000)));
+        }
+        if (eventBroadcaster.hasClients(EventBroadcaster.FRAME)) {
+            int logRecoveries;
+            synchronized (detectionLogLock) {
+                logRecoveries = detectionLog.getRecoveryCount();
+            }
+            String frameEvent = String.format(Locale.US,
+                    "{\"fill\":%d,\"triggered\":%b,\"fps\":%.1f,\"captureRequests\":%d" +
+                            ",\"cameraRecoveries\":%d,\"logRecoveries\":%d",
+                    windowFill, triggered, fps, captureRequestsMetric.get(),
+                    cameraRecoveriesMetric.get(), logRecoveries);
+            if (cameraSettings.triggerTracking) {
+                frameEvent += String.format(Locale.US, ",\"position\":%s,\"direction\":%d,\"progress\":%s",
+                        jsonNumber(detectionEngine.getMarkerPosition()), markerTracker.getDirection(),
+                        jsonNumber(markerTracker.getProgress(sensorTime)));
+            }
+            eventBroadcaster.publish(EventBroadcaster.FRAME, frameEvent + "}");
+        }
 
-        xStart = Math.max(0, xStart);
-        xEnd = Math.min(image.getWidth(), xEnd);
-        yStart = Math.max(0, yStart);
-        yEnd = Math.min(image.getHeight(), yEnd);
-        int windowResolution = (xEnd - xStart) * (yEnd - yStart);
-        int windowFillCount = 0;
-
-        int distanceThreshold = cameraSettings.colorDistanceThreshold * 255 / 100;
-        int distanceThresholdSquared = distanceThreshold * distanceThreshold;
-        int yThreshold = cameraSettings.colorLumaThreshold * 255 / 100;
-        int searchU = cameraSettings.colorBlueProjection * 255 / 100;
-        int searchV = cameraSettings.colorRedProjection * 255 / 100;
-        // Skip lines and columns in detection window when resolution is multiple of preferred resolution
-        int imageResolution = image.getWidth() * image.getHeight();
-        int lineAndColumnFeed = Math.max(1, (int) Math.sqrt(
-                (float) imageResolution / (float) PREFERRED_CAMERA_IMAGE_RESOLUTION));
-        lineAndColumnFeed *= 2;  // u and v plane have quarter resolution
-        for (int y = yStart; y < yEnd; y += lineAndColumnFeed) {
-            for (int x = xStart; x < xEnd; x += lineAndColumnFeed) {
-                int pixelY = yBuffer.get(y * yPlane.getRowStride() + x * yPlane.getPixelStride()) & 0xff;
-                if (pixelY < yThreshold) {
-                    continue;
+        previewTriggered |= triggered;
+        if (!externalCameraImageListener.isEmpty()) {
+            long previewStartNanoTime = System.nanoTime();
+            PreviewImage preview;
+            int windowWidth = detectionEngine.getWindowEndX() - detectionEngine.getWindowStartX();
+            int windowHeight = detectionEngine.getWindowEndY() - detectionEngine.getWindowStartY();
+            if (cameraSettings.previewMode.equals(CameraSettings.PREVIEW_MODE_WINDOW)
+                    && windowWidth > 0 && windowHeight > 0) {
+                preview = previewImagePool.obtain(windowWidth, windowHeight, Bitmap.Config.ARGB_8888);
+                if (preview != null) {
+                    if (previewPixels == null || previewPixels.length != windowWidth * windowHeight) {
+                        previewPixels = new int[windowWidth * windowHeight];
+                    }
+                    detectionEngine.renderWindow(
+                            yBuffer, yPlane.getRowStride(), yPlane.getPixelStride(),
+                            uBuffer, uPlane.getRowStride(), uPlane.getPixelStride(),
+                            vBuffer, vPlane.getRowStride(), vPlane.getPixelStride(),
+                            previewPixels, PREVIEW_MATCH_COLOR);
+                    preview.getBitmap().setPixels(previewPixels, 0, windowWidth, 0, 0, windowWidth, windowHeight);
+                    preview.setSource(image.getWidth(), image.getHeight(), true);
+                }
+            } else {
+                int feed = 1;
+                if (cameraSettings.previewMode.equals(CameraSettings.PREVIEW_MODE_DOWNSCALED)) {
+                    feed = Math.max(1, (int) Math.ceil(Math.sqrt(
+                            (double) image.getWidth() * image.getHeight() / DOWNSCALED_PREVIEW_RESOLUTION)));
                 }
-                int pixelU = uBuffer.get((y / 2) * uPlane.getRowStride() + (x / 2) * uPlane.getPixelStride()) & 0xff;
-                int pixelV = vBuffer.get((y / 2) * vPlane.getRowStride() + (x / 2) * vPlane.getPixelStride()) & 0xff;
-                int diffU = searchU - pixelU;
-                int diffV = searchV - pixelV;
-                int distanceSquared = diffU * diffU + diffV * diffV;
-                if (distanceSquared <= distanceThresholdSquared) {
-                    windowFillCount += lineAndColumnFeed * lineAndColumnFeed;
+                preview = previewImagePool.obtain(image.getWidth() / feed, image.getHeight() / feed,
+                        Bitmap.Config.ALPHA_8);
+                if (preview != null) {
+                    copyGrayscale(preview.getBitmap(), yBuffer, yPlane.getRowStride(), yPlane.getPixelStride(), feed);
+                    preview.setSource(image.getWidth(), image.getHeight(), false);
                 }
             }
+            if (preview == null) {
+                // The UI doesn't keep up, skip the frame
+                return;
+            }
+            previewTimeMetric.observeNanos(System.nanoTime() - previewStartNanoTime);
+            float latency = (System.nanoTime() - imageAvailableNanoTime) / 1000000f;
+            notifyCameraImageListeners(preview, windowFill, previewTriggered, fps, latency);
+            previewTriggered = false;
         }
-        int windowFill = 0;
-        if (windowResolution > 0) {
-            windowFill = 100 * windowFillCount / windowResolution;
+    }
+
+    /**
+     * Records the detection window of the current settings together with the settings.
+     */
+    private void startRecording(int imageWidth, int imageHeight) {
+        Map<String, Object> settings = new HashMap<>(
+                PreferenceManager.getDefaultSharedPreferences(this).getAll());
+        File file = getFrameRecordingFile();
+        try {
+            frameRecorder = new FrameRecorder(file, imageWidth, imageHeight,
+                    detectionEngine.getWindowStartX(), detectionEngine.getWindowEndX(),
+                    detectionEngine.getWindowStartY(), detectionEngine.getWindowEndY(),
+                    settings, sensorTimeToWallClockTime(0));
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(TAG, "failed to start frame recording", e);
+            recordingRequested = false;
+            mainHandler.post(() -> Toast.makeText(this, "Failed to record to " + file.getPath(),
+                    Toast.LENGTH_LONG).show());
+            return;
         }
-        // Arm trigger when windowFill falls below triggerFillResetThreshold and
-        // at least triggerResetTime has passed since it was at or above triggerFillResetThreshold
-        if (windowFill >= Math.min(cameraSettings.triggerFillThreshold,
-                cameraSettings.triggerFillResetThreshold)) {
-            triggerResetTimeRunningSinceMonotonicTime = monotonicTime;
-        } else if (monotonicTime - triggerResetTimeRunningSinceMonotonicTime > cameraSettings.triggerResetTime) {
-            triggerArmed = true;
+        mainHandler.post(() -> Toast.makeText(this, "Recording to " + file.getPath(),
+                Toast.LENGTH_LONG).show());
+    }
+
+    private void stopRecording(@NonNull String message) {
+        recordingRequested = false;
+        if (frameRecorder == null) {
+            return;
         }
-        boolean triggered = triggerArmed && windowFill >= cameraSettings.triggerFillThreshold;
-        if (triggered) {
-            triggerArmed = false;
+        try {
+            frameRecorder.close();
+        } catch (IOException e) {
+            Log.w(TAG, "failed to close frame recording", e);
+        }
+        frameRecorder = null;
+        mainHandler.post(() -> Toast.makeText(this, message, Toast.LENGTH_LONG).show());
+    }
+
+    private static File getFrameRecordingFile() {
+        return new File(Environment.getExternalStorageDirectory(), "ElektroMeter.frames");
+    }
+
+    /**
+     * Clusters the recording on a background thread, detection continues meanwhile.
+     */
+    private void finishCalibration() {
+        Calibrator recording = calibrator;
+        CalibrationListener listener = calibrationListener;
+        calibrator = null;
+        calibrationListener = null;
+        Log.i(TAG, "calibrating with " + recording.getFrameCount() + " frames");
+        Thread thread = new Thread(() -> {
             try {
-                // write unix time stamp
-                detectionLog.write(String.format(Locale.US, "%d\n", wallClockTime / 1000)
-                        .getBytes(FILE_CHARSET));
-                detectionLog.flush();
-                detectionLog.getFD().sync();
-            } catch (IOException e) {
-                fatal("failed to write detection log file", e);
+                Calibrator.Result result = recording.compute();
+                mainHandler.post(() -> listener.onCalibrated(result));
+            } catch (Calibrator.CalibrationException e) {
+                Log.w(TAG, "calibration failed", e);
+                mainHandler.post(() -> listener.onCalibrationFailed(e.getMessage()));
             }
+        }, CALIBRATION_THREAD_NAME);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * @return the number with three decimal places or null for NaN
+     */
+    private static String jsonNumber(float value) {
+        return Float.isNaN(value) ? "null" : String.format(Locale.US, "%.3f", value);
+    }
+
+    /**
+     * Copies every {@code feed}-th sample of every {@code feed}-th row of the Y plane into the bitmap.
+     */
+    private void copyGrayscale(Bitmap grayscale, ByteBuffer yBuffer, int yRowStride, int yPixelStride, int feed) {
+        int width = grayscale.getWidth(), height = grayscale.getHeight();
+        if (feed == 1 && yPixelStride == 1 && yRowStride == width) {
+            grayscale.copyPixelsFromBuffer(yBuffer);
+            yBuffer.rewind();
+            return;
         }
+        int size = width * height;
+        if (previewBuffer == null || previewBuffer.capacity() != size) {
+            previewBuffer = ByteBuffer.allocate(size);
+        }
+        byte[] previewArray = previewBuffer.array();
+        if (feed == 1 && yPixelStride == 1) {
+            for (int y = 0; y < height; y++) {
+                yBuffer.position(y * yRowStride);
+                yBuffer.get(previewArray, y * width, width);
+            }
+        } else {
+            int i = 0;
+            for (int y = 0; y < height; y++) {
+                int yRowOffset = y * feed * yRowStride;
+                for (int x = 0; x < width; x++) {
+                    previewArray[i++] = yBuffer.get(yRowOffset + x * feed * yPixelStride);
+                }
+            }
+        }
+        yBuffer.rewind();
+        previewBuffer.rewind();
+        grayscale.copyPixelsFromBuffer(previewBuffer);
+    }
 
-        if (externalCameraImageListener.size() > 0) {
-            Bitmap grayscale = Bitmap.createBitmap(image.getWidth(), image.getHeight(), Bitmap.Config.ALPHA_8);
-            if (yPlane.getPixelStride() == 1 && yPlane.getRowStride() == image.getWidth()) {
-                grayscale.copyPixelsFromBuffer(yBuffer);
-            } else {
-                ByteBuffer grayscaleBuffer = ByteBuffer.allocate(image.getWidth() * image.getHeight());
-                if (yPlane.getPixelStride() == 1) {
-                    for (int y = 0; y < image.getHeight(); y++) {
-                        yBuffer.position(y * yPlane.getRowStride());
-                        yBuffer.get(grayscaleBuffer.array(), y * image.getWidth(), image.getWidth());
-                    }
-                } else {
-                    for (int y = 0; y < image.getHeight(); y++) {
-                        for (int x = 0; x < image.getWidth(); x++) {
-                            grayscaleBuffer.put(yBuffer.get(y * yPlane.getRowStride() + x * yPlane.getPixelStride()));
-                        }
-                    }
+    /**
+     * Converts the time base of {@link Image#getTimestamp()} in milliseconds to milliseconds since the unix epoch.
+     */
+    private long sensorTimeToWallClockTime(long sensorTime) {
+        long currentSensorTime;
+        if (sensorTimestampRealtime) {
+            currentSensorTime = SystemClock.elapsedRealtimeNanos() / 1000000;
+        } else {
+            // Time base is unspecified, but CLOCK_MONOTONIC in practice
+            currentSensorTime = System.nanoTime() / 1000000;
+        }
+        return System.currentTimeMillis() - (currentSensorTime - sensorTime);
+    }
+
+    /**
+     * @param image is released after the listeners were called
+     */
+    private void notifyCameraImageListeners(@Nullable PreviewImage image, int windowFill, boolean triggered,
+                                            float fps, float latency) {
+        mainHandler.post(() -> {
+            synchronized (externalCameraImageListener) {
+                for (CameraImageListener listener : externalCameraImageListener) {
+                    listener.onCameraImage(image, windowFill, triggered, fps, latency);
                 }
-                yBuffer.rewind();
-                grayscaleBuffer.rewind();
-                grayscale.copyPixelsFromBuffer(grayscaleBuffer);
             }
-            for (CameraImageListener listener : externalCameraImageListener) {
-                listener.onCameraImage(grayscale, windowFill, triggered, fps);
+            if (image != null) {
+                image.release();
             }
-        }
+        });
     }
 
     @Override
@@ -427,17 +853,73 @@ public class CameraService extends Service {
             channel.setDescription("Notifications from camera service");
             notificationManager.createNotificationChannel(channel);
         }
+        cameraThread = new HandlerThread(CAMERA_THREAD_NAME, android.os.Process.THREAD_PRIORITY_DISPLAY);
+        cameraThread.start();
+        cameraHandler = new Handler(cameraThread.getLooper());
         SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
-        cameraSettings = new SettingsActivity.CameraSettings(sharedPreferences);
+        cameraSettingsObserver = new CameraSettingsObserver(sharedPreferences, () -> {
+            cameraHandler.post(this::updateCameraCaptureRequest);
+            updateServiceSettings();
+        });
+        dumpWriter = new DumpWriter(Environment.getExternalStorageDirectory(), new DumpWriter.Listener() {
+            @Override
+            public void onDumped(File file) {
+                mainHandler.post(() -> Toast.makeText(CameraService.this, "Dumped to " + file.getPath(),
+                        Toast.LENGTH_LONG).show());
+            }
+
+            @Override
+            public void onDumpFailed(File file, IOException e) {
+                Log.w(TAG, "failed to write dump file", e);
+                mainHandler.post(() -> Toast.makeText(CameraService.this, "Failed to write " + file.getPath(),
+                        Toast.LENGTH_LONG).show());
+            }
+        });
     }
 
+    @Override
+    public void onDestroy() {
+        Log.i(TAG, "stopping service");
+        cameraHandler.post(() -> {
+            cameraHandler.removeCallbacksAndMessages(null);
+            closeCamera();
+            if (parallelWindowScanner != null) {
+                parallelWindowScanner.close();
+            }
+            stopRecording("Recording stopped");
+        });
+        cameraThread.quitSafely();
+        try {
+            cameraThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        cameraSettingsObserver.close();
+        dumpWriter.close();
+        closeWebServer();
+        // Sync pending detections
+        if (detectionLog != null) {
+            detectionLog.close();
+        }
+        if (wakeLock.isHeld()) {
+            wakeLock.release();
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * Called on the camera thread.
+     */
     private void startCamera() {
+        cameraRestartPending = false;
         if (ActivityCompat.checkSelfPermission(this,
                 Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
-            fatal("no camera permission");
+            restartCamera("no camera permission", null);
+            return;
         }
         CameraManager manager = getSystemService(CameraManager.class);
         String cameraId = null;
+        cameraImageSize = null;
         try {
             for (String id : manager.getCameraIdList()) {
                 CameraCharacteristics characteristics = manager.getCameraCharacteristics(id);
@@ -447,45 +929,103 @@ public class CameraService extends Service {
                     Size[] outputSizes = characteristics.get(CameraCharacteristics
                             .SCALER_STREAM_CONFIGURATION_MAP).getOutputSizes(CAMERA_IMAGE_FORMAT);
                     if (outputSizes == null) {
-                        fatal("image format not supported by camera");
-                        throw new AssertionError("unreachable"); // fixes compiler warning
+                        restartCamera("image format not supported by camera", null);
+                        return;
                     }
                     for (Size size : outputSizes) {
-                        int resolutionDiff = Math.abs(PREFERRED_CAMERA_IMAGE_RESOLUTION -
+                        int resolutionDiff = Math.abs(DetectionEngine.PREFERRED_IMAGE_RESOLUTION -
                                 size.getWidth() * size.getHeight());
                         if (cameraImageSize == null ||
-                                resolutionDiff < Math.abs(PREFERRED_CAMERA_IMAGE_RESOLUTION -
+                                resolutionDiff < Math.abs(DetectionEngine.PREFERRED_IMAGE_RESOLUTION -
                                         cameraImageSize.getWidth() * cameraImageSize.getHeight())) {
                             cameraImageSize = size;
                         }
                     }
                     if (cameraImageSize == null) {
-                        fatal("no image size found");
+                        restartCamera("no image size found", null);
+                        return;
+                    }
+                    exposureCompensationRange = characteristics.get(
+                            CameraCharacteristics.CONTROL_AE_COMPENSATION_RANGE);
+                    flashAvailable = characteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
+                    availableFpsRanges = characteristics.get(
+                            CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+                    if (availableFpsRanges == null || availableFpsRanges.length == 0) {
+                        restartCamera("no frame rate ranges found", null);
+                        return;
                     }
-                    activeCameraCharacteristics = characteristics;
+                    int minFps = Integer.MAX_VALUE, maxFps = 1;
+                    for (Range<Integer> range : availableFpsRanges) {
+                        minFps = Math.min(minFps, range.getUpper());
+                        maxFps = Math.max(maxFps, range.getUpper());
+                    }
+                    frameRateController = new FrameRateController(minFps, maxFps, FRAMES_PER_MARKER);
+                    sensorTimestampRealtime = characteristics.get(CameraCharacteristics
+                            .SENSOR_INFO_TIMESTAMP_SOURCE) ==
+                            CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
                     break;
                 }
             }
             if (cameraId == null) {
-                fatal("no camera found");
+                restartCamera("no camera found", null);
+                return;
             }
-            manager.openCamera(cameraId, cameraDeviceStateCallback, null);
-        } catch (CameraAccessException e) {
-            fatal("failed to open camera", e);
+            manager.openCamera(cameraId, cameraDeviceStateCallback, cameraHandler);
+        } catch (CameraAccessException | IllegalArgumentException | SecurityException e) {
+            restartCamera("failed to open camera", e);
         }
     }
 
-    private void fatal(@NonNull String msg, @Nullable Throwable tr) {
-        Log.e(TAG, msg, tr);
-        System.exit(1);
+    /**
+     * Closes the camera and opens it again after a delay that doubles with every failed attempt.
+     * Detection and the trigger state continue with the images of the new session.
+     * Called on the camera thread.
+     */
+    private void restartCamera(@NonNull String msg, @Nullable Throwable tr) {
+        Log.e(TAG, msg + ", restarting camera in " + cameraRetryDelay + " ms", tr);
+        closeCamera();
+        if (cameraRestartPending) {
+            return;
+        }
+        cameraRestartPending = true;
+        cameraRecovering = true;
+        cameraHandler.postDelayed(this::startCamera, cameraRetryDelay);
+        cameraRetryDelay = Math.min(MAX_CAMERA_RETRY_DELAY, cameraRetryDelay * 2);
     }
 
-    private void fatal(@NonNull String msg) {
-        fatal(msg, null);
+    private void closeCamera() {
+        activeCameraCaptureSession = null;
+        activeCameraCaptureRequestBuilder = null;
+        if (cameraDevice != null) {
+            cameraDevice.close();
+            cameraDevice = null;
+        }
+        if (cameraImageReader != null) {
+            cameraImageReader.close();
+            cameraImageReader = null;
+        }
     }
 
+    /**
+     * Called on the main thread.
+     */
     public interface CameraImageListener extends EventListener {
-        void onCameraImage(@Nullable Bitmap image, int windowFill, boolean triggered, float fps);
+        /**
+         * @param image     only valid during the call, unless the listener acquires it
+         * @param triggered the marker was detected since the previous call
+         * @param latency   milliseconds from the image becoming available until the result was handed off
+         */
+        void onCameraImage(@Nullable PreviewImage image, int windowFill, boolean triggered, float fps,
+                           float latency);
+    }
+
+    /**
+     * Called on the main thread.
+     */
+    public interface CalibrationListener extends EventListener {
+        void onCalibrated(Calibrator.Result result);
+
+        void onCalibrationFailed(String reason);
     }
 
     public class CameraBinder extends Binder {
@@ -497,8 +1037,51 @@ public class CameraService extends Service {
             externalCameraImageListener.remove(listener);
         }
 
+        /**
+         * Writes the next image as PNG files on a background thread.
+         */
         public void requestDump() {
             dumpRequested = true;
         }
+
+        /**
+         * Writes the planes of the next image unchanged to ElektroMeter.dump.yuv on a background thread.
+         */
+        public void requestRawDump() {
+            rawDumpRequested = true;
+        }
+
+        /**
+         * @return one line per metric that is served at /metrics
+         */
+        public List<String> getMetricsSummary() {
+            return metrics.summarize();
+        }
+
+        /**
+         * Records the detection window for {@link #CALIBRATION_DURATION} and proposes settings.
+         * Restarts a running calibration.
+         */
+        public void startCalibration(CalibrationListener listener) {
+            cameraHandler.post(() -> {
+                calibrator = new Calibrator(CALIBRATION_FRAME_CAPACITY);
+                calibrationListener = listener;
+                calibrationEndMonotonicTime = monotonicTimeMillis() + CALIBRATION_DURATION;
+            });
+        }
+
+        /**
+         * Starts recording the detection window to ElektroMeter.frames or stops a running recording.
+         */
+        public void toggleRecording() {
+            cameraHandler.post(() -> {
+                if (recordingRequested) {
+                    stopRecording(String.format(Locale.US, "Recorded %d frames",
+                            frameRecorder == null ? 0 : frameRecorder.getFrameCount()));
+                } else {
+                    recordingRequested = true;
+                }
+            });
+        }
     }
 }
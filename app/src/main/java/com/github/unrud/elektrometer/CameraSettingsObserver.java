@@ -0,0 +1,69 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.unrud.elektrometer;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+
+/**
+ * Keeps a {@link CameraSettings} snapshot of the shared preferences up to date.
+ * <p>
+ * The snapshot is replaced on the main thread when a preference changes and can be read from any thread.
+ */
+public class CameraSettingsObserver implements SharedPreferences.OnSharedPreferenceChangeListener, Closeable {
+    private final SharedPreferences sharedPreferences;
+    @Nullable
+    private final Runnable changeListener;
+    private volatile CameraSettings settings;
+
+    /**
+     * @param changeListener called on the main thread after the snapshot was replaced
+     */
+    public CameraSettingsObserver(SharedPreferences sharedPreferences, @Nullable Runnable changeListener) {
+        this.sharedPreferences = sharedPreferences;
+        this.changeListener = changeListener;
+        // The preferences only keep a weak reference to the listener, the owner keeps this object alive
+        sharedPreferences.registerOnSharedPreferenceChangeListener(this);
+        settings = CameraSettings.parse(sharedPreferences.getAll());
+    }
+
+    /**
+     * @return the current settings or null if they are invalid
+     */
+    @Nullable
+    public CameraSettings get() {
+        return settings;
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        settings = CameraSettings.parse(sharedPreferences.getAll());
+        if (changeListener != null) {
+            changeListener.run();
+        }
+    }
+
+    @Override
+    public void close() {
+        sharedPreferences.unregisterOnSharedPreferenceChangeListener(this);
+    }
+}
@@ -30,29 +30,33 @@ import android.view.View;
 import androidx.annotation.Nullable;
 import androidx.preference.PreferenceManager;
 
+import java.util.List;
 import java.util.Locale;
 
 public class CameraView extends View {
     private static final int SHOW_TRIGGER_HINT_DURATION = 500; // millis
 
-    private final SettingsActivity.CameraSettings cameraSettings;
-    private final Paint windowPaint, triggeredPaint, errorTextPaint, textPaint, textBackgroundPaint,
+    private CameraSettingsObserver cameraSettingsObserver;
+    private final Paint windowPaint, triggeredPaint, triggeredOverlayPaint, errorTextPaint, textPaint, textBackgroundPaint,
             imagePaint, imageBackgroundPaint;
-    private Bitmap image;
+    // The latest image and the image that was drawn last, both are owned by the view
+    private PreviewImage image, drawnImage;
     private int windowFill;
     private boolean triggered;
     private long lastTriggeredMonotonicTime;
-    private float fps;
+    private float fps, latency;
+    private List<String> metrics;
 
     public CameraView(Context context, AttributeSet attrs) {
         super(context, attrs);
-        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(getContext());
-        cameraSettings = new SettingsActivity.CameraSettings(sharedPreferences);
         windowPaint = new Paint();
         windowPaint.setStyle(Paint.Style.STROKE);
         windowPaint.setColor(Color.RED);
         triggeredPaint = new Paint();
         triggeredPaint.setColor(windowPaint.getColor());
+        triggeredOverlayPaint = new Paint();
+        triggeredOverlayPaint.setColor(windowPaint.getColor());
+        triggeredOverlayPaint.setAlpha(100);
         errorTextPaint = new Paint();
         errorTextPaint.setColor(Color.BLACK);
         errorTextPaint.setAntiAlias(true);
@@ -81,12 +85,15 @@ public class CameraView extends View {
             lastTriggeredMonotonicTime = monotonicTime;
             triggered = false;
         }
-        if (!cameraSettings.load()) {
+        CameraSettings cameraSettings = cameraSettingsObserver != null ? cameraSettingsObserver.get() : null;
+        if (cameraSettings == null) {
             canvas.drawText("invalid settings",
                     (float) getWidth() / 2, ((float) getHeight() + errorTextPaint.getTextSize()) / 2,
                     errorTextPaint);
             return;
         }
+        releaseDrawnImage();
+        drawnImage = image;
         if (image == null) {
             canvas.drawText("no image available",
                     (float) getWidth() / 2, ((float) getHeight() + errorTextPaint.getTextSize()) / 2,
@@ -94,11 +101,12 @@ public class CameraView extends View {
             return;
         }
 
+        Bitmap bitmap = image.getBitmap();
         float imageAspect;
         if (cameraSettings.cameraRotation % 180 == 0) {
-            imageAspect = (float) image.getWidth() / (float) image.getHeight();
+            imageAspect = (float) bitmap.getWidth() / (float) bitmap.getHeight();
         } else {
-            imageAspect = (float) image.getHeight() / (float) image.getWidth();
+            imageAspect = (float) bitmap.getHeight() / (float) bitmap.getWidth();
         }
         float canvasAspect = (float) getWidth() / (float) getHeight();
 
@@ -111,32 +119,100 @@ public class CameraView extends View {
         canvas.drawRect(0, 0, 1, 1, imageBackgroundPaint);
         canvas.save();
         canvas.rotate(cameraSettings.cameraRotation, 0.5f, 0.5f);
-        canvas.scale(1 / (float) image.getWidth(), 1 / (float) image.getHeight());
-        canvas.drawBitmap(image, 0, 0, imagePaint);
+        canvas.scale(1 / (float) bitmap.getWidth(), 1 / (float) bitmap.getHeight());
+        canvas.drawBitmap(bitmap, 0, 0, imagePaint);
         canvas.restore();
-        canvas.drawRect(0, (float) (cameraSettings.windowOffset) / 100, 1,
-                (float) (cameraSettings.windowOffset + cameraSettings.windowHeight) / 100,
-                windowPaint);
-        if (monotonicTime - lastTriggeredMonotonicTime <= SHOW_TRIGGER_HINT_DURATION) {
-            canvas.drawRect(0, 0, 1, (float) (cameraSettings.windowOffset) / 100,
-                    triggeredPaint);
-            canvas.drawRect(0, (float) (cameraSettings.windowOffset + cameraSettings.windowHeight) / 100,
-                    1, 1, triggeredPaint);
+        boolean showTriggerHint = monotonicTime - lastTriggeredMonotonicTime <= SHOW_TRIGGER_HINT_DURATION;
+        if (image.isWindow()) {
+            // The preview only contains the window
+            canvas.drawRect(0, 0, 1, 1, windowPaint);
+            if (showTriggerHint) {
+                canvas.drawRect(0, 0, 1, 1, triggeredOverlayPaint);
+            }
+        } else {
+            canvas.drawRect(0, (float) (cameraSettings.windowOffset) / 100, 1,
+                    (float) (cameraSettings.windowOffset + cameraSettings.windowHeight) / 100,
+                    windowPaint);
+            if (showTriggerHint) {
+                canvas.drawRect(0, 0, 1, (float) (cameraSettings.windowOffset) / 100,
+                        triggeredPaint);
+                canvas.drawRect(0, (float) (cameraSettings.windowOffset + cameraSettings.windowHeight) / 100,
+                        1, 1, triggeredPaint);
+            }
         }
         canvas.restore();
-        String infoText = String.format(Locale.US, "Fill: %d%% Fps: %.1f Res: %dx%d",
-                windowFill, fps, image.getWidth(), image.getHeight());
+        String infoText = String.format(Locale.US, "Fill: %d%% Fps: %.1f Latency: %.1fms Res: %dx%d",
+                windowFill, fps, latency, image.getImageWidth(), image.getImageHeight());
         canvas.drawRect(10 - 5, 10 - 5,
                 10 + textPaint.measureText(infoText) + 5, 10 + textPaint.getTextSize() + 5,
                 textBackgroundPaint);
         canvas.drawText(infoText, 10, 10 + textPaint.getTextSize(), textPaint);
+        if (metrics != null && !metrics.isEmpty()) {
+            float lineHeight = textPaint.getFontSpacing();
+            float top = 10 + textPaint.getTextSize() + 5 + 10;
+            float width = 0;
+            for (String line : metrics) {
+                width = Math.max(width, textPaint.measureText(line));
+            }
+            canvas.drawRect(10 - 5, top - 5, 10 + width + 5, top + lineHeight * metrics.size() + 5,
+                    textBackgroundPaint);
+            for (int i = 0; i < metrics.size(); i++) {
+                canvas.drawText(metrics.get(i), 10, top + lineHeight * i + textPaint.getTextSize(), textPaint);
+            }
+        }
+    }
+
+    /**
+     * @param metrics lines shown below the info text or null to hide them
+     */
+    public void setMetrics(@Nullable List<String> metrics) {
+        this.metrics = metrics;
+        invalidate();
     }
 
-    public void updateCameraImage(@Nullable Bitmap image, int windowFill, boolean triggered, float fps) {
+    /**
+     * @param image is acquired by the view and released when it was replaced and is no longer drawn
+     */
+    public void updateCameraImage(@Nullable PreviewImage image, int windowFill, boolean triggered, float fps,
+                                  float latency) {
+        if (image != null) {
+            image.acquire();
+        }
+        if (this.image != null && this.image != drawnImage) {
+            // Replaced before it was drawn
+            this.image.release();
+        }
         this.image = image;
         this.windowFill = windowFill;
         this.triggered |= triggered; // is reset by onDraw
         this.fps = fps;
+        this.latency = latency;
         invalidate();
     }
+
+    private void releaseDrawnImage() {
+        if (drawnImage != null && drawnImage != image) {
+            drawnImage.release();
+        }
+        drawnImage = null;
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(getContext());
+        cameraSettingsObserver = new CameraSettingsObserver(sharedPreferences, this::invalidate);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        cameraSettingsObserver.close();
+        cameraSettingsObserver = null;
+        releaseDrawnImage();
+        if (image != null) {
+            image.release();
+            image = null;
+        }
+    }
 }
@@ -0,0 +1,195 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.unrud.elektrometer;
+
+import android.graphics.Bitmap;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.EventListener;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Writes dumps of camera images on a background thread.
+ * <p>
+ * {@link #dump} only copies the planes into a buffer that is reused for the next dump.
+ * The PNG dumps (planes packed into the channels and converted to RGB) and the {@link RawDump} are
+ * written afterwards.
+ */
+public class DumpWriter implements Closeable {
+    private static final String THREAD_NAME = "elektrometer::DumpWriter";
+
+    private final File directory;
+    private final Listener listener;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+            runnable -> new Thread(runnable, THREAD_NAME));
+    // Set while the buffers are in use
+    private final AtomicBoolean busy = new AtomicBoolean();
+    private ByteBuffer yBuffer, uBuffer, vBuffer;
+    private int[] dumpPixels, colorPixels;
+
+    /**
+     * @param directory where ElektroMeter.dump.png etc. are written
+     */
+    public DumpWriter(File directory, Listener listener) {
+        this.directory = directory;
+        this.listener = listener;
+    }
+
+    /**
+     * Copies the planes and returns immediately. The positions of the buffers are reset.
+     *
+     * @param png write ElektroMeter.dump.png, ElektroMeter.dump.color.png and ElektroMeter.dump.txt
+     * @param raw write ElektroMeter.dump.yuv
+     * @return false when the previous dump is still being written
+     */
+    public boolean dump(boolean png, boolean raw, long time, int width, int height,
+                        ByteBuffer yBuffer, int yRowStride, int yPixelStride,
+                        ByteBuffer uBuffer, int uRowStride, int uPixelStride,
+                        ByteBuffer vBuffer, int vRowStride, int vPixelStride) {
+        if (!busy.compareAndSet(false, true)) {
+            return false;
+        }
+        ByteBuffer y = this.yBuffer = copy(this.yBuffer, yBuffer);
+        ByteBuffer u = this.uBuffer = copy(this.uBuffer, uBuffer);
+        ByteBuffer v = this.vBuffer = copy(this.vBuffer, vBuffer);
+        executor.execute(() -> {
+            try {
+                if (raw) {
+                    File file = new File(directory, "ElektroMeter.dump.yuv");
+                    try {
+                        RawDump.write(file, width, height, time, y, yRowStride, yPixelStride,
+                                u, uRowStride, uPixelStride, v, vRowStride, vPixelStride);
+                        listener.onDumped(file);
+                    } catch (IOException e) {
+                        listener.onDumpFailed(file, e);
+                    }
+                }
+                if (png) {
+                    File file = new File(directory, "ElektroMeter.dump.png");
+                    try {
+                        writePng(file, width, height, y, yRowStride, yPixelStride,
+                                u, uRowStride, uPixelStride, v, vRowStride, vPixelStride);
+                        listener.onDumped(file);
+                    } catch (IOException e) {
+                        listener.onDumpFailed(file, e);
+                    }
+                }
+            } finally {
+                busy.set(false);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * @return {@code buffer} or a larger buffer with the remaining bytes of {@code source}
+     */
+    private static ByteBuffer copy(ByteBuffer buffer, ByteBuffer source) {
+        if (buffer == null || buffer.capacity() < source.remaining()) {
+            buffer = ByteBuffer.allocateDirect(source.remaining());
+        }
+        buffer.clear();
+        buffer.put(source);
+        buffer.flip();
+        source.rewind();
+        return buffer;
+    }
+
+    private void writePng(File dumpFile, int width, int height,
+                          ByteBuffer yBuffer, int yRowStride, int yPixelStride,
+                          ByteBuffer uBuffer, int uRowStride, int uPixelStride,
+                          ByteBuffer vBuffer, int vRowStride, int vPixelStride) throws IOException {
+        if (dumpPixels == null || dumpPixels.length != width * height) {
+            dumpPixels = new int[width * height];
+            colorPixels = new int[width * height];
+        }
+        int i = 0;
+        for (int y = 0; y < height; y++) {
+            int yRowOffset = y * yRowStride;
+            int uRowOffset = (y / 2) * uRowStride;
+            int vRowOffset = (y / 2) * vRowStride;
+            for (int x = 0; x < width; x++) {
+                int pixelY = yBuffer.get(yRowOffset + x * yPixelStride) & 0xff;
+                int pixelU = uBuffer.get(uRowOffset + (x / 2) * uPixelStride) & 0xff;
+                int pixelV = vBuffer.get(vRowOffset + (x / 2) * vPixelStride) & 0xff;
+                dumpPixels[i] = YuvColor.toDumpArgb(pixelY, pixelU, pixelV);
+                colorPixels[i++] = YuvColor.toArgb(pixelY, pixelU, pixelV);
+            }
+        }
+        writeBitmap(dumpFile, dumpPixels, width, height);
+        writeBitmap(new File(directory, "ElektroMeter.dump.color.png"), colorPixels, width, height);
+        try (FileOutputStream infoOutputStream = new FileOutputStream(
+                new File(directory, "ElektroMeter.dump.txt"))) {
+            infoOutputStream.write(("Channel Mapping:\n" +
+                    "* R: Red Projection (V)\n" +
+                    "* G: Luma (Y)\n" +
+                    "* B: Blue Projection (U)\n").getBytes());
+        }
+    }
+
+    private static void writeBitmap(File file, int[] pixels, int width, int height) throws IOException {
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+            if (!bitmap.compress(Bitmap.CompressFormat.PNG, 0, outputStream)) {
+                throw new IOException("failed to compress image");
+            }
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Waits for a running dump.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        boolean interrupted = false;
+        while (!executor.isTerminated()) {
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public interface Listener extends EventListener {
+        /**
+         * Called on the background thread.
+         */
+        void onDumped(File file);
+
+        /**
+         * Called on the background thread.
+         */
+        void onDumpFailed(File file, IOException e);
+    }
+}
@@ -21,7 +21,6 @@ import android.content.ComponentName;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
-import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.util.Log;
@@ -31,19 +30,25 @@ import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.content.ContextCompat;
 import androidx.lifecycle.Lifecycle;
 import androidx.preference.PreferenceManager;
 
 import java.util.ArrayList;
+import java.util.Locale;
 
 
-public class MainActivity extends AppCompatActivity implements CameraService.CameraImageListener {
+public class MainActivity extends AppCompatActivity implements CameraService.CameraImageListener,
+        CameraService.CalibrationListener {
     private static final String TAG = "elektrometer::MainActivity";
     private static final int REQUEST_PERMISSIONS = 100;
+    private static final int METRICS_UPDATE_INTERVAL = 1000; // millis
     private CameraView cameraView;
     private CameraService.CameraBinder cameraBinder;
+    private boolean showMetrics;
+    private long metricsUpdateMonotonicTime;
     private final ServiceConnection connection = new ServiceConnection() {
         @Override
         public void onServiceConnected(ComponentName className, IBinder service) {
@@ -95,9 +100,26 @@ public class MainActivity extends AppCompatActivity implements CameraService.Cam
         if (id == R.id.settingsButton) {
             Intent intent = new Intent(this, SettingsActivity.class);
             startActivity(intent);
+        } else if (id == R.id.calibrateButton) {
+            if (cameraBinder != null) {
+                cameraBinder.startCalibration(this);
+                Toast.makeText(this, String.format(Locale.US,
+                        "Calibrating for %d seconds, the marker must pass the window a few times",
+                        CameraService.CALIBRATION_DURATION / 1000), Toast.LENGTH_LONG).show();
+            }
         } else if (id == R.id.dumpButton) {
             if (cameraBinder != null)
                 cameraBinder.requestDump();
+        } else if (id == R.id.rawDumpButton) {
+            if (cameraBinder != null)
+                cameraBinder.requestRawDump();
+        } else if (id == R.id.recordButton) {
+            if (cameraBinder != null)
+                cameraBinder.toggleRecording();
+        } else if (id == R.id.metricsButton) {
+            showMetrics = !showMetrics;
+            metricsUpdateMonotonicTime = CameraService.monotonicTimeMillis();
+            cameraView.setMetrics(showMetrics && cameraBinder != null ? cameraBinder.getMetricsSummary() : null);
         }
         return super.onOptionsItemSelected(item);
     }
@@ -160,7 +182,53 @@ public class MainActivity extends AppCompatActivity implements CameraService.Cam
     }
 
     @Override
-    public void onCameraImage(@Nullable Bitmap image, int windowFill, boolean triggered, float fps) {
-        cameraView.updateCameraImage(image, windowFill, triggered, fps);
+    public void onCalibrated(Calibrator.Result result) {
+        if (isDestroyed()) {
+            return;
+        }
+        String message = String.format(Locale.US, "Blue Projection: %d\nRed Projection: %d\n" +
+                        "Distance Threshold: %d\nLuma Threshold: %d\nFill Threshold: %d\n" +
+                        "Fill Reset Threshold: %d\n\nPasses of the marker: %d\nSeparation: %.1f%s",
+                result.colorBlueProjection, result.colorRedProjection, result.colorDistanceThreshold,
+                result.colorLumaThreshold, result.triggerFillThreshold, result.triggerFillResetThreshold,
+                result.passes, result.separation, result.separation < 1 ? " (marker and background overlap)" : "");
+        new AlertDialog.Builder(this)
+                .setTitle("Proposed Settings")
+                .setMessage(message)
+                .setPositiveButton("Apply", (dialog, which) -> PreferenceManager.getDefaultSharedPreferences(this)
+                        .edit()
+                        .putString("colorBlueProjection", Integer.toString(result.colorBlueProjection))
+                        .putString("colorRedProjection", Integer.toString(result.colorRedProjection))
+                        .putString("colorDistanceThreshold", Integer.toString(result.colorDistanceThreshold))
+                        .putString("colorLumaThreshold", Integer.toString(result.colorLumaThreshold))
+                        .putString("triggerFillThreshold", Integer.toString(result.triggerFillThreshold))
+                        .putString("triggerFillResetThreshold", Integer.toString(result.triggerFillResetThreshold))
+                        .apply())
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    @Override
+    public void onCalibrationFailed(String reason) {
+        if (isDestroyed()) {
+            return;
+        }
+        new AlertDialog.Builder(this)
+                .setTitle("Calibration Failed")
+                .setMessage(reason)
+                .setPositiveButton("OK", null)
+                .show();
+    }
+
+    @Override
+    public void onCameraImage(@Nullable PreviewImage image, int windowFill, boolean triggered, float fps,
+                              float latency) {
+        cameraView.updateCameraImage(image, windowFill, triggered, fps, latency);
+        long monotonicTime = CameraService.monotonicTimeMillis();
+        if (showMetrics && cameraBinder != null &&
+                monotonicTime - metricsUpdateMonotonicTime >= METRICS_UPDATE_INTERVAL) {
+            metricsUpdateMonotonicTime = monotonicTime;
+            cameraView.setMetrics(cameraBinder.getMetricsSummary());
+        }
     }
 }
@@ -0,0 +1,147 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.unrud.elektrometer;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Preview bitmap that is reused by its {@link Pool} when all owners released it.
+ * <p>
+ * The bitmap shows either the whole camera image, possibly downscaled, or only the detection window.
+ */
+public class PreviewImage {
+    private final Pool pool;
+    private Bitmap bitmap;
+    private int references; // guarded by pool
+    private int imageWidth, imageHeight;
+    private boolean window;
+
+    private PreviewImage(Pool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Must not be used after the last reference was released.
+     */
+    @NonNull
+    public Bitmap getBitmap() {
+        return bitmap;
+    }
+
+    /**
+     * @param imageWidth  width of the camera image
+     * @param imageHeight height of the camera image
+     * @param window      the bitmap shows only the detection window instead of the whole image
+     */
+    public void setSource(int imageWidth, int imageHeight, boolean window) {
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+        this.window = window;
+    }
+
+    public int getImageWidth() {
+        return imageWidth;
+    }
+
+    public int getImageHeight() {
+        return imageHeight;
+    }
+
+    public boolean isWindow() {
+        return window;
+    }
+
+    /**
+     * Adds an owner, the image must already be owned by the caller (e.g. during a callback).
+     */
+    public void acquire() {
+        synchronized (pool) {
+            if (references <= 0) {
+                throw new IllegalStateException("image was released");
+            }
+            references++;
+        }
+    }
+
+    public void release() {
+        synchronized (pool) {
+            if (references <= 0) {
+                throw new IllegalStateException("image was released");
+            }
+            references--;
+        }
+    }
+
+    /**
+     * Fixed number of images, nothing is allocated as long as the size and format don't change.
+     */
+    public static class Pool {
+        private final PreviewImage[] images;
+
+        /**
+         * @param size 3 allows one image to be filled while one is displayed and one is waiting
+         *             to be displayed
+         */
+        public Pool(int size) {
+            images = new PreviewImage[size];
+            for (int i = 0; i < size; i++) {
+                images[i] = new PreviewImage(this);
+            }
+        }
+
+        /**
+         * @return unused image with one reference that is owned by the caller or null when all images
+         * are in use
+         */
+        @Nullable
+        public PreviewImage obtain(int width, int height, Bitmap.Config config) {
+            PreviewImage image = null;
+            synchronized (this) {
+                for (PreviewImage candidate : images) {
+                    if (candidate.references > 0) {
+                        continue;
+                    }
+                    image = candidate;
+                    if (hasFormat(candidate, width, height, config)) {
+                        break;
+                    }
+                }
+                if (image == null) {
+                    return null;
+                }
+                image.references = 1;
+            }
+            if (!hasFormat(image, width, height, config)) {
+                if (image.bitmap != null) {
+                    image.bitmap.recycle();
+                }
+                image.bitmap = Bitmap.createBitmap(width, height, config);
+            }
+            return image;
+        }
+
+        private static boolean hasFormat(PreviewImage image, int width, int height, Bitmap.Config config) {
+            return image.bitmap != null && image.bitmap.getWidth() == width && image.bitmap.getHeight() == height
+                    && image.bitmap.getConfig() == config;
+        }
+    }
+}
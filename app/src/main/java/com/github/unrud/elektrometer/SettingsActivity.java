@@ -17,7 +17,6 @@
 
 package com.github.unrud.elektrometer;
 
-import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.text.InputType;
 import android.view.MenuItem;
@@ -66,11 +65,19 @@ public class SettingsActivity extends AppCompatActivity {
             }
             cameraRotationPreference.setSummaryProvider(
                     ListPreference.SimpleSummaryProvider.getInstance());
+            androidx.preference.ListPreference previewModePreference = getPreferenceManager()
+                    .findPreference("previewMode");
+            if (previewModePreference == null) {
+                throw new AssertionError("unreachable"); // fixes compiler warning
+            }
+            previewModePreference.setSummaryProvider(
+                    ListPreference.SimpleSummaryProvider.getInstance());
 
             for (String preferenceKey : new String[]{
                     "cameraExposureCompensation", "windowHeight", "windowOffset",
                     "colorBlueProjection", "colorRedProjection", "colorDistanceThreshold", "colorLumaThreshold",
-                    "triggerFillThreshold", "triggerFillResetThreshold", "triggerResetTime"
+                    "triggerFillThreshold", "triggerFillResetThreshold", "triggerResetTime",
+                    "logSyncInterval", "logSyncCount", "logRetention", "webServerPort"
             }) {
                 androidx.preference.EditTextPreference preference = getPreferenceManager().findPreference(preferenceKey);
                 if (preference == null) {
@@ -85,47 +92,13 @@ public class SettingsActivity extends AppCompatActivity {
                 preference.setOnBindEditTextListener(editText -> editText.setInputType(inputType));
                 preference.setSummaryProvider(EditTextPreference.SimpleSummaryProvider.getInstance());
             }
-
-        }
-    }
-
-    public static class CameraSettings {
-        private final SharedPreferences sharedPreferences;
-        public boolean cameraFlash;
-        public int cameraRotation, cameraExposureCompensation, windowHeight, windowOffset,
-                colorBlueProjection, colorRedProjection, colorDistanceThreshold, colorLumaThreshold,
-                triggerFillThreshold, triggerFillResetThreshold, triggerResetTime;
-
-        public CameraSettings(SharedPreferences sharedPreferences) {
-            this.sharedPreferences = sharedPreferences;
-        }
-
-        public boolean load() {
-            try {
-                cameraRotation = Integer.parseInt(sharedPreferences.getString("cameraRotation", ""));
-                cameraFlash = sharedPreferences.getBoolean("cameraFlash", false);
-                cameraExposureCompensation = Integer.parseInt(sharedPreferences.getString("cameraExposureCompensation", ""));
-                windowHeight = Integer.parseInt(sharedPreferences.getString("windowHeight", ""));
-                windowOffset = Integer.parseInt(sharedPreferences.getString("windowOffset", ""));
-                colorBlueProjection = Integer.parseInt(sharedPreferences.getString("colorBlueProjection", ""));
-                colorRedProjection = Integer.parseInt(sharedPreferences.getString("colorRedProjection", ""));
-                colorDistanceThreshold = Integer.parseInt(sharedPreferences.getString("colorDistanceThreshold", ""));
-                colorLumaThreshold = Integer.parseInt(sharedPreferences.getString("colorLumaThreshold", ""));
-                triggerFillThreshold = Integer.parseInt(sharedPreferences.getString("triggerFillThreshold", ""));
-                triggerFillResetThreshold = Integer.parseInt(sharedPreferences.getString("triggerFillResetThreshold", ""));
-                triggerResetTime = Integer.parseInt(sharedPreferences.getString("triggerResetTime", ""));
-            } catch (NumberFormatException e) {
-                return false;
+            androidx.preference.EditTextPreference colorRegionsPreference = getPreferenceManager()
+                    .findPreference("colorRegions");
+            if (colorRegionsPreference == null) {
+                throw new AssertionError("unreachable"); // fixes compiler warning
             }
-            return (cameraRotation == 0 || cameraRotation == 90 || cameraRotation == 180 || cameraRotation == 270) &&
-                    windowHeight >= 0 && windowHeight <= 100 && windowOffset >= 0 && windowOffset <= 100 && windowHeight + windowOffset <= 100 &&
-                    colorBlueProjection >= 0 && colorBlueProjection <= 100 &&
-                    colorRedProjection >= 0 && colorRedProjection <= 100 &&
-                    colorDistanceThreshold >= 0 && colorDistanceThreshold <= 100 &&
-                    colorLumaThreshold >= 0 && colorLumaThreshold <= 100 &&
-                    triggerFillThreshold >= 0 && triggerFillThreshold <= 100 &&
-                    triggerFillResetThreshold >= 0 && triggerFillResetThreshold <= 100 &&
-                    triggerResetTime >= 0;
+            colorRegionsPreference.setSummaryProvider(EditTextPreference.SimpleSummaryProvider.getInstance());
+
         }
     }
 }
@@ -0,0 +1,112 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.unrud.elektrometer;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.os.Environment;
+
+import androidx.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Serves the website (packaged as assets), the detection log and live events on the local network.
+ */
+public class WebServer implements Closeable {
+    private static final int MAX_CONNECTIONS = 8;
+    private static final String CHARTS_LIBRARY = "lightweight-charts.standalone.production.js";
+
+    private final HttpServer httpServer;
+
+    public WebServer(@NonNull Context context, int port, @NonNull File detectionLogFile,
+                     @NonNull EventBroadcaster eventBroadcaster) throws IOException {
+        httpServer = new HttpServer(port, MAX_CONNECTIONS);
+        AssetManager assets = context.getApplicationContext().getAssets();
+        HttpServer.Handler indexHandler = (request, response) ->
+                sendAsset(assets, "index.html", "text/html; charset=utf-8", response);
+        httpServer.addHandler("/", indexHandler);
+        httpServer.addHandler("/index.html", indexHandler);
+        // The library isn't part of the repository, it's packaged when it was put in the website
+        // directory before building or it's loaded from the internal storage
+        httpServer.addHandler("/" + CHARTS_LIBRARY, (request, response) -> {
+            try {
+                sendStream(assets.open(CHARTS_LIBRARY), "text/javascript; charset=utf-8", response);
+            } catch (FileNotFoundException e) {
+                File file = new File(Environment.getExternalStorageDirectory(), CHARTS_LIBRARY);
+                try {
+                    sendStream(new FileInputStream(file), "text/javascript; charset=utf-8", response);
+                } catch (FileNotFoundException e2) {
+                    response.sendError(404, "Not Found");
+                }
+            }
+        });
+        httpServer.addHandler("/" + detectionLogFile.getName(), new TextPulseLogHandler(detectionLogFile));
+        httpServer.addHandler("/rollup", new PulseRollupHandler(detectionLogFile));
+        httpServer.addHandler("/events", eventBroadcaster);
+    }
+
+    public int getPort() {
+        return httpServer.getPort();
+    }
+
+    /**
+     * Registers additional endpoints.
+     */
+    public void addHandler(@NonNull String path, @NonNull HttpServer.Handler handler) {
+        httpServer.addHandler(path, handler);
+    }
+
+    private static void sendAsset(AssetManager assets, String name, String contentType,
+                                  HttpServer.Response response) throws IOException {
+        InputStream inputStream;
+        try {
+            inputStream = assets.open(name);
+        } catch (FileNotFoundException e) {
+            response.sendError(404, "Not Found");
+            return;
+        }
+        sendStream(inputStream, contentType, response);
+    }
+
+    private static void sendStream(InputStream inputStream, String contentType,
+                                   HttpServer.Response response) throws IOException {
+        try (InputStream in = inputStream) {
+            response.setHeader("Content-Type", contentType);
+            response.setHeader("Cache-Control", "no-cache");
+            OutputStream outputStream = response.getOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                outputStream.write(buffer, 0, read);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        httpServer.close();
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.unrud.elektrometer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Cost of detecting the marker in one frame with the default settings.
+ * <p>
+ * Run with {@code ./gradlew :benchmark:jmh [-Pframes=/path/to/recorded/frames]}.
+ */
+@State(Scope.Thread)
+public class DetectionEngineBenchmark {
+    private static final long FRAME_INTERVAL = 33; // millis
+
+    @Param({"320x240", "640x480", "1920x1080"})
+    public String resolution;
+
+    @Param({"PLANAR", "SEMI_PLANAR", "SEMI_PLANAR_PADDED"})
+    public FrameLayout layout;
+
+    /** Scan every pixel of the window instead of skipping lines and columns at high resolutions */
+    @Param({"false", "true"})
+    public boolean fullResolution;
+
+    private final DetectionEngine detectionEngine = new DetectionEngine();
+    private ParallelWindowScanner parallelWindowScanner;
+    private Frame[] frames;
+    private int frameIndex;
+    private long monotonicTime;
+
+    @Setup
+    public void setup() throws IOException {
+        String[] dimensions = resolution.split("x");
+        int width = Integer.parseInt(dimensions[0]), height = Integer.parseInt(dimensions[1]);
+        List<byte[]> i420Frames = FrameSource.load(width, height);
+        frames = new Frame[i420Frames.size()];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = new Frame(i420Frames.get(i), width, height, layout);
+        }
+        detectionEngine.configure(width, height, 0, 10, 45, 40, 83, 20, 25, fullResolution);
+        detectionEngine.configureTrigger(10, 5, 500, false);
+        parallelWindowScanner = new ParallelWindowScanner(detectionEngine,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown
+    public void tearDown() {
+        parallelWindowScanner.close();
+    }
+
+    private Frame nextFrame() {
+        Frame frame = frames[frameIndex];
+        frameIndex = (frameIndex + 1) % frames.length;
+        return frame;
+    }
+
+    @Benchmark
+    public boolean processBuffers() {
+        Frame frame = nextFrame();
+        int windowFill = detectionEngine.measureWindowFill(
+                frame.yBuffer, frame.yRowStride, frame.yPixelStride,
+                frame.uBuffer, frame.uvRowStride, frame.uvPixelStride,
+                frame.vBuffer, frame.uvRowStride, frame.uvPixelStride);
+        monotonicTime += FRAME_INTERVAL;
+        return detectionEngine.updateTrigger(windowFill, monotonicTime);
+    }
+
+    @Benchmark
+    public boolean processBuffersParallel() {
+        Frame frame = nextFrame();
+        int windowFill = parallelWindowScanner.measureWindowFill(
+                frame.yBuffer, frame.yRowStride, frame.yPixelStride,
+                frame.uBuffer, frame.uvRowStride, frame.uvPixelStride,
+                frame.vBuffer, frame.uvRowStride, frame.uvPixelStride);
+        monotonicTime += FRAME_INTERVAL;
+        return detectionEngine.updateTrigger(windowFill, monotonicTime);
+    }
+
+    @Benchmark
+    public boolean processArrays() {
+        Frame frame = nextFrame();
+        int windowFill = detectionEngine.measureWindowFill(
+                frame.yPlane, frame.yRowStride, frame.yPixelStride,
+                frame.uPlane, frame.uvRowStride, frame.uvPixelStride,
+                frame.vPlane, frame.uvRowStride, frame.uvPixelStride);
+        monotonicTime += FRAME_INTERVAL;
+        return detectionEngine.updateTrigger(windowFill, monotonicTime);
+    }
+}
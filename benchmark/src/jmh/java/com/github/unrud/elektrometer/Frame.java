@@ -0,0 +1,71 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.unrud.elektrometer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A YUV_420_888 frame in a specific {@link FrameLayout}, both as direct buffers (like
+ * {@code android.media.Image}) and as arrays.
+ */
+class Frame {
+    final int width, height;
+    final ByteBuffer yBuffer, uBuffer, vBuffer;
+    final byte[] yPlane, uPlane, vPlane;
+    final int yRowStride, yPixelStride, uvRowStride, uvPixelStride;
+
+    /**
+     * @param i420 tightly packed planar YUV 4:2:0 data
+     */
+    Frame(byte[] i420, int width, int height, FrameLayout layout) {
+        this.width = width;
+        this.height = height;
+        int chromaWidth = width / 2, chromaHeight = height / 2;
+        yPixelStride = 1;
+        yRowStride = layout.rowStride(width);
+        uvPixelStride = layout.chromaPixelStride;
+        uvRowStride = layout.rowStride(chromaWidth * uvPixelStride);
+        yPlane = new byte[yRowStride * height];
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(i420, y * width, yPlane, y * yRowStride, width);
+        }
+        // Like NV12 on Android, the V plane of semi-planar layouts starts one byte after the U plane
+        int vPlaneOffset = uvPixelStride == 1 ? uvRowStride * chromaHeight : 1;
+        byte[] chroma = new byte[uvRowStride * chromaHeight + vPlaneOffset];
+        int uSource = width * height, vSource = uSource + chromaWidth * chromaHeight;
+        for (int y = 0; y < chromaHeight; y++) {
+            for (int x = 0; x < chromaWidth; x++) {
+                chroma[y * uvRowStride + x * uvPixelStride] = i420[uSource + y * chromaWidth + x];
+                chroma[vPlaneOffset + y * uvRowStride + x * uvPixelStride] = i420[vSource + y * chromaWidth + x];
+            }
+        }
+        uPlane = new byte[chroma.length - vPlaneOffset];
+        System.arraycopy(chroma, 0, uPlane, 0, uPlane.length);
+        vPlane = new byte[chroma.length - vPlaneOffset];
+        System.arraycopy(chroma, vPlaneOffset, vPlane, 0, vPlane.length);
+
+        yBuffer = ByteBuffer.allocateDirect(yPlane.length);
+        yBuffer.put(yPlane).rewind();
+        ByteBuffer chromaBuffer = ByteBuffer.allocateDirect(chroma.length);
+        chromaBuffer.put(chroma).rewind();
+        chromaBuffer.limit(uPlane.length);
+        uBuffer = chromaBuffer.slice();
+        chromaBuffer.limit(chroma.length).position(vPlaneOffset);
+        vBuffer = chromaBuffer.slice();
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.unrud.elektrometer;
+
+/**
+ * Plane layouts of YUV_420_888 images as delivered by common camera HALs.
+ */
+public enum FrameLayout {
+    /** I420: separate U and V planes with pixel stride 1 */
+    PLANAR(1, false),
+    /** NV12: interleaved U and V planes with pixel stride 2 */
+    SEMI_PLANAR(2, false),
+    /** NV12 with row strides padded to a multiple of 128 bytes */
+    SEMI_PLANAR_PADDED(2, true);
+
+    private static final int ROW_ALIGNMENT = 128;
+
+    final int chromaPixelStride;
+    private final boolean padded;
+
+    FrameLayout(int chromaPixelStride, boolean padded) {
+        this.chromaPixelStride = chromaPixelStride;
+        this.padded = padded;
+    }
+
+    int rowStride(int rowLength) {
+        if (!padded) {
+            return rowLength;
+        }
+        return (rowLength + ROW_ALIGNMENT - 1) / ROW_ALIGNMENT * ROW_ALIGNMENT;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.unrud.elektrometer;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Frames for benchmarks as tightly packed planar YUV 4:2:0 (I420) data.
+ * <p>
+ * Recorded frames are read from the file {@code <width>x<height>.yuv} in the directory given by the
+ * system property {@code elektrometer.frames}
+ * (e.g. {@code ffmpeg -i meter.mp4 -s 640x480 -pix_fmt yuv420p 640x480.yuv}).
+ * Without recorded frames, synthetic frames with a marker passing through the detection window
+ * are generated.
+ */
+final class FrameSource {
+    static final String FRAMES_PROPERTY = "elektrometer.frames";
+    private static final int SYNTHETIC_FRAME_COUNT = 16;
+    private static final int MAX_RECORDED_FRAME_COUNT = 64;
+
+    private FrameSource() {
+    }
+
+    static List<byte[]> load(int width, int height) throws IOException {
+        String framesDirectory = System.getProperty(FRAMES_PROPERTY);
+        if (framesDirectory != null) {
+            File file = new File(framesDirectory, width + "x" + height + ".yuv");
+            if (file.exists()) {
+                return loadRecorded(file, width, height);
+            }
+        }
+        return generateSynthetic(width, height);
+    }
+
+    private static List<byte[]> loadRecorded(File file, int width, int height) throws IOException {
+        int frameSize = width * height * 3 / 2;
+        List<byte[]> frames = new ArrayList<>();
+        try (DataInputStream inputStream = new DataInputStream(new FileInputStream(file))) {
+            long remaining = file.length();
+            while (remaining >= frameSize && frames.size() < MAX_RECORDED_FRAME_COUNT) {
+                byte[] frame = new byte[frameSize];
+                inputStream.readFully(frame);
+                frames.add(frame);
+                remaining -= frameSize;
+            }
+        }
+        if (frames.isEmpty()) {
+            throw new IOException("no frames in " + file);
+        }
+        return frames;
+    }
+
+    /**
+     * Noisy gray background with a red marker (matching the default settings) that moves
+     * horizontally through the middle of the image.
+     */
+    private static List<byte[]> generateSynthetic(int width, int height) {
+        Random random = new Random(0);
+        int chromaWidth = width / 2, chromaHeight = height / 2;
+        int markerWidth = width / 8, markerHeight = height / 10;
+        List<byte[]> frames = new ArrayList<>();
+        for (int i = 0; i < SYNTHETIC_FRAME_COUNT; i++) {
+            byte[] frame = new byte[width * height * 3 / 2];
+            int uOffset = width * height, vOffset = uOffset + chromaWidth * chromaHeight;
+            for (int j = 0; j < width * height; j++) {
+                frame[j] = (byte) (110 + random.nextInt(30));
+            }
+            for (int j = 0; j < chromaWidth * chromaHeight; j++) {
+                frame[uOffset + j] = (byte) (118 + random.nextInt(20));
+                frame[vOffset + j] = (byte) (118 + random.nextInt(20));
+            }
+            // the marker is visible in a quarter of the frames
+            int markerX = (i - SYNTHETIC_FRAME_COUNT / 2) * width / 4;
+            int markerY = (height - markerHeight) / 2;
+            for (int y = Math.max(0, markerY); y < Math.min(height, markerY + markerHeight); y++) {
+                for (int x = Math.max(0, markerX); x < Math.min(width, markerX + markerWidth); x++) {
+                    frame[y * width + x] = (byte) (80 + random.nextInt(20));
+                    int chromaIndex = (y / 2) * chromaWidth + x / 2;
+                    frame[uOffset + chromaIndex] = (byte) (96 + random.nextInt(12));
+                    frame[vOffset + chromaIndex] = (byte) (206 + random.nextInt(12));
+                }
+            }
+            frames.add(frame);
+        }
+        return frames;
+    }
+}
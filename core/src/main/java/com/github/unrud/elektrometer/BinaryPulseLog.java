@@ -0,0 +1,350 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.unrud.elektrometer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Compact detection log with millisecond time stamps.
+ * <p>
+ * File layout (big endian):
+ * <ul>
+ * <li>Header: magic {@code EMPL}, version, block capacity, reserved (4 bytes each)</li>
+ * <li>Blocks of fixed size: time stamp of the first pulse (8 bytes), number of pulses (4 bytes),
+ * {@link #BLOCK_CAPACITY} offsets from the first time stamp in milliseconds (4 bytes each)</li>
+ * </ul>
+ * The index file ({@code <file>.idx}) contains a header (magic {@code EMPI}, version) followed by
+ * an entry for the first pulse of every day (UTC): day since the unix epoch, block, record
+ * (4 bytes each).
+ * <p>
+ * Any time range can be located with the index and a binary search over the blocks. The search requires
+ * ascending time stamps, pulses before the last pulse (e.g. after the clock was turned back) are dropped.
+ */
+public class BinaryPulseLog implements PulseLog {
+    public static final int BLOCK_CAPACITY = 256;
+    public static final String INDEX_SUFFIX = ".idx";
+    private static final int MAGIC = 0x454d504c; // EMPL
+    private static final int INDEX_MAGIC = 0x454d5049; // EMPI
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int INDEX_HEADER_SIZE = 8;
+    private static final int INDEX_ENTRY_SIZE = 12;
+    private static final int BLOCK_HEADER_SIZE = 12;
+    private static final int RECORD_SIZE = 4;
+    private static final int BLOCK_SIZE = BLOCK_HEADER_SIZE + BLOCK_CAPACITY * RECORD_SIZE;
+    private static final long DAY = 24 * 60 * 60 * 1000;
+
+    private final RandomAccessFile file, indexFile;
+    private final FileChannel channel, indexChannel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(Math.max(BLOCK_HEADER_SIZE, INDEX_ENTRY_SIZE));
+    private int blockCount, blockPulseCount;
+    private long blockStartTime, lastIndexedDay = Long.MIN_VALUE, lastPulseTime = NO_PULSE;
+
+    /**
+     * Opens or creates the log and its index for appending.
+     */
+    public BinaryPulseLog(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "rw");
+        channel = this.file.getChannel();
+        indexFile = new RandomAccessFile(indexFile(file), "rw");
+        indexChannel = indexFile.getChannel();
+        try {
+            if (channel.size() == 0) {
+                writeHeader(channel, MAGIC, HEADER_SIZE);
+            } else {
+                checkHeader(channel, MAGIC, HEADER_SIZE);
+            }
+            // Blocks are always allocated completely, discard an incompletely allocated block
+            blockCount = (int) ((channel.size() - HEADER_SIZE) / BLOCK_SIZE);
+            while (blockCount > 0) {
+                readFully(channel, buffer, blockOffset(blockCount - 1), BLOCK_HEADER_SIZE);
+                blockStartTime = buffer.getLong();
+                blockPulseCount = buffer.getInt();
+                if (blockPulseCount < 0 || blockPulseCount > BLOCK_CAPACITY) {
+                    throw new IOException("corrupted block");
+                }
+                if (blockPulseCount > 0) {
+                    break;
+                }
+                // Discard empty block, its header might not have been written
+                blockCount--;
+            }
+            channel.truncate(blockOffset(blockCount));
+            if (blockCount > 0) {
+                readFully(channel, buffer, blockOffset(blockCount - 1) + BLOCK_HEADER_SIZE +
+                        (long) (blockPulseCount - 1) * RECORD_SIZE, RECORD_SIZE);
+                lastPulseTime = blockStartTime + buffer.getInt();
+            }
+            if (indexChannel.size() == 0) {
+                writeHeader(indexChannel, INDEX_MAGIC, INDEX_HEADER_SIZE);
+            } else {
+                checkHeader(indexChannel, INDEX_MAGIC, INDEX_HEADER_SIZE);
+            }
+            long indexEntryCount = (indexChannel.size() - INDEX_HEADER_SIZE) / INDEX_ENTRY_SIZE;
+            indexChannel.truncate(INDEX_HEADER_SIZE + indexEntryCount * INDEX_ENTRY_SIZE);
+            if (indexEntryCount > 0) {
+                readFully(indexChannel, buffer,
+                        INDEX_HEADER_SIZE + (indexEntryCount - 1) * INDEX_ENTRY_SIZE, INDEX_ENTRY_SIZE);
+                lastIndexedDay = buffer.getInt();
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return true when the file starts with the header of a binary pulse log
+     */
+    public static boolean isBinaryPulseLog(File file) throws IOException {
+        if (file.length() < HEADER_SIZE) {
+            return false;
+        }
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            return randomAccessFile.readInt() == MAGIC;
+        }
+    }
+
+    public static File indexFile(File file) {
+        return new File(file.getPath() + INDEX_SUFFIX);
+    }
+
+    private static long blockOffset(long block) {
+        return HEADER_SIZE + block * BLOCK_SIZE;
+    }
+
+    private static void writeHeader(FileChannel channel, int magic, int size) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(size);
+        header.putInt(magic).putInt(VERSION);
+        if (magic == MAGIC) {
+            header.putInt(BLOCK_CAPACITY).putInt(0);
+        }
+        header.flip();
+        writeFully(channel, header, 0);
+    }
+
+    private static void checkHeader(FileChannel channel, int magic, int size) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(size);
+        readFully(channel, header, 0, size);
+        if (header.getInt() != magic) {
+            throw new IOException("not a binary pulse log");
+        }
+        if (header.getInt() != VERSION || (magic == MAGIC && header.getInt() != BLOCK_CAPACITY)) {
+            throw new IOException("unsupported binary pulse log version");
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position, int length)
+            throws IOException {
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("unexpected end of file");
+            }
+        }
+        buffer.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    @Override
+    public void append(long wallClockTime) throws IOException {
+        if (lastPulseTime != NO_PULSE && wallClockTime < lastPulseTime) {
+            return;
+        }
+        long offset = wallClockTime - blockStartTime;
+        if (blockCount == 0 || blockPulseCount == BLOCK_CAPACITY || offset > Integer.MAX_VALUE) {
+            // Allocate the complete block before writing its header
+            writeFully(channel, ByteBuffer.allocate(1), blockOffset(blockCount + 1) - 1);
+            blockCount++;
+            blockStartTime = wallClockTime;
+            blockPulseCount = 0;
+            offset = 0;
+            buffer.clear();
+            buffer.putLong(blockStartTime).putInt(0).flip();
+            writeFully(channel, buffer, blockOffset(blockCount - 1));
+        }
+        // Write the record before updating the number of pulses in the block
+        buffer.clear();
+        buffer.putInt((int) offset).flip();
+        writeFully(channel, buffer, blockOffset(blockCount - 1) + BLOCK_HEADER_SIZE +
+                (long) blockPulseCount * RECORD_SIZE);
+        blockPulseCount++;
+        buffer.clear();
+        buffer.putInt(blockPulseCount).flip();
+        writeFully(channel, buffer, blockOffset(blockCount - 1) + 8);
+        long day = Math.floorDiv(wallClockTime, DAY);
+        if (day > lastIndexedDay) {
+            buffer.clear();
+            buffer.putInt((int) day).putInt(blockCount - 1).putInt(blockPulseCount - 1).flip();
+            writeFully(indexChannel, buffer, indexChannel.size());
+            lastIndexedDay = day;
+        }
+        lastPulseTime = wallClockTime;
+    }
+
+    @Override
+    public void flush() {
+        // Writes are not buffered
+    }
+
+    @Override
+    public long getLastPulseTime() {
+        return lastPulseTime;
+    }
+
+    @Override
+    public void sync() throws IOException {
+        channel.force(false);
+        indexChannel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            file.close();
+        } finally {
+            indexFile.close();
+        }
+    }
+
+    /**
+     * Reads pulses, starting with the first pulse or the position set by {@link #seek}.
+     */
+    public static class Reader implements PulseLogReader {
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        private final int[] indexDays, indexBlocks;
+        private final int blockCount;
+        private int currentBlock = -1, nextRecord, currentBlockPulseCount;
+        private long currentBlockStartTime;
+
+        public Reader(File file) throws IOException {
+            this.file = new RandomAccessFile(file, "r");
+            channel = this.file.getChannel();
+            try {
+                checkHeader(channel, MAGIC, HEADER_SIZE);
+                blockCount = (int) ((channel.size() - HEADER_SIZE) / BLOCK_SIZE);
+                int[] days = new int[0], blocks = new int[0];
+                File indexFile = indexFile(file);
+                if (indexFile.exists()) {
+                    try (RandomAccessFile index = new RandomAccessFile(indexFile, "r")) {
+                        FileChannel indexChannel = index.getChannel();
+                        checkHeader(indexChannel, INDEX_MAGIC, INDEX_HEADER_SIZE);
+                        int entryCount = (int) ((indexChannel.size() - INDEX_HEADER_SIZE) / INDEX_ENTRY_SIZE);
+                        ByteBuffer entries = ByteBuffer.allocate(entryCount * INDEX_ENTRY_SIZE);
+                        readFully(indexChannel, entries, INDEX_HEADER_SIZE, entries.capacity());
+                        days = new int[entryCount];
+                        blocks = new int[entryCount];
+                        for (int i = 0; i < entryCount; i++) {
+                            days[i] = entries.getInt();
+                            blocks[i] = entries.getInt();
+                            entries.getInt();
+                        }
+                    }
+                }
+                indexDays = days;
+                indexBlocks = blocks;
+            } catch (IOException e) {
+                this.file.close();
+                throw e;
+            }
+            seekBlock(0);
+        }
+
+        /**
+         * Positions the reader at the first pulse at or after {@code wallClockTime}.
+         */
+        public void seek(long wallClockTime) throws IOException {
+            // Narrow the binary search to the blocks of the day using the index
+            long day = Math.floorDiv(wallClockTime, DAY);
+            int low = 0, high = blockCount - 1;
+            for (int i = 0; i < indexDays.length; i++) {
+                if (indexDays[i] <= day) {
+                    low = Math.max(low, indexBlocks[i]);
+                } else {
+                    high = Math.min(high, indexBlocks[i]);
+                    break;
+                }
+            }
+            // Find the last block that starts at or before wallClockTime
+            int startBlock = low;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                readFully(channel, block, blockOffset(middle), 8);
+                if (block.getLong() <= wallClockTime) {
+                    startBlock = middle;
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            seekBlock(startBlock);
+            while (currentBlock < blockCount) {
+                while (nextRecord < currentBlockPulseCount) {
+                    if (currentBlockStartTime + recordOffset(nextRecord) >= wallClockTime) {
+                        return;
+                    }
+                    nextRecord++;
+                }
+                seekBlock(currentBlock + 1);
+            }
+        }
+
+        private void seekBlock(int blockIndex) throws IOException {
+            currentBlock = blockIndex;
+            nextRecord = 0;
+            currentBlockPulseCount = 0;
+            if (blockIndex >= blockCount) {
+                return;
+            }
+            readFully(channel, block, blockOffset(blockIndex), BLOCK_SIZE);
+            currentBlockStartTime = block.getLong();
+            currentBlockPulseCount = Math.min(BLOCK_CAPACITY, Math.max(0, block.getInt()));
+        }
+
+        private long recordOffset(int record) {
+            return block.getInt(BLOCK_HEADER_SIZE + record * RECORD_SIZE) & 0xffffffffL;
+        }
+
+        @Override
+        public long read() throws IOException {
+            while (currentBlock < blockCount) {
+                if (nextRecord < currentBlockPulseCount) {
+                    return currentBlockStartTime + recordOffset(nextRecord++);
+                }
+                seekBlock(currentBlock + 1);
+            }
+            return END;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.unrud.elektrometer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Proposes color and trigger settings from a recording of the detection window.
+ * <p>
+ * The window of every frame is downsampled into a ring buffer. The samples are split into background and
+ * marker by 2-means clustering in the UV plane, the marker being the smaller cluster. The distance
+ * threshold is placed between the marker samples and the closest background samples, the trigger
+ * thresholds are derived from the window fill of the recorded passes of the marker.
+ */
+public class Calibrator {
+    public static final int MAX_SAMPLES_PER_FRAME = 512;
+    private static final int MIN_CLUSTER_LUMA = 16;
+    private static final int CLUSTER_ITERATIONS = 20;
+    private static final double MIN_MARKER_FRACTION = 0.0002;
+    private static final double MARKER_DISTANCE_PERCENTILE = 0.9;
+    private static final double BACKGROUND_DISTANCE_PERCENTILE = 0.001;
+    private static final double MARKER_LUMA_PERCENTILE = 0.05;
+    private static final double LUMA_MARGIN = 0.8;
+    private static final int MIN_PASSES = 2;
+
+    private final byte[] samples; // Y, U and V of every sample
+    private final int[] frameSampleCount;
+    private final int frameCapacity;
+    private int frameCount, nextFrame;
+
+    /**
+     * @param frameCapacity number of frames that are kept, older frames are overwritten
+     */
+    public Calibrator(int frameCapacity) {
+        if (frameCapacity <= 0) {
+            throw new IllegalArgumentException("frameCapacity must be positive");
+        }
+        this.frameCapacity = frameCapacity;
+        samples = new byte[frameCapacity * MAX_SAMPLES_PER_FRAME * 3];
+        frameSampleCount = new int[frameCapacity];
+    }
+
+    /**
+     * Records the window of a frame.
+     * Doesn't change the positions of the buffers.
+     *
+     * @see DetectionEngine#getWindowStartX()
+     */
+    public void addFrame(int windowStartX, int windowEndX, int windowStartY, int windowEndY,
+                         ByteBuffer yBuffer, int yRowStride, int yPixelStride,
+                         ByteBuffer uBuffer, int uRowStride, int uPixelStride,
+                         ByteBuffer vBuffer, int vRowStride, int vPixelStride) {
+        int width = Math.max(0, windowEndX - windowStartX), height = Math.max(0, windowEndY - windowStartY);
+        int feed = Math.max(1, (int) Math.ceil(Math.sqrt((double) width * height / MAX_SAMPLES_PER_FRAME)));
+        while (((width + feed - 1) / feed) * ((height + feed - 1) / feed) > MAX_SAMPLES_PER_FRAME) {
+            feed++;
+        }
+        int offset = nextFrame * MAX_SAMPLES_PER_FRAME * 3;
+        int count = 0;
+        for (int y = windowStartY; y < windowEndY; y += feed) {
+            for (int x = windowStartX; x < windowEndX; x += feed) {
+                samples[offset++] = yBuffer.get(y * yRowStride + x * yPixelStride);
+                samples[offset++] = uBuffer.get((y / 2) * uRowStride + (x / 2) * uPixelStride);
+                samples[offset++] = vBuffer.get((y / 2) * vRowStride + (x / 2) * vPixelStride);
+                count++;
+            }
+        }
+        frameSampleCount[nextFrame] = count;
+        nextFrame = (nextFrame + 1) % frameCapacity;
+        frameCount = Math.min(frameCount + 1, frameCapacity);
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Can be called from another thread when no more frames are added.
+     */
+    public Result compute() throws CalibrationException {
+        // Histogram of the chroma of samples that are bright enough to have meaningful chroma
+        int[] histogram = new int[256 * 256];
+        long total = 0;
+        for (int frame = 0; frame < frameCount; frame++) {
+            int offset = frameOffset(frame);
+            for (int i = 0; i < frameSampleCount[frame]; i++, offset += 3) {
+                if ((samples[offset] & 0xff) >= MIN_CLUSTER_LUMA) {
+                    histogram[ColorLookupTable.index(samples[offset + 1] & 0xff, samples[offset + 2] & 0xff)]++;
+                    total++;
+                }
+            }
+        }
+        if (total == 0) {
+            throw new CalibrationException("the recording is empty or too dark");
+        }
+
+        // 2-means, starting with the most frequent color and the color that is far from it and frequent
+        int mode = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            if (histogram[i] > histogram[mode]) {
+                mode = i;
+            }
+        }
+        double backgroundU = mode >> 8, backgroundV = mode & 0xff;
+        double markerU = backgroundU, markerV = backgroundV, bestWeight = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            double weight = histogram[i] * squaredDistance(i, backgroundU, backgroundV);
+            if (weight > bestWeight) {
+                bestWeight = weight;
+                markerU = i >> 8;
+                markerV = i & 0xff;
+            }
+        }
+        if (bestWeight == 0) {
+            throw new CalibrationException("all samples have the same color");
+        }
+        long markerCount = 0;
+        for (int iteration = 0; iteration < CLUSTER_ITERATIONS; iteration++) {
+            double sumBackgroundU = 0, sumBackgroundV = 0, sumMarkerU = 0, sumMarkerV = 0;
+            long backgroundCount = 0;
+            markerCount = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                if (histogram[i] == 0) {
+                    continue;
+                }
+                if (squaredDistance(i, markerU, markerV) < squaredDistance(i, backgroundU, backgroundV)) {
+                    sumMarkerU += (double) histogram[i] * (i >> 8);
+                    sumMarkerV += (double) histogram[i] * (i & 0xff);
+                    markerCount += histogram[i];
+                } else {
+                    sumBackgroundU += (double) histogram[i] * (i >> 8);
+                    sumBackgroundV += (double) histogram[i] * (i & 0xff);
+                    backgroundCount += histogram[i];
+                }
+            }
+            if (markerCount == 0 || backgroundCount == 0) {
+                throw new CalibrationException("the marker can't be told apart from the background");
+            }
+            if (markerCount > backgroundCount) {
+                // The marker is the smaller cluster
+                double sumU = sumMarkerU, sumV = sumMarkerV;
+                long count = markerCount;
+                sumMarkerU = sumBackgroundU;
+                sumMarkerV = sumBackgroundV;
+                markerCount = backgroundCount;
+                sumBackgroundU = sumU;
+                sumBackgroundV = sumV;
+                backgroundCount = count;
+            }
+            markerU = sumMarkerU / markerCount;
+            markerV = sumMarkerV / markerCount;
+            backgroundU = sumBackgroundU / backgroundCount;
+            backgroundV = sumBackgroundV / backgroundCount;
+        }
+        if (markerCount < total * MIN_MARKER_FRACTION) {
+            throw new CalibrationException("the marker wasn't seen, record while the marker passes the window");
+        }
+
+        // Distances of the clusters to the marker color
+        List<double[]> markerDistances = new ArrayList<>(), backgroundDistances = new ArrayList<>();
+        for (int i = 0; i < histogram.length; i++) {
+            if (histogram[i] == 0) {
+                continue;
+            }
+            double[] distance = {Math.sqrt(squaredDistance(i, markerU, markerV)), histogram[i]};
+            if (squaredDistance(i, markerU, markerV) < squaredDistance(i, backgroundU, backgroundV)) {
+                markerDistances.add(distance);
+            } else {
+                backgroundDistances.add(distance);
+            }
+        }
+        double markerDistance = percentile(markerDistances, MARKER_DISTANCE_PERCENTILE);
+        double backgroundDistance = percentile(backgroundDistances, BACKGROUND_DISTANCE_PERCENTILE);
+        double distanceThreshold = markerDistance < backgroundDistance ?
+                (markerDistance + backgroundDistance) / 2 : backgroundDistance;
+        double separation = markerDistance > 0 ? backgroundDistance / markerDistance : Double.POSITIVE_INFINITY;
+
+        // Luma below which the marker samples are ignored
+        int[] markerLumaHistogram = new int[256];
+        long markerLumaCount = 0;
+        for (int frame = 0; frame < frameCount; frame++) {
+            int offset = frameOffset(frame);
+            for (int i = 0; i < frameSampleCount[frame]; i++, offset += 3) {
+                if (sampleDistance(offset, markerU, markerV) <= distanceThreshold) {
+                    markerLumaHistogram[samples[offset] & 0xff]++;
+                    markerLumaCount++;
+                }
+            }
+        }
+        int markerLuma = 0;
+        for (long count = 0; markerLuma < 255; markerLuma++) {
+            count += markerLumaHistogram[markerLuma];
+            if (count > markerLumaCount * MARKER_LUMA_PERCENTILE) {
+                break;
+            }
+        }
+        int lumaThreshold = (int) (markerLuma * LUMA_MARGIN);
+
+        // Window fill of the recorded frames with the proposed color settings
+        List<Integer> passPeaks = new ArrayList<>();
+        int passPeak = 0;
+        for (int frame = 0; frame < frameCount; frame++) {
+            int offset = frameOffset(frame);
+            int matches = 0;
+            for (int i = 0; i < frameSampleCount[frame]; i++, offset += 3) {
+                if ((samples[offset] & 0xff) >= lumaThreshold &&
+                        sampleDistance(offset, markerU, markerV) <= distanceThreshold) {
+                    matches++;
+                }
+            }
+            int fill = frameSampleCount[frame] == 0 ? 0 : 100 * matches / frameSampleCount[frame];
+            if (fill > 0) {
+                passPeak = Math.max(passPeak, fill);
+            } else if (passPeak > 0) {
+                passPeaks.add(passPeak);
+                passPeak = 0;
+            }
+        }
+        if (passPeak > 0) {
+            passPeaks.add(passPeak);
+        }
+        if (passPeaks.size() < MIN_PASSES) {
+            throw new CalibrationException("the marker passed the window less than " + MIN_PASSES +
+                    " times, record longer");
+        }
+        Integer[] sortedPeaks = passPeaks.toArray(new Integer[0]);
+        Arrays.sort(sortedPeaks);
+        int typicalPeak = sortedPeaks[sortedPeaks.length / 2];
+
+        return new Result(toPercent(markerU), toPercent(markerV),
+                Math.min(100, (int) Math.ceil(distanceThreshold * 100 / 255)),
+                lumaThreshold * 100 / 255,
+                Math.max(2, typicalPeak / 2), Math.max(1, typicalPeak / 4),
+                passPeaks.size(), separation);
+    }
+
+    private int frameOffset(int frame) {
+        // oldest frame first
+        int index = (nextFrame - frameCount + frame + frameCapacity) % frameCapacity;
+        return index * MAX_SAMPLES_PER_FRAME * 3;
+    }
+
+    private static double squaredDistance(int index, double u, double v) {
+        double diffU = (index >> 8) - u, diffV = (index & 0xff) - v;
+        return diffU * diffU + diffV * diffV;
+    }
+
+    private double sampleDistance(int offset, double u, double v) {
+        double diffU = (samples[offset + 1] & 0xff) - u, diffV = (samples[offset + 2] & 0xff) - v;
+        return Math.sqrt(diffU * diffU + diffV * diffV);
+    }
+
+    /**
+     * @param values pairs of value and weight
+     */
+    private static double percentile(List<double[]> values, double percentile) {
+        if (values.isEmpty()) {
+            return Double.POSITIVE_INFINITY;
+        }
+        values.sort((a, b) -> Double.compare(a[0], b[0]));
+        double total = 0;
+        for (double[] value : values) {
+            total += value[1];
+        }
+        double count = 0;
+        for (double[] value : values) {
+            count += value[1];
+            if (count >= total * percentile) {
+                return value[0];
+            }
+        }
+        return values.get(values.size() - 1)[0];
+    }
+
+    private static int toPercent(double value) {
+        return (int) Math.round(value * 100 / 255);
+    }
+
+    /**
+     * Proposed settings in the units of {@link CameraSettings}.
+     */
+    public static class Result {
+        public final int colorBlueProjection, colorRedProjection, colorDistanceThreshold, colorLumaThreshold,
+                triggerFillThreshold, triggerFillResetThreshold;
+        /**
+         * Number of passes of the marker in the recording
+         */
+        public final int passes;
+        /**
+         * Distance of the closest background colors divided by the spread of the marker colors,
+         * marker and background overlap below 1
+         */
+        public final double separation;
+
+        private Result(int colorBlueProjection, int colorRedProjection, int colorDistanceThreshold,
+                       int colorLumaThreshold, int triggerFillThreshold, int triggerFillResetThreshold,
+                       int passes, double separation) {
+            this.colorBlueProjection = colorBlueProjection;
+            this.colorRedProjection = colorRedProjection;
+            this.colorDistanceThreshold = colorDistanceThreshold;
+            this.colorLumaThreshold = colorLumaThreshold;
+            this.triggerFillThreshold = triggerFillThreshold;
+            this.triggerFillResetThreshold = triggerFillResetThreshold;
+            this.passes = passes;
+            this.separation = separation;
+        }
+    }
+
+    public static class CalibrationException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public CalibrationException(String message) {
+            super(message);
+        }
+    }
+}
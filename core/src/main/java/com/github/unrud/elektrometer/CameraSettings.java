@@ -0,0 +1,139 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.unrud.elektrometer;
+
+import java.util.Map;
+
+/**
+ * Immutable and validated snapshot of the settings.
+ * <p>
+ * Parsed once when the settings change, so it can be shared with the camera thread and read on
+ * every frame.
+ */
+public final class CameraSettings {
+    public static final String PREVIEW_MODE_FULL = "full";
+    public static final String PREVIEW_MODE_DOWNSCALED = "downscaled";
+    public static final String PREVIEW_MODE_WINDOW = "window";
+
+    public final boolean cameraFlash, cameraAdaptiveFrameRate, detectionParallel, triggerInterpolation,
+            triggerTracking, logBinary, logCompress, webServer;
+    public final int cameraRotation, cameraExposureCompensation, windowHeight, windowOffset,
+            colorBlueProjection, colorRedProjection, colorDistanceThreshold, colorLumaThreshold,
+            triggerFillThreshold, triggerFillResetThreshold, triggerResetTime,
+            logSyncInterval, logSyncCount, logRetention, webServerPort;
+    public final String previewMode, colorRegions;
+
+    private CameraSettings(Map<String, ?> values) throws IllegalArgumentException, ClassCastException {
+        cameraRotation = getInt(values, "cameraRotation");
+        cameraFlash = getBoolean(values, "cameraFlash");
+        cameraExposureCompensation = getInt(values, "cameraExposureCompensation");
+        cameraAdaptiveFrameRate = getBoolean(values, "cameraAdaptiveFrameRate");
+        previewMode = getString(values, "previewMode");
+        windowHeight = getInt(values, "windowHeight");
+        windowOffset = getInt(values, "windowOffset");
+        detectionParallel = getBoolean(values, "detectionParallel");
+        colorBlueProjection = getInt(values, "colorBlueProjection");
+        colorRedProjection = getInt(values, "colorRedProjection");
+        colorDistanceThreshold = getInt(values, "colorDistanceThreshold");
+        colorLumaThreshold = getInt(values, "colorLumaThreshold");
+        colorRegions = getString(values, "colorRegions", "");
+        triggerFillThreshold = getInt(values, "triggerFillThreshold");
+        triggerFillResetThreshold = getInt(values, "triggerFillResetThreshold");
+        triggerResetTime = getInt(values, "triggerResetTime");
+        triggerInterpolation = getBoolean(values, "triggerInterpolation");
+        triggerTracking = getBoolean(values, "triggerTracking");
+        logSyncInterval = getInt(values, "logSyncInterval");
+        logSyncCount = getInt(values, "logSyncCount");
+        logBinary = getBoolean(values, "logBinary");
+        logCompress = getBoolean(values, "logCompress");
+        logRetention = getInt(values, "logRetention", 0);
+        webServer = getBoolean(values, "webServer");
+        webServerPort = getInt(values, "webServerPort");
+    }
+
+    /**
+     * @param values e.g. from {@code SharedPreferences.getAll()}, numbers are stored as strings
+     * @return null when a value is missing or invalid
+     */
+    public static CameraSettings parse(Map<String, ?> values) {
+        CameraSettings settings;
+        try {
+            settings = new CameraSettings(values);
+        } catch (IllegalArgumentException | ClassCastException e) {
+            return null;
+        }
+        return settings.isValid() ? settings : null;
+    }
+
+    private static String getString(Map<String, ?> values, String key) {
+        Object value = values.get(key);
+        if (value == null) {
+            throw new IllegalArgumentException("missing value: " + key);
+        }
+        return (String) value;
+    }
+
+    private static String getString(Map<String, ?> values, String key, String defaultValue) {
+        Object value = values.get(key);
+        return value == null ? defaultValue : (String) value;
+    }
+
+    private static int getInt(Map<String, ?> values, String key) {
+        return Integer.parseInt(getString(values, key));
+    }
+
+    private static int getInt(Map<String, ?> values, String key, int defaultValue) {
+        Object value = values.get(key);
+        return value == null ? defaultValue : Integer.parseInt((String) value);
+    }
+
+    /**
+     * @return false when missing
+     */
+    private static boolean getBoolean(Map<String, ?> values, String key) {
+        Object value = values.get(key);
+        return value != null && (Boolean) value;
+    }
+
+    private boolean isValid() {
+        return (cameraRotation == 0 || cameraRotation == 90 || cameraRotation == 180 || cameraRotation == 270) &&
+                windowHeight >= 0 && windowHeight <= 100 && windowOffset >= 0 && windowOffset <= 100 && windowHeight + windowOffset <= 100 &&
+                colorBlueProjection >= 0 && colorBlueProjection <= 100 &&
+                colorRedProjection >= 0 && colorRedProjection <= 100 &&
+                colorDistanceThreshold >= 0 && colorDistanceThreshold <= 100 &&
+                colorLumaThreshold >= 0 && colorLumaThreshold <= 100 &&
+                triggerFillThreshold >= 0 && triggerFillThreshold <= 100 &&
+                triggerFillResetThreshold >= 0 && triggerFillResetThreshold <= 100 &&
+                triggerResetTime >= 0 &&
+                logSyncInterval >= 0 && logSyncCount >= 0 && logRetention >= 0 &&
+                webServerPort >= 1024 && webServerPort <= 65535 &&
+                (previewMode.equals(PREVIEW_MODE_FULL) || previewMode.equals(PREVIEW_MODE_DOWNSCALED) ||
+                        previewMode.equals(PREVIEW_MODE_WINDOW)) &&
+                isValidColorRegions(colorRegions);
+    }
+
+    private static boolean isValidColorRegions(String colorRegions) {
+        try {
+            ColorLookupTable.parseRegions(colorRegions);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.unrud.elektrometer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Classifies the chroma (U and V) of a pixel with a single table lookup.
+ * <p>
+ * The table contains the union of regions in the UV plane. Additional regions are specified in the same
+ * scale as the color settings (0-100 maps to 0-255) and separated by {@code ;}:
+ * <ul>
+ * <li>{@code circle U V RADIUS}</li>
+ * <li>{@code ellipse U V RADIUS_U RADIUS_V [ANGLE]}, rotated counterclockwise by ANGLE degrees</li>
+ * <li>{@code polygon U1 V1 U2 V2 U3 V3 ...}</li>
+ * </ul>
+ */
+public final class ColorLookupTable {
+    private static final int SIZE = 256;
+
+    private final boolean[] table = new boolean[SIZE * SIZE];
+
+    public ColorLookupTable(List<? extends Region> regions) {
+        for (int u = 0; u < SIZE; u++) {
+            for (int v = 0; v < SIZE; v++) {
+                for (Region region : regions) {
+                    if (region.contains(u, v)) {
+                        table[index(u, v)] = true;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    public static int index(int u, int v) {
+        return u << 8 | v;
+    }
+
+    public boolean matches(int u, int v) {
+        return table[index(u, v)];
+    }
+
+    /**
+     * @return table indexed by {@link #index(int, int)}, must not be modified
+     */
+    boolean[] getTable() {
+        return table;
+    }
+
+    /**
+     * @return regions in the format described above, empty for an empty string
+     * @throws IllegalArgumentException the specification is invalid
+     */
+    public static List<Region> parseRegions(String specification) throws IllegalArgumentException {
+        List<Region> regions = new ArrayList<>();
+        for (String regionSpecification : specification.split(";")) {
+            String[] parts = regionSpecification.trim().split("\\s+");
+            if (parts.length == 1 && parts[0].isEmpty()) {
+                continue;
+            }
+            double[] values = new double[parts.length - 1];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = Double.parseDouble(parts[i + 1]);
+                if (Double.isNaN(values[i]) || Double.isInfinite(values[i])) {
+                    throw new IllegalArgumentException("invalid number: " + parts[i + 1]);
+                }
+            }
+            switch (parts[0].toLowerCase(Locale.US)) {
+                case "circle":
+                    if (values.length != 3) {
+                        throw new IllegalArgumentException("circle needs U, V and radius");
+                    }
+                    regions.add(new Ellipse(scale(values[0]), scale(values[1]), scale(values[2]), scale(values[2]), 0));
+                    break;
+                case "ellipse":
+                    if (values.length != 4 && values.length != 5) {
+                        throw new IllegalArgumentException("ellipse needs U, V, two radii and optionally an angle");
+                    }
+                    regions.add(new Ellipse(scale(values[0]), scale(values[1]), scale(values[2]), scale(values[3]),
+                            values.length == 5 ? values[4] : 0));
+                    break;
+                case "polygon":
+                    if (values.length < 6 || values.length % 2 != 0) {
+                        throw new IllegalArgumentException("polygon needs at least three points");
+                    }
+                    double[] points = new double[values.length];
+                    for (int i = 0; i < values.length; i++) {
+                        points[i] = scale(values[i]);
+                    }
+                    regions.add(new Polygon(points));
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown region: " + parts[0]);
+            }
+        }
+        return Collections.unmodifiableList(regions);
+    }
+
+    private static double scale(double percent) {
+        return percent * 255 / 100;
+    }
+
+    public interface Region {
+        /**
+         * @param u 0-255
+         * @param v 0-255
+         */
+        boolean contains(int u, int v);
+    }
+
+    public static class Ellipse implements Region {
+        private final double centerU, centerV, radiusU, radiusV, cos, sin;
+
+        /**
+         * @param angle counterclockwise rotation in degrees
+         */
+        public Ellipse(double centerU, double centerV, double radiusU, double radiusV, double angle) {
+            if (radiusU < 0 || radiusV < 0) {
+                throw new IllegalArgumentException("negative radius");
+            }
+            this.centerU = centerU;
+            this.centerV = centerV;
+            this.radiusU = radiusU;
+            this.radiusV = radiusV;
+            cos = Math.cos(Math.toRadians(angle));
+            sin = Math.sin(Math.toRadians(angle));
+        }
+
+        @Override
+        public boolean contains(int u, int v) {
+            double diffU = u - centerU, diffV = v - centerV;
+            if (radiusU == radiusV) {
+                // exact for circles with integer parameters
+                return diffU * diffU + diffV * diffV <= radiusU * radiusU;
+            }
+            if (radiusU == 0 || radiusV == 0) {
+                return false;
+            }
+            // rotate into the axes of the ellipse
+            double axisU = (diffU * cos + diffV * sin) / radiusU;
+            double axisV = (diffV * cos - diffU * sin) / radiusV;
+            return axisU * axisU + axisV * axisV <= 1;
+        }
+    }
+
+    public static class Polygon implements Region {
+        private final double[] points;
+
+        /**
+         * @param points U and V of the corners
+         */
+        public Polygon(double[] points) {
+            this.points = points.clone();
+        }
+
+        @Override
+        public boolean contains(int u, int v) {
+            // even-odd rule
+            boolean inside = false;
+            for (int i = 0, j = points.length - 2; i < points.length; j = i, i += 2) {
+                double u1 = points[i], v1 = points[i + 1], u2 = points[j], v2 = points[j + 1];
+                if ((v1 > v) != (v2 > v) && u < u1 + (v - v1) * (u2 - u1) / (v2 - v1)) {
+                    inside = !inside;
+                }
+            }
+            return inside;
+        }
+    }
+}
@@ -0,0 +1,457 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.unrud.elektrometer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Detects the marker in the detection window of YUV 4:2:0 images.
+ * <p>
+ * Everything that only depends on the image size and the settings is precomputed by
+ * {@link #configure} and {@link #configureTrigger}, processing a frame doesn't allocate.
+ */
+public class DetectionEngine {
+    public static final int PREFERRED_IMAGE_RESOLUTION = 320 * 240 * 4;  // u and v plane have quarter resolution
+
+    private boolean configured, fullResolution;
+    private int imageWidth, imageHeight, cameraRotation, windowHeight, windowOffset,
+            colorBlueProjection, colorRedProjection, colorDistanceThreshold, colorLumaThreshold;
+    private String colorRegions = "";
+    private List<ColorLookupTable.Region> colorRegionList = Collections.emptyList();
+    private int xStart, xEnd, yStart, yEnd, windowResolution, lineAndColumnFeed, fillCountPerMatch,
+            yThreshold;
+    private ColorLookupTable colorLookupTable;
+    private final ScanContext scanContext = new ScanContext();
+    private float markerPosition = Float.NaN;
+    private int triggerFillThreshold, triggerArmFillThreshold, triggerResetTime;
+    private long triggerResetTimeRunningSinceTime, previousTime, triggerTime;
+    private int previousWindowFill;
+    private boolean triggerArmed, triggerInterpolation, hasPreviousFrame;
+
+    /**
+     * Precomputes the detection window and color thresholds.
+     * Does nothing when the arguments are unchanged since the last call.
+     *
+     * @param fullResolution scan every pixel of the window instead of skipping lines and columns
+     *                       when the image is larger than {@link #PREFERRED_IMAGE_RESOLUTION}
+     */
+    public void configure(int imageWidth, int imageHeight, int cameraRotation, int windowHeight, int windowOffset,
+                          int colorBlueProjection, int colorRedProjection, int colorDistanceThreshold,
+                          int colorLumaThreshold, boolean fullResolution) {
+        if (configured && this.fullResolution == fullResolution && this.imageWidth == imageWidth && this.imageHeight == imageHeight &&
+                this.cameraRotation == cameraRotation && this.windowHeight == windowHeight &&
+                this.windowOffset == windowOffset && this.colorBlueProjection == colorBlueProjection &&
+                this.colorRedProjection == colorRedProjection &&
+                this.colorDistanceThreshold == colorDistanceThreshold &&
+                this.colorLumaThreshold == colorLumaThreshold) {
+            return;
+        }
+        configured = true;
+        this.fullResolution = fullResolution;
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+        this.cameraRotation = cameraRotation;
+        this.windowHeight = windowHeight;
+        this.windowOffset = windowOffset;
+        this.colorBlueProjection = colorBlueProjection;
+        this.colorRedProjection = colorRedProjection;
+        this.colorDistanceThreshold = colorDistanceThreshold;
+        this.colorLumaThreshold = colorLumaThreshold;
+
+        if (cameraRotation % 180 == 0) {
+            xStart = 0;
+            xEnd = imageWidth;
+            if (cameraRotation == 0) {
+                yStart = imageHeight * windowOffset / 100;
+                yEnd = yStart + imageHeight * windowHeight / 100;
+            } else {
+                yEnd = imageHeight * (100 - windowOffset) / 100;
+                yStart = yEnd - imageHeight * windowHeight / 100;
+            }
+        } else {
+            yStart = 0;
+            yEnd = imageHeight;
+            if (cameraRotation == 90) {
+                xStart = imageWidth * windowOffset / 100;
+                xEnd = xStart + imageWidth * windowHeight / 100;
+            } else {
+                xEnd = imageWidth * (100 - windowOffset) / 100;
+                xStart = xEnd - imageWidth * windowHeight / 100;
+            }
+        }
+        xStart = Math.max(0, xStart);
+        xEnd = Math.min(imageWidth, xEnd);
+        yStart = Math.max(0, yStart);
+        yEnd = Math.min(imageHeight, yEnd);
+        windowResolution = Math.max(0, xEnd - xStart) * Math.max(0, yEnd - yStart);
+
+        yThreshold = colorLumaThreshold * 255 / 100;
+        buildColorLookupTable();
+        if (fullResolution) {
+            lineAndColumnFeed = 1;
+        } else {
+            // Skip lines and columns in detection window when resolution is multiple of preferred resolution
+            int imageResolution = imageWidth * imageHeight;
+            lineAndColumnFeed = Math.max(1, (int) Math.sqrt(
+                    (float) imageResolution / (float) PREFERRED_IMAGE_RESOLUTION));
+            lineAndColumnFeed *= 2;  // u and v plane have quarter resolution
+        }
+        fillCountPerMatch = lineAndColumnFeed * lineAndColumnFeed;
+    }
+
+    /**
+     * Sets marker colors in addition to the circle around the blue and red projection.
+     * Does nothing when unchanged since the last call.
+     *
+     * @param colorRegions see {@link ColorLookupTable}
+     * @throws IllegalArgumentException the regions are invalid
+     */
+    public void configureColorRegions(String colorRegions) throws IllegalArgumentException {
+        if (this.colorRegions.equals(colorRegions)) {
+            return;
+        }
+        colorRegionList = ColorLookupTable.parseRegions(colorRegions);
+        this.colorRegions = colorRegions;
+        if (configured) {
+            buildColorLookupTable();
+        }
+    }
+
+    private void buildColorLookupTable() {
+        List<ColorLookupTable.Region> regions = new ArrayList<>();
+        int distanceThreshold = colorDistanceThreshold * 255 / 100;
+        regions.add(new ColorLookupTable.Ellipse(colorBlueProjection * 255 / 100, colorRedProjection * 255 / 100,
+                distanceThreshold, distanceThreshold, 0));
+        regions.addAll(colorRegionList);
+        colorLookupTable = new ColorLookupTable(regions);
+    }
+
+    /**
+     * Sets the hysteresis of the trigger.
+     * The trigger is armed when the window fill falls below {@code triggerFillResetThreshold} and
+     * at least {@code triggerResetTime} milliseconds have passed since it was at or above it.
+     *
+     * @param triggerInterpolation estimate when the window fill crossed {@code triggerFillThreshold}
+     *                             between the previous and the triggering frame
+     */
+    public void configureTrigger(int triggerFillThreshold, int triggerFillResetThreshold, int triggerResetTime,
+                                 boolean triggerInterpolation) {
+        this.triggerFillThreshold = triggerFillThreshold;
+        this.triggerArmFillThreshold = Math.min(triggerFillThreshold, triggerFillResetThreshold);
+        this.triggerResetTime = triggerResetTime;
+        this.triggerInterpolation = triggerInterpolation;
+    }
+
+    /**
+     * @return percentage of the detection window that matches the marker color
+     */
+    public int measureWindowFill(ByteBuffer yBuffer, int yRowStride, int yPixelStride,
+                                 ByteBuffer uBuffer, int uRowStride, int uPixelStride,
+                                 ByteBuffer vBuffer, int vRowStride, int vPixelStride) {
+        checkConfigured();
+        int matchCount = countMatches(yStart, yEnd, yBuffer, yRowStride, yPixelStride,
+                uBuffer, uRowStride, uPixelStride, vBuffer, vRowStride, vPixelStride, scanContext);
+        return finishScan(matchCount, scanContext.matchSumX, scanContext.matchSumY);
+    }
+
+    /**
+     * Counts the matching samples in the rows from {@code bandStartY} (inclusive, aligned to
+     * {@link #getLineAndColumnFeed()}) to {@code bandEndY} (exclusive) of the window.
+     * The sums of the coordinates of the matching samples are stored in {@code scanContext}.
+     * <p>
+     * Rows of the common layouts (packed Y and planar or semi-planar UV) are copied in bulk and scanned
+     * from arrays, the others are read sample by sample. The bulk copies move the positions of the
+     * buffers, they are restored afterwards. Concurrent scans need their own duplicates of the buffers.
+     */
+    int countMatches(int bandStartY, int bandEndY,
+                     ByteBuffer yBuffer, int yRowStride, int yPixelStride,
+                     ByteBuffer uBuffer, int uRowStride, int uPixelStride,
+                     ByteBuffer vBuffer, int vRowStride, int vPixelStride, ScanContext scanContext) {
+        if (yPixelStride == 1 && uPixelStride == vPixelStride && (uPixelStride == 1 || uPixelStride == 2)) {
+            return countMatchesRowWise(bandStartY, bandEndY, yBuffer, yRowStride,
+                    uBuffer, uRowStride, vBuffer, vRowStride, uPixelStride, scanContext);
+        }
+        final int feed = lineAndColumnFeed, xStart = this.xStart, xEnd = this.xEnd,
+                yThreshold = this.yThreshold;
+        final boolean[] colorTable = colorLookupTable.getTable();
+        int matchCount = 0;
+        long matchSumX = 0, matchSumY = 0;
+        for (int y = bandStartY; y < bandEndY; y += feed) {
+            int yRowOffset = y * yRowStride;
+            int uRowOffset = (y / 2) * uRowStride;
+            int vRowOffset = (y / 2) * vRowStride;
+            for (int x = xStart; x < xEnd; x += feed) {
+                int pixelY = yBuffer.get(yRowOffset + x * yPixelStride) & 0xff;
+                if (pixelY < yThreshold) {
+                    continue;
+                }
+                int pixelU = uBuffer.get(uRowOffset + (x / 2) * uPixelStride) & 0xff;
+                int pixelV = vBuffer.get(vRowOffset + (x / 2) * vPixelStride) & 0xff;
+                if (colorTable[ColorLookupTable.index(pixelU, pixelV)]) {
+                    matchCount++;
+                    matchSumX += x;
+                    matchSumY += y;
+                }
+            }
+        }
+        scanContext.matchSumX = matchSumX;
+        scanContext.matchSumY = matchSumY;
+        return matchCount;
+    }
+
+    private int countMatchesRowWise(int bandStartY, int bandEndY, ByteBuffer yBuffer, int yRowStride,
+                                    ByteBuffer uBuffer, int uRowStride, ByteBuffer vBuffer, int vRowStride,
+                                    int uvPixelStride, ScanContext scanContext) {
+        final int feed = lineAndColumnFeed, xStart = this.xStart, yThreshold = this.yThreshold;
+        final boolean[] colorTable = colorLookupTable.getTable();
+        final int width = xEnd - xStart;
+        scanContext.matchSumX = scanContext.matchSumY = 0;
+        if (width <= 0 || bandStartY >= bandEndY) {
+            return 0;
+        }
+        // The row copies start at the chroma sample of xStart and end at the chroma sample of the last pixel
+        final int uvStart = xStart / 2;
+        final int uvLength = ((xEnd - 1) / 2 - uvStart) * uvPixelStride + 1;
+        scanContext.ensureCapacity(width, uvLength);
+        final byte[] rowY = scanContext.y, rowU = scanContext.u, rowV = scanContext.v;
+        // Duplicating the buffers would allocate for every frame
+        final int yPosition = yBuffer.position(), uPosition = uBuffer.position(), vPosition = vBuffer.position();
+        int matchCount = 0;
+        long matchSumX = 0, matchSumY = 0;
+        try {
+            for (int y = bandStartY; y < bandEndY; y += feed) {
+                yBuffer.position(y * yRowStride + xStart);
+                yBuffer.get(rowY, 0, width);
+                uBuffer.position((y / 2) * uRowStride + uvStart * uvPixelStride);
+                uBuffer.get(rowU, 0, uvLength);
+                vBuffer.position((y / 2) * vRowStride + uvStart * uvPixelStride);
+                vBuffer.get(rowV, 0, uvLength);
+                for (int x = 0; x < width; x += feed) {
+                    if ((rowY[x] & 0xff) < yThreshold) {
+                        continue;
+                    }
+                    int uv = ((xStart + x) / 2 - uvStart) * uvPixelStride;
+                    if (colorTable[ColorLookupTable.index(rowU[uv] & 0xff, rowV[uv] & 0xff)]) {
+                        matchCount++;
+                        matchSumX += xStart + x;
+                        matchSumY += y;
+                    }
+                }
+            }
+        } finally {
+            yBuffer.position(yPosition);
+            uBuffer.position(uPosition);
+            vBuffer.position(vPosition);
+        }
+        scanContext.matchSumX = matchSumX;
+        scanContext.matchSumY = matchSumY;
+        return matchCount;
+    }
+
+    /**
+     * Reusable row copies and results of a scan, must not be shared between threads.
+     */
+    static final class ScanContext {
+        private byte[] y = new byte[0], u = new byte[0], v = new byte[0];
+        long matchSumX, matchSumY;
+
+        private void ensureCapacity(int yLength, int uvLength) {
+            if (y.length < yLength) {
+                y = new byte[yLength];
+            }
+            if (u.length < uvLength) {
+                u = new byte[uvLength];
+                v = new byte[uvLength];
+            }
+        }
+    }
+
+    /**
+     * @see #measureWindowFill(ByteBuffer, int, int, ByteBuffer, int, int, ByteBuffer, int, int)
+     */
+    public int measureWindowFill(byte[] yPlane, int yRowStride, int yPixelStride,
+                                 byte[] uPlane, int uRowStride, int uPixelStride,
+                                 byte[] vPlane, int vRowStride, int vPixelStride) {
+        checkConfigured();
+        final int feed = lineAndColumnFeed, yThreshold = this.yThreshold;
+        final boolean[] colorTable = colorLookupTable.getTable();
+        int windowFillCount = 0;
+        long matchSumX = 0, matchSumY = 0;
+        for (int y = yStart; y < yEnd; y += feed) {
+            int yRowOffset = y * yRowStride;
+            int uRowOffset = (y / 2) * uRowStride;
+            int vRowOffset = (y / 2) * vRowStride;
+            for (int x = xStart; x < xEnd; x += feed) {
+                int pixelY = yPlane[yRowOffset + x * yPixelStride] & 0xff;
+                if (pixelY < yThreshold) {
+                    continue;
+                }
+                int pixelU = uPlane[uRowOffset + (x / 2) * uPixelStride] & 0xff;
+                int pixelV = vPlane[vRowOffset + (x / 2) * vPixelStride] & 0xff;
+                if (colorTable[ColorLookupTable.index(pixelU, pixelV)]) {
+                    windowFillCount++;
+                    matchSumX += x;
+                    matchSumY += y;
+                }
+            }
+        }
+        return finishScan(windowFillCount, matchSumX, matchSumY);
+    }
+
+    /**
+     * Renders the detection window at full resolution for the preview.
+     * Samples that match the marker color are set to {@code matchColor}, the others to their luma.
+     *
+     * @param pixels ARGB pixels, row by row with the width of the window
+     */
+    public void renderWindow(ByteBuffer yBuffer, int yRowStride, int yPixelStride,
+                             ByteBuffer uBuffer, int uRowStride, int uPixelStride,
+                             ByteBuffer vBuffer, int vRowStride, int vPixelStride,
+                             int[] pixels, int matchColor) {
+        checkConfigured();
+        int i = 0;
+        for (int y = yStart; y < yEnd; y++) {
+            int yRowOffset = y * yRowStride;
+            int uRowOffset = (y / 2) * uRowStride;
+            int vRowOffset = (y / 2) * vRowStride;
+            for (int x = xStart; x < xEnd; x++) {
+                int pixelY = yBuffer.get(yRowOffset + x * yPixelStride) & 0xff;
+                int pixelU = uBuffer.get(uRowOffset + (x / 2) * uPixelStride) & 0xff;
+                int pixelV = vBuffer.get(vRowOffset + (x / 2) * vPixelStride) & 0xff;
+                if (pixelY >= yThreshold && colorLookupTable.matches(pixelU, pixelV)) {
+                    pixels[i++] = matchColor;
+                } else {
+                    pixels[i++] = 0xff000000 | pixelY << 16 | pixelY << 8 | pixelY;
+                }
+            }
+        }
+    }
+
+    /**
+     * Advances the trigger state machine.
+     *
+     * @param time capture time of the frame in milliseconds, from a monotonic clock
+     * @return true when the marker was detected
+     */
+    public boolean updateTrigger(int windowFill, long time) {
+        if (windowFill >= triggerArmFillThreshold) {
+            triggerResetTimeRunningSinceTime = time;
+        } else if (time - triggerResetTimeRunningSinceTime > triggerResetTime) {
+            triggerArmed = true;
+        }
+        boolean triggered = triggerArmed && windowFill >= triggerFillThreshold;
+        if (triggered) {
+            triggerArmed = false;
+            triggerTime = time;
+            if (triggerInterpolation && hasPreviousFrame && previousWindowFill < triggerFillThreshold &&
+                    time > previousTime) {
+                // Assume that the window fill grew linearly while the marker entered the window
+                triggerTime = previousTime + (time - previousTime) *
+                        (triggerFillThreshold - previousWindowFill) / (windowFill - previousWindowFill);
+            }
+        }
+        previousWindowFill = windowFill;
+        previousTime = time;
+        hasPreviousFrame = true;
+        return triggered;
+    }
+
+    /**
+     * @return the window fill is at or above the reset threshold, i.e. the marker hasn't left the window
+     */
+    public boolean isMarkerInWindow(int windowFill) {
+        return windowFill >= triggerArmFillThreshold;
+    }
+
+    /**
+     * @return time of the last detection, interpolated between frames if enabled
+     */
+    public long getTriggerTime() {
+        return triggerTime;
+    }
+
+    private void checkConfigured() {
+        if (!configured) {
+            throw new IllegalStateException("not configured");
+        }
+    }
+
+    /**
+     * Stores the marker position of the scanned frame.
+     *
+     * @return window fill
+     */
+    int finishScan(int matchCount, long matchSumX, long matchSumY) {
+        if (matchCount == 0) {
+            markerPosition = Float.NaN;
+        } else if (cameraRotation % 180 == 0) {
+            float position = ((float) matchSumX / matchCount - xStart + 0.5f) / (xEnd - xStart);
+            markerPosition = cameraRotation == 0 ? position : 1 - position;
+        } else {
+            float position = ((float) matchSumY / matchCount - yStart + 0.5f) / (yEnd - yStart);
+            markerPosition = cameraRotation == 270 ? position : 1 - position;
+        }
+        return windowFill(matchCount);
+    }
+
+    /**
+     * @return centroid of the matching samples of the last measured frame along the long axis of the window,
+     * from 0 (left) to 1 (right) as shown in the rotated preview, or NaN if nothing matched
+     */
+    public float getMarkerPosition() {
+        return markerPosition;
+    }
+
+    int windowFill(int matchCount) {
+        if (windowResolution <= 0) {
+            return 0;
+        }
+        return (int) (100L * matchCount * fillCountPerMatch / windowResolution);
+    }
+
+    public int getLineAndColumnFeed() {
+        return lineAndColumnFeed;
+    }
+
+    public int getImageWidth() {
+        return imageWidth;
+    }
+
+    public int getImageHeight() {
+        return imageHeight;
+    }
+
+    public int getWindowStartX() {
+        return xStart;
+    }
+
+    public int getWindowEndX() {
+        return xEnd;
+    }
+
+    public int getWindowStartY() {
+        return yStart;
+    }
+
+    public int getWindowEndY() {
+        return yEnd;
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.unrud.elektrometer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EventListener;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Appends detections to {@link PulseLog}s on a background thread.
+ * <p>
+ * {@link #append} only queues the detection. Queued detections are written in batches and synced
+ * to disk when the oldest unsynced detection is {@code syncInterval} milliseconds old, when
+ * {@code syncCount} detections are unsynced and on {@link #close}. At most the detections of one
+ * sync interval or sync count are lost on power failure.
+ * <p>
+ * Detections are kept in a journal until they are synced. When opening or writing the logs fails, the logs
+ * are closed and opened again after an exponentially growing delay. The journaled detections that are
+ * missing in a log are appended again and the queued detections are written afterwards, none are lost
+ * while the process is running.
+ */
+public class DetectionLogWriter implements Closeable {
+    private static final String THREAD_NAME = "elektrometer::DetectionLogWriter";
+    private static final long MIN_RETRY_DELAY = 1000; // millis
+    private static final long MAX_RETRY_DELAY = 5 * 60 * 1000; // millis
+    private static final double[] LATENCY_BUCKETS = {0.001, 0.002, 0.005, 0.01, 0.02, 0.05, 0.1, 0.2, 0.5, 1, 2, 5};
+
+    private final Opener opener;
+    private final ErrorListener errorListener;
+    private final Queue<Long> pendingDetections = new ConcurrentLinkedQueue<>();
+    // Written, but not synced detections, only accessed from the background thread
+    private final List<Long> journal = new ArrayList<>();
+    private final List<PulseLog> pulseLogs = new ArrayList<>();
+    private final Thread thread;
+    private final MetricsRegistry.Counter recoveries;
+    private final MetricsRegistry.Histogram writeLatency, syncLatency;
+    private volatile long syncInterval;
+    private volatile int syncCount = 1;
+    private volatile boolean closed;
+    private volatile int recoveryCount;
+
+    /**
+     * @param opener opens the logs on the background thread, they are closed by the writer
+     */
+    public DetectionLogWriter(Opener opener, ErrorListener errorListener) {
+        this(opener, errorListener, new MetricsRegistry());
+    }
+
+    /**
+     * @param metrics receives the recoveries and the latencies of writing and syncing, the counters are continued
+     *                when a writer is replaced
+     */
+    public DetectionLogWriter(Opener opener, ErrorListener errorListener, MetricsRegistry metrics) {
+        this.opener = opener;
+        this.errorListener = errorListener;
+        recoveries = metrics.counter("log_recoveries_total",
+                "Times the detection log was opened again after an error");
+        writeLatency = metrics.histogram("log_write_seconds",
+                "Time to append a detection to all logs", LATENCY_BUCKETS);
+        syncLatency = metrics.histogram("log_sync_seconds",
+                "Time to sync all logs to the storage", LATENCY_BUCKETS);
+        thread = new Thread(this::run, THREAD_NAME);
+        thread.start();
+    }
+
+    /**
+     * @param syncInterval maximal milliseconds between writing a detection and syncing it to disk
+     * @param syncCount    maximal number of unsynced detections
+     */
+    public void setSyncPolicy(long syncInterval, int syncCount) {
+        if (this.syncInterval == syncInterval && this.syncCount == syncCount) {
+            return;
+        }
+        this.syncInterval = syncInterval;
+        this.syncCount = syncCount;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Queues a detection, doesn't block.
+     *
+     * @param wallClockTime milliseconds since the unix epoch
+     */
+    public void append(long wallClockTime) {
+        if (closed) {
+            throw new IllegalStateException("closed");
+        }
+        pendingDetections.add(wallClockTime);
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * @return number of times the logs were opened again after an error
+     */
+    public int getRecoveryCount() {
+        return recoveryCount;
+    }
+
+    private void run() {
+        long retryDelay = MIN_RETRY_DELAY;
+        boolean failed = false;
+        while (true) {
+            // Try once more after close was requested
+            boolean closing = closed;
+            try {
+                pulseLogs.addAll(opener.open());
+                // Only the detections that didn't reach a log before the error
+                for (PulseLog pulseLog : pulseLogs) {
+                    long lastPulseTime = pulseLog.getLastPulseTime();
+                    for (long wallClockTime : journal) {
+                        if (wallClockTime > lastPulseTime) {
+                            pulseLog.append(wallClockTime);
+                        }
+                    }
+                }
+                if (failed) {
+                    recoveries.increment();
+                    recoveryCount++;
+                    failed = false;
+                }
+                retryDelay = MIN_RETRY_DELAY;
+                writeDetections();
+                closeLogs();
+                return;
+            } catch (IOException e) {
+                closeLogs();
+                errorListener.onError(e);
+                failed = true;
+            }
+            if (closing) {
+                return;
+            }
+            long retryNanoTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryDelay);
+            while (!closed && retryNanoTime - System.nanoTime() > 0) {
+                LockSupport.parkNanos(this, retryNanoTime - System.nanoTime());
+            }
+            retryDelay = Math.min(MAX_RETRY_DELAY, retryDelay * 2);
+        }
+    }
+
+    /**
+     * Writes detections until the writer is closed.
+     */
+    private void writeDetections() throws IOException {
+        long unsyncedSinceNanoTime = System.nanoTime();
+        while (true) {
+            boolean closing = closed;
+            boolean written = false;
+            Long wallClockTime;
+            while ((wallClockTime = pendingDetections.peek()) != null) {
+                if (journal.isEmpty()) {
+                    unsyncedSinceNanoTime = System.nanoTime();
+                }
+                journal.add(wallClockTime);
+                pendingDetections.remove();
+                long startNanoTime = System.nanoTime();
+                for (PulseLog pulseLog : pulseLogs) {
+                    pulseLog.append(wallClockTime);
+                }
+                writeLatency.observeNanos(System.nanoTime() - startNanoTime);
+                written = true;
+            }
+            long syncDeadlineNanoTime = unsyncedSinceNanoTime + TimeUnit.MILLISECONDS.toNanos(syncInterval);
+            if (!journal.isEmpty() && (closing || journal.size() >= syncCount ||
+                    System.nanoTime() - syncDeadlineNanoTime >= 0)) {
+                long startNanoTime = System.nanoTime();
+                for (PulseLog pulseLog : pulseLogs) {
+                    pulseLog.sync();
+                }
+                syncLatency.observeNanos(System.nanoTime() - startNanoTime);
+                journal.clear();
+            } else if (written) {
+                for (PulseLog pulseLog : pulseLogs) {
+                    pulseLog.flush();
+                }
+            }
+            if (closing) {
+                return;
+            }
+            if (!journal.isEmpty()) {
+                LockSupport.parkNanos(this, syncDeadlineNanoTime - System.nanoTime());
+            } else {
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    private void closeLogs() {
+        for (PulseLog pulseLog : pulseLogs) {
+            try {
+                pulseLog.close();
+            } catch (IOException e) {
+                errorListener.onError(e);
+            }
+        }
+        pulseLogs.clear();
+    }
+
+    /**
+     * Writes and syncs all queued detections and stops the background thread.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(thread);
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public interface Opener {
+        /**
+         * Called on the background thread, closes the logs that were opened when it fails.
+         */
+        List<PulseLog> open() throws IOException;
+    }
+
+    public interface ErrorListener extends EventListener {
+        /**
+         * Called on the background thread. After errors while writing, the logs are opened again after a delay.
+         */
+        void onError(IOException e);
+    }
+}
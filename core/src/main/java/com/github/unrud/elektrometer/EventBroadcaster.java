@@ -0,0 +1,186 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.unrud.elektrometer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pushes events to HTTP clients as server-sent events ({@code text/event-stream}).
+ * <p>
+ * {@link #publish} never blocks: every client has a bounded ring of pending events that is written
+ * by the client's connection thread. When a client doesn't keep up, its oldest events are dropped
+ * and a {@link #DROPPED} event with the number of dropped events is sent instead.
+ * <p>
+ * {@link #FRAME} events are only sent to clients that request them with the query parameter
+ * {@code frames=1}.
+ */
+public class EventBroadcaster implements HttpServer.Handler {
+    public static final String PULSE = "pulse";
+    public static final String FRAME = "frame";
+    public static final String DROPPED = "dropped";
+    private static final int RING_CAPACITY = 64;
+    private static final long KEEP_ALIVE_INTERVAL = TimeUnit.SECONDS.toNanos(15);
+    private static final int RECONNECT_DELAY = 2000; // millis
+
+    private final int maxClients;
+    private final Set<Client> clients = new CopyOnWriteArraySet<>();
+
+    public EventBroadcaster(int maxClients) {
+        this.maxClients = maxClients;
+    }
+
+    /**
+     * @return true when at least one client receives events of the type
+     */
+    public boolean hasClients(String type) {
+        for (Client client : clients) {
+            if (client.accepts(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Queues the event for all clients that receive its type, doesn't block.
+     *
+     * @param data single line, usually JSON
+     */
+    public void publish(String type, String data) {
+        String event = null;
+        for (Client client : clients) {
+            if (!client.accepts(type)) {
+                continue;
+            }
+            if (event == null) {
+                event = "event: " + type + "\ndata: " + data + "\n\n";
+            }
+            client.offer(event);
+            LockSupport.unpark(client.thread);
+        }
+    }
+
+    @Override
+    public void handle(HttpServer.Request request, HttpServer.Response response) throws IOException {
+        Client client = new Client(Thread.currentThread(), "1".equals(request.getParameter("frames")));
+        synchronized (clients) {
+            if (clients.size() >= maxClients) {
+                response.sendError(503, "Service Unavailable");
+                return;
+            }
+            clients.add(client);
+        }
+        try {
+            response.setHeader("Content-Type", "text/event-stream; charset=utf-8");
+            response.setHeader("Cache-Control", "no-cache");
+            OutputStream outputStream = response.getOutputStream();
+            if (request.isHead()) {
+                return;
+            }
+            outputStream.write(("retry: " + RECONNECT_DELAY + "\n\n").getBytes(StandardCharsets.UTF_8));
+            outputStream.flush();
+            String[] events = new String[RING_CAPACITY];
+            long lastWriteNanoTime = System.nanoTime();
+            long reportedDropped = 0;
+            while (!Thread.currentThread().isInterrupted()) {
+                int count = client.drain(events);
+                long dropped = client.dropped;
+                if (dropped != reportedDropped) {
+                    outputStream.write(("event: " + DROPPED + "\ndata: {\"count\":" + (dropped - reportedDropped) +
+                            "}\n\n").getBytes(StandardCharsets.UTF_8));
+                    reportedDropped = dropped;
+                }
+                for (int i = 0; i < count; i++) {
+                    outputStream.write(events[i].getBytes(StandardCharsets.UTF_8));
+                    events[i] = null;
+                }
+                long now = System.nanoTime();
+                if (count > 0) {
+                    outputStream.flush();
+                    lastWriteNanoTime = now;
+                } else if (now - lastWriteNanoTime >= KEEP_ALIVE_INTERVAL) {
+                    // Detects disconnected clients
+                    outputStream.write(": keep-alive\n\n".getBytes(StandardCharsets.UTF_8));
+                    outputStream.flush();
+                    lastWriteNanoTime = now;
+                } else if (client.isEmpty()) {
+                    LockSupport.parkNanos(this, KEEP_ALIVE_INTERVAL - (now - lastWriteNanoTime));
+                }
+            }
+        } finally {
+            clients.remove(client);
+        }
+    }
+
+    static class Client {
+        final Thread thread;
+        final boolean frames;
+        private final String[] ring = new String[RING_CAPACITY];
+        private int head, size;
+        /**
+         * Only modified while holding the lock
+         */
+        volatile long dropped;
+
+        Client(Thread thread, boolean frames) {
+            this.thread = thread;
+            this.frames = frames;
+        }
+
+        boolean accepts(String type) {
+            return frames || !type.equals(FRAME);
+        }
+
+        synchronized void offer(String event) {
+            if (size == ring.length) {
+                head = (head + 1) % ring.length;
+                size--;
+                dropped++;
+            }
+            ring[(head + size) % ring.length] = event;
+            size++;
+        }
+
+        synchronized boolean isEmpty() {
+            return size == 0;
+        }
+
+        /**
+         * Moves all pending events to {@code events}.
+         *
+         * @return number of events
+         */
+        synchronized int drain(String[] events) {
+            int count = size;
+            for (int i = 0; i < count; i++) {
+                events[i] = ring[(head + i) % ring.length];
+                ring[(head + i) % ring.length] = null;
+            }
+            head = 0;
+            size = 0;
+            return count;
+        }
+    }
+}
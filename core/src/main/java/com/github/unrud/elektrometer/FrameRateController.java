@@ -0,0 +1,106 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.unrud.elektrometer;
+
+/**
+ * Chooses the lowest frame rate that still captures the marker in enough frames.
+ * <p>
+ * The time the marker stays in the window is proportional to the time between pulses, the ratio
+ * is a property of the meter. It's measured after every pulse and used to predict how long the marker
+ * stays in the window at the current pulse rate. When the next pulse is overdue the rotor either slowed
+ * down or the marker was missed, the maximal frame rate is used until the next pulse tells which.
+ */
+public class FrameRateController {
+    private static final long NONE = Long.MIN_VALUE;
+    private static final double MARKER_FRACTION_SMOOTHING = 0.25;
+    private static final int OVERDUE_FACTOR = 2;
+
+    private final int minFps, maxFps, framesPerMarker;
+    private long lastTriggerTime = NONE, triggerInterval = NONE;
+    private boolean markerDwelling;
+    private double markerFraction = Double.NaN;
+    private int targetFps;
+
+    /**
+     * @param framesPerMarker minimal number of frames that should show the marker
+     */
+    public FrameRateController(int minFps, int maxFps, int framesPerMarker) {
+        if (minFps <= 0 || maxFps < minFps || framesPerMarker <= 0) {
+            throw new IllegalArgumentException("invalid frame rate limits");
+        }
+        this.minFps = minFps;
+        this.maxFps = maxFps;
+        this.framesPerMarker = framesPerMarker;
+        targetFps = maxFps;
+    }
+
+    /**
+     * Forgets the observed pulses, e.g. after the detection settings changed.
+     */
+    public void reset() {
+        lastTriggerTime = NONE;
+        triggerInterval = NONE;
+        markerDwelling = false;
+        markerFraction = Double.NaN;
+        targetFps = maxFps;
+    }
+
+    /**
+     * @param time           capture time of the frame in milliseconds, from a monotonic clock
+     * @param markerInWindow see {@link DetectionEngine#isMarkerInWindow(int)}
+     * @param triggered      the marker was detected in this frame
+     */
+    public void update(long time, boolean markerInWindow, boolean triggered) {
+        if (triggered) {
+            if (lastTriggerTime != NONE && time > lastTriggerTime) {
+                triggerInterval = time - lastTriggerTime;
+            }
+            lastTriggerTime = time;
+            markerDwelling = true;
+        } else if (markerDwelling && !markerInWindow) {
+            markerDwelling = false;
+            if (triggerInterval != NONE) {
+                double fraction = (double) (time - lastTriggerTime) / triggerInterval;
+                if (Double.isNaN(markerFraction)) {
+                    markerFraction = fraction;
+                } else {
+                    markerFraction += (fraction - markerFraction) * MARKER_FRACTION_SMOOTHING;
+                }
+            }
+        }
+        targetFps = computeTargetFps(time);
+    }
+
+    private int computeTargetFps(long time) {
+        if (triggerInterval == NONE || Double.isNaN(markerFraction) || markerFraction <= 0 ||
+                time - lastTriggerTime > OVERDUE_FACTOR * triggerInterval) {
+            return maxFps;
+        }
+        double markerDuration = markerFraction * triggerInterval; // millis
+        double fps = Math.ceil(framesPerMarker * 1000 / markerDuration);
+        return (int) Math.max(minFps, Math.min(maxFps, fps));
+    }
+
+    /**
+     * @return frame rate for the following frames
+     */
+    public int getTargetFps() {
+        return targetFps;
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.unrud.elektrometer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Records the Y, U and V planes of a region of the camera images for replaying them on the computer.
+ * <p>
+ * The file starts with a header (image size, region, the offset from the sensor time to the wall clock and
+ * the settings as {@code key=value} lines) followed by a record for every frame: the sensor time in
+ * milliseconds and the samples of the region, one byte per sample and plane, row by row.
+ * All records have the same size. The file is written through memory mappings that are extended in chunks,
+ * after a crash the reader stops at the first record that was never written (sensor time 0).
+ */
+public class FrameRecorder implements Closeable {
+    private static final int MAGIC = 0x454d4652; // "EMFR"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 44;
+    private static final int CHUNK_SIZE = 16 << 20;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int imageWidth, imageHeight, regionStartX, regionEndX, regionStartY, regionEndY;
+    private final int frameSize, framesPerChunk;
+    private final long framesOffset;
+    private MappedByteBuffer chunk;
+    private long chunkOffset;
+    private int frameCount;
+    private byte[] row = new byte[0];
+
+    /**
+     * Creates or overwrites the recording.
+     * The region is extended to even coordinates, so that it contains whole samples of the U and V planes.
+     *
+     * @param settings        e.g. from {@code SharedPreferences.getAll()}
+     * @param wallClockOffset milliseconds that are added to the sensor time to get the wall clock time
+     */
+    public FrameRecorder(File file, int imageWidth, int imageHeight, int regionStartX, int regionEndX,
+                         int regionStartY, int regionEndY, Map<String, ?> settings, long wallClockOffset)
+            throws IOException {
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+        this.regionStartX = Math.max(0, regionStartX) & ~1;
+        this.regionEndX = Math.min(imageWidth, regionEndX + 1 & ~1);
+        this.regionStartY = Math.max(0, regionStartY) & ~1;
+        this.regionEndY = Math.min(imageHeight, regionEndY + 1 & ~1);
+        if (this.regionStartX >= this.regionEndX || this.regionStartY >= this.regionEndY) {
+            throw new IllegalArgumentException("empty region");
+        }
+        frameSize = frameSize(this.regionStartX, this.regionEndX, this.regionStartY, this.regionEndY);
+        framesPerChunk = Math.max(1, CHUNK_SIZE / frameSize);
+        StringBuilder settingsText = new StringBuilder();
+        for (Map.Entry<String, ?> entry : new TreeMap<>(settings).entrySet()) {
+            settingsText.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+        }
+        byte[] settingsBytes = settingsText.toString().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + settingsBytes.length);
+        header.putInt(MAGIC).putInt(VERSION).putInt(imageWidth).putInt(imageHeight)
+                .putInt(this.regionStartX).putInt(this.regionEndX).putInt(this.regionStartY).putInt(this.regionEndY)
+                .putLong(wallClockOffset).putInt(settingsBytes.length).put(settingsBytes);
+        header.flip();
+        framesOffset = header.limit();
+        this.file = new RandomAccessFile(file, "rw");
+        channel = this.file.getChannel();
+        try {
+            channel.truncate(0);
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+        } catch (IOException e) {
+            this.file.close();
+            throw e;
+        }
+    }
+
+    private static int frameSize(int regionStartX, int regionEndX, int regionStartY, int regionEndY) {
+        int uvWidth = (regionEndX + 1) / 2 - regionStartX / 2, uvHeight = (regionEndY + 1) / 2 - regionStartY / 2;
+        return 8 + (regionEndX - regionStartX) * (regionEndY - regionStartY) + 2 * uvWidth * uvHeight;
+    }
+
+    /**
+     * Appends the region of the image. The positions of the buffers are reset.
+     *
+     * @param sensorTime milliseconds, must be positive
+     */
+    public void addFrame(long sensorTime, ByteBuffer yBuffer, int yRowStride, int yPixelStride,
+                         ByteBuffer uBuffer, int uRowStride, int uPixelStride,
+                         ByteBuffer vBuffer, int vRowStride, int vPixelStride) throws IOException {
+        if (sensorTime <= 0) {
+            throw new IllegalArgumentException("sensorTime must be positive");
+        }
+        if (chunk == null || !chunk.hasRemaining()) {
+            // Extends the file
+            chunkOffset = framesOffset + (long) frameCount * frameSize;
+            chunk = channel.map(FileChannel.MapMode.READ_WRITE, chunkOffset, (long) framesPerChunk * frameSize);
+        }
+        int frameStart = chunk.position();
+        chunk.position(frameStart + 8);
+        copyRegion(yBuffer, yRowStride, yPixelStride, regionStartX, regionEndX, regionStartY, regionEndY);
+        int uvStartX = regionStartX / 2, uvEndX = (regionEndX + 1) / 2;
+        int uvStartY = regionStartY / 2, uvEndY = (regionEndY + 1) / 2;
+        copyRegion(uBuffer, uRowStride, uPixelStride, uvStartX, uvEndX, uvStartY, uvEndY);
+        copyRegion(vBuffer, vRowStride, vPixelStride, uvStartX, uvEndX, uvStartY, uvEndY);
+        // The time marks the record as complete
+        chunk.putLong(frameStart, sensorTime);
+        frameCount++;
+    }
+
+    private void copyRegion(ByteBuffer buffer, int rowStride, int pixelStride,
+                            int startX, int endX, int startY, int endY) {
+        int width = endX - startX;
+        if (row.length < width) {
+            row = new byte[width];
+        }
+        for (int y = startY; y < endY; y++) {
+            int rowOffset = y * rowStride + startX * pixelStride;
+            if (pixelStride == 1) {
+                buffer.position(rowOffset);
+                buffer.get(row, 0, width);
+            } else {
+                for (int x = 0; x < width; x++) {
+                    row[x] = buffer.get(rowOffset + x * pixelStride);
+                }
+            }
+            chunk.put(row, 0, width);
+        }
+        buffer.rewind();
+    }
+
+    public int getImageWidth() {
+        return imageWidth;
+    }
+
+    public int getImageHeight() {
+        return imageHeight;
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Removes the unused part of the last chunk.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (chunk != null) {
+                chunk.force();
+                chunk = null;
+            }
+            channel.truncate(framesOffset + (long) frameCount * frameSize);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Reads a recording frame by frame.
+     * The planes have the size of the complete image, samples outside of the recorded region are 0.
+     */
+    public static class Reader implements Closeable {
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final int imageWidth, imageHeight, regionStartX, regionEndX, regionStartY, regionEndY;
+        private final int frameSize, framesPerChunk;
+        private final long framesOffset, wallClockOffset;
+        private final Map<String, String> settings = new HashMap<>();
+        private final int frameCount;
+        private final byte[] yPlane, uPlane, vPlane;
+        private MappedByteBuffer chunk;
+        private int frameIndex;
+        private long time;
+
+        public Reader(File file) throws IOException {
+            this.file = new RandomAccessFile(file, "r");
+            channel = this.file.getChannel();
+            try {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                readFully(header, 0);
+                if (header.getInt() != MAGIC) {
+                    throw new IOException("not a frame recording");
+                }
+                if (header.getInt() != VERSION) {
+                    throw new IOException("unsupported frame recording version");
+                }
+                imageWidth = header.getInt();
+                imageHeight = header.getInt();
+                regionStartX = header.getInt();
+                regionEndX = header.getInt();
+                regionStartY = header.getInt();
+                regionEndY = header.getInt();
+                wallClockOffset = header.getLong();
+                int settingsLength = header.getInt();
+                if (imageWidth <= 0 || imageHeight <= 0 || regionStartX < 0 || regionStartX >= regionEndX ||
+                        regionEndX > imageWidth || regionStartY < 0 || regionStartY >= regionEndY ||
+                        regionEndY > imageHeight || settingsLength < 0) {
+                    throw new IOException("corrupt frame recording header");
+                }
+                ByteBuffer settingsBytes = ByteBuffer.allocate(settingsLength);
+                readFully(settingsBytes, HEADER_SIZE);
+                for (String line : new String(settingsBytes.array(), StandardCharsets.UTF_8).split("\n")) {
+                    int separator = line.indexOf('=');
+                    if (separator > 0) {
+                        settings.put(line.substring(0, separator), line.substring(separator + 1));
+                    }
+                }
+                framesOffset = HEADER_SIZE + settingsLength;
+            } catch (IOException e) {
+                this.file.close();
+                throw e;
+            }
+            frameSize = frameSize(regionStartX, regionEndX, regionStartY, regionEndY);
+            framesPerChunk = Math.max(1, CHUNK_SIZE / frameSize);
+            frameCount = (int) Math.min(Integer.MAX_VALUE, (channel.size() - framesOffset) / frameSize);
+            yPlane = new byte[imageWidth * imageHeight];
+            uPlane = new byte[getUvRowStride() * ((imageHeight + 1) / 2)];
+            vPlane = new byte[uPlane.length];
+        }
+
+        private void readFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("unexpected end of file");
+                }
+            }
+            buffer.flip();
+        }
+
+        /**
+         * Reads the next frame into the planes.
+         *
+         * @return false at the end of the recording
+         */
+        public boolean next() throws IOException {
+            if (frameIndex >= frameCount) {
+                return false;
+            }
+            if (chunk == null || !chunk.hasRemaining()) {
+                long chunkFrames = Math.min(framesPerChunk, frameCount - frameIndex);
+                chunk = channel.map(FileChannel.MapMode.READ_ONLY,
+                        framesOffset + (long) frameIndex * frameSize, chunkFrames * frameSize);
+            }
+            long frameTime = chunk.getLong();
+            if (frameTime == 0) {
+                // Not written before a crash
+                frameIndex = frameCount;
+                return false;
+            }
+            copyRegion(yPlane, imageWidth, regionStartX, regionEndX, regionStartY, regionEndY);
+            int uvStartX = regionStartX / 2, uvEndX = (regionEndX + 1) / 2;
+            int uvStartY = regionStartY / 2, uvEndY = (regionEndY + 1) / 2;
+            copyRegion(uPlane, getUvRowStride(), uvStartX, uvEndX, uvStartY, uvEndY);
+            copyRegion(vPlane, getUvRowStride(), uvStartX, uvEndX, uvStartY, uvEndY);
+            time = frameTime;
+            frameIndex++;
+            return true;
+        }
+
+        private void copyRegion(byte[] plane, int rowStride, int startX, int endX, int startY, int endY) {
+            for (int y = startY; y < endY; y++) {
+                chunk.get(plane, y * rowStride + startX, endX - startX);
+            }
+        }
+
+        public int getImageWidth() {
+            return imageWidth;
+        }
+
+        public int getImageHeight() {
+            return imageHeight;
+        }
+
+        public int getRegionStartX() {
+            return regionStartX;
+        }
+
+        public int getRegionEndX() {
+            return regionEndX;
+        }
+
+        public int getRegionStartY() {
+            return regionStartY;
+        }
+
+        public int getRegionEndY() {
+            return regionEndY;
+        }
+
+        /**
+         * @return the settings at the start of the recording, booleans as {@code true} or {@code false}
+         */
+        public Map<String, String> getSettings() {
+            return settings;
+        }
+
+        public long getWallClockOffset() {
+            return wallClockOffset;
+        }
+
+        /**
+         * @return upper bound of the number of frames, the end of the recording may be unwritten after a crash
+         */
+        public int getFrameCount() {
+            return frameCount;
+        }
+
+        /**
+         * @return sensor time of the current frame in milliseconds
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return row stride is {@link #getImageWidth()}, pixel stride is 1
+         */
+        public byte[] getYPlane() {
+            return yPlane;
+        }
+
+        /**
+         * @return row stride is {@link #getUvRowStride()}, pixel stride is 1
+         */
+        public byte[] getUPlane() {
+            return uPlane;
+        }
+
+        /**
+         * @return row stride is {@link #getUvRowStride()}, pixel stride is 1
+         */
+        public byte[] getVPlane() {
+            return vPlane;
+        }
+
+        public int getUvRowStride() {
+            return (imageWidth + 1) / 2;
+        }
+
+        @Override
+        public void close() throws IOException {
+            chunk = null;
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.unrud.elektrometer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal HTTP/1.1 server for GET and HEAD requests.
+ * <p>
+ * Every connection is handled on its own thread and closed after the response, which allows
+ * handlers to stream responses of unknown length. Connections beyond the limit are rejected
+ * with 503.
+ */
+public class HttpServer implements Closeable {
+    private static final String THREAD_NAME = "elektrometer::HttpServer";
+    private static final Charset HEADER_CHARSET = StandardCharsets.ISO_8859_1;
+    private static final int MAX_REQUEST_HEADER_SIZE = 8192;
+    private static final int REQUEST_TIMEOUT = 30000; // millis
+
+    private final ServerSocket serverSocket;
+    private final Map<String, Handler> handlers = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor executor;
+    private final Thread acceptThread;
+
+    /**
+     * Binds to the port on all interfaces and starts accepting connections.
+     */
+    public HttpServer(int port, int maxConnections) throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(port));
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(0, maxConnections, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, THREAD_NAME + "::" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        acceptThread = new Thread(this::accept, THREAD_NAME);
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @param path absolute path without query, e.g. {@code /index.html}
+     */
+    public void addHandler(String path, Handler handler) {
+        handlers.put(path, handler);
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                continue; // closed or aborted connection
+            }
+            try {
+                executor.execute(() -> handleConnection(socket));
+            } catch (RejectedExecutionException e) {
+                try {
+                    Response response = new Response(socket.getOutputStream(), false);
+                    response.sendError(503, "Service Unavailable");
+                    response.finish();
+                } catch (IOException ignored) {
+                } finally {
+                    closeQuietly(socket);
+                }
+            }
+        }
+    }
+
+    private void handleConnection(Socket socket) {
+        try {
+            socket.setSoTimeout(REQUEST_TIMEOUT);
+            InputStream inputStream = new BufferedInputStream(socket.getInputStream());
+            Request request = Request.parse(inputStream);
+            Response response = new Response(socket.getOutputStream(), request != null && request.isHead());
+            if (request == null) {
+                response.sendError(400, "Bad Request");
+            } else if (!request.method.equals("GET") && !request.isHead()) {
+                response.setHeader("Allow", "GET, HEAD");
+                response.sendError(405, "Method Not Allowed");
+            } else {
+                Handler handler = handlers.get(request.path);
+                if (handler == null) {
+                    response.sendError(404, "Not Found");
+                } else {
+                    handler.handle(request, response);
+                }
+            }
+            response.finish();
+        } catch (IOException ignored) {
+            // client went away
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Stops accepting connections and aborts running requests.
+     */
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+
+    public interface Handler {
+        /**
+         * Called on the connection's thread.
+         */
+        void handle(Request request, Response response) throws IOException;
+    }
+
+    public static class Request {
+        private final String method, path;
+        private final Map<String, String> parameters, headers;
+
+        private Request(String method, String path, Map<String, String> parameters, Map<String, String> headers) {
+            this.method = method;
+            this.path = path;
+            this.parameters = parameters;
+            this.headers = headers;
+        }
+
+        /**
+         * @return the request or null if it's malformed
+         */
+        private static Request parse(InputStream inputStream) throws IOException {
+            String requestLine = readLine(inputStream);
+            if (requestLine == null) {
+                return null;
+            }
+            String[] parts = requestLine.split(" ");
+            if (parts.length != 3 || !parts[2].startsWith("HTTP/")) {
+                return null;
+            }
+            Map<String, String> headers = new HashMap<>();
+            int headerSize = requestLine.length();
+            String line;
+            while ((line = readLine(inputStream)) != null && !line.isEmpty()) {
+                headerSize += line.length();
+                if (headerSize > MAX_REQUEST_HEADER_SIZE) {
+                    return null;
+                }
+                int separator = line.indexOf(':');
+                if (separator > 0) {
+                    headers.put(line.substring(0, separator).trim().toLowerCase(Locale.US),
+                            line.substring(separator + 1).trim());
+                }
+            }
+            if (line == null) {
+                return null;
+            }
+            String target = parts[1];
+            String query = "";
+            int querySeparator = target.indexOf('?');
+            if (querySeparator >= 0) {
+                query = target.substring(querySeparator + 1);
+                target = target.substring(0, querySeparator);
+            }
+            Map<String, String> parameters = new HashMap<>();
+            try {
+                target = URLDecoder.decode(target, "UTF-8");
+                for (String parameter : query.split("&")) {
+                    if (parameter.isEmpty()) {
+                        continue;
+                    }
+                    int separator = parameter.indexOf('=');
+                    String name = separator < 0 ? parameter : parameter.substring(0, separator);
+                    String value = separator < 0 ? "" : parameter.substring(separator + 1);
+                    parameters.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+                }
+            } catch (IllegalArgumentException | UnsupportedEncodingException e) {
+                return null;
+            }
+            return new Request(parts[0], target, Collections.unmodifiableMap(parameters),
+                    Collections.unmodifiableMap(headers));
+        }
+
+        private static String readLine(InputStream inputStream) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int c;
+            while ((c = inputStream.read()) != '\n') {
+                if (c < 0 || line.size() > MAX_REQUEST_HEADER_SIZE) {
+                    return null;
+                }
+                line.write(c);
+            }
+            String result = new String(line.toByteArray(), HEADER_CHARSET);
+            return result.endsWith("\r") ? result.substring(0, result.length() - 1) : result;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public boolean isHead() {
+            return method.equals("HEAD");
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return decoded query parameter or null
+         */
+        public String getParameter(String name) {
+            return parameters.get(name);
+        }
+
+        /**
+         * @return header value or null, names are case insensitive
+         */
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase(Locale.US));
+        }
+    }
+
+    public static class Response {
+        private final OutputStream socketOutputStream;
+        private final boolean headOnly;
+        private final Map<String, String> headers = new LinkedHashMap<>();
+        private int status = 200;
+        private String reason = "OK";
+        private OutputStream outputStream;
+
+        private Response(OutputStream socketOutputStream, boolean headOnly) {
+            this.socketOutputStream = socketOutputStream;
+            this.headOnly = headOnly;
+        }
+
+        public void setStatus(int status, String reason) {
+            checkNotCommitted();
+            this.status = status;
+            this.reason = reason;
+        }
+
+        public void setHeader(String name, String value) {
+            checkNotCommitted();
+            headers.put(name, value);
+        }
+
+        private void checkNotCommitted() {
+            if (outputStream != null) {
+                throw new IllegalStateException("response already committed");
+            }
+        }
+
+        public void sendError(int status, String reason) throws IOException {
+            setStatus(status, reason);
+            setHeader("Content-Type", "text/plain; charset=utf-8");
+            getOutputStream().write((status + " " + reason + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Sends the status line and headers on the first call.
+         * The body ends when the connection is closed after the handler returns.
+         * Writes are discarded for HEAD requests.
+         */
+        public OutputStream getOutputStream() throws IOException {
+            if (outputStream == null) {
+                StringBuilder head = new StringBuilder();
+                head.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+                headers.put("Connection", "close");
+                for (Map.Entry<String, String> header : headers.entrySet()) {
+                    head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+                }
+                head.append("\r\n");
+                BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(socketOutputStream);
+                bufferedOutputStream.write(head.toString().getBytes(HEADER_CHARSET));
+                if (headOnly) {
+                    bufferedOutputStream.flush();
+                    outputStream = new OutputStream() {
+                        @Override
+                        public void write(int b) {
+                        }
+
+                        @Override
+                        public void write(byte[] b, int off, int len) {
+                        }
+                    };
+                } else {
+                    outputStream = bufferedOutputStream;
+                }
+            }
+            return outputStream;
+        }
+
+        private void finish() throws IOException {
+            try {
+                getOutputStream().flush();
+            } catch (SocketException ignored) {
+                // client went away
+            }
+        }
+    }
+}
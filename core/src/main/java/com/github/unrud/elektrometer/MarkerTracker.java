@@ -0,0 +1,143 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.unrud.elektrometer;
+
+/**
+ * Follows the marker through the detection window instead of only thresholding the window fill.
+ * <p>
+ * A pass of the marker starts when the window fill reaches the reset threshold and ends when it stayed
+ * below it for the reset time, a fill that flickers around the reset threshold doesn't split the pass.
+ * Every pass that reached the fill threshold in at least one frame is counted once: when the marker
+ * crosses the middle of the window or, if it was seen too briefly to cross it (e.g. in one or two frames
+ * at high rotor speeds), when the pass ends. Such a pass is counted after the reset time, which must be
+ * shorter than the time between two passes.
+ * <p>
+ * The direction of the marker's movement within a pass gives the rotation direction.
+ */
+public class MarkerTracker {
+    private static final float CENTER = 0.5f;
+    private static final long NONE = Long.MIN_VALUE;
+
+    private int triggerFillThreshold, triggerFillResetThreshold, triggerResetTime;
+    // Current pass
+    private boolean passing, passReachedThreshold, passCounted;
+    private float passFirstPosition, previousPosition, closestPosition;
+    private long previousTime, closestTime, absentSinceTime = NONE;
+    // Results
+    private int direction;
+    private long triggerTime = NONE, rotationTime = NONE;
+
+    /**
+     * @see DetectionEngine#configureTrigger(int, int, int, boolean)
+     */
+    public void configure(int triggerFillThreshold, int triggerFillResetThreshold, int triggerResetTime) {
+        this.triggerFillThreshold = triggerFillThreshold;
+        this.triggerFillResetThreshold = Math.min(triggerFillThreshold, triggerFillResetThreshold);
+        this.triggerResetTime = triggerResetTime;
+    }
+
+    /**
+     * @param time     capture time of the frame in milliseconds, from a monotonic clock
+     * @param position see {@link DetectionEngine#getMarkerPosition()}
+     * @return true when a pass of the marker was counted, see {@link #getTriggerTime()}
+     */
+    public boolean update(long time, int windowFill, float position) {
+        boolean present = windowFill >= triggerFillResetThreshold && !Float.isNaN(position);
+        if (!present) {
+            if (!passing) {
+                return false;
+            }
+            if (absentSinceTime == NONE) {
+                absentSinceTime = time;
+            }
+            if (time - absentSinceTime < triggerResetTime) {
+                // The marker might reappear in the same pass
+                return false;
+            }
+            boolean triggered = false;
+            if (passReachedThreshold && !passCounted) {
+                // Seen too briefly to cross the middle
+                triggered = trigger(closestTime);
+            }
+            if (previousPosition != passFirstPosition) {
+                direction = previousPosition > passFirstPosition ? 1 : -1;
+            }
+            passing = false;
+            absentSinceTime = NONE;
+            return triggered;
+        }
+        absentSinceTime = NONE;
+        boolean startOfPass = !passing;
+        if (startOfPass) {
+            passing = true;
+            passReachedThreshold = passCounted = false;
+            passFirstPosition = closestPosition = position;
+            closestTime = time;
+        } else if (Math.abs(position - CENTER) < Math.abs(closestPosition - CENTER)) {
+            closestPosition = position;
+            closestTime = time;
+        }
+        passReachedThreshold |= windowFill >= triggerFillThreshold;
+        boolean triggered = false;
+        if (!startOfPass && passReachedThreshold && !passCounted && time > previousTime &&
+                (previousPosition < CENTER) != (position < CENTER)) {
+            // Crossed the middle between the previous and this frame
+            triggered = trigger(previousTime + (long) ((time - previousTime) *
+                    (CENTER - previousPosition) / (position - previousPosition)));
+            direction = position > previousPosition ? 1 : -1;
+        }
+        previousPosition = position;
+        previousTime = time;
+        return triggered;
+    }
+
+    private boolean trigger(long time) {
+        passCounted = true;
+        if (triggerTime != NONE && time > triggerTime) {
+            rotationTime = time - triggerTime;
+        }
+        triggerTime = time;
+        return true;
+    }
+
+    /**
+     * @return time when the marker crossed the middle of the window or was closest to it
+     */
+    public long getTriggerTime() {
+        return triggerTime;
+    }
+
+    /**
+     * @return 1 when the marker moves from left to right in the rotated preview, -1 for the opposite
+     * direction or 0 when unknown
+     */
+    public int getDirection() {
+        return direction;
+    }
+
+    /**
+     * @return estimated fraction of the current rotation from 0 to 1, NaN before two passes were counted
+     */
+    public float getProgress(long time) {
+        if (rotationTime == NONE) {
+            return Float.NaN;
+        }
+        return Math.max(0, Math.min(1, (float) (time - triggerTime) / rotationTime));
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.unrud.elektrometer;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, gauges and histograms of the capture pipeline, served in the Prometheus text format.
+ * <p>
+ * Updating a metric never blocks and doesn't allocate, it can be done for every frame. Counters and
+ * histograms are created on first use and the same instance is returned for the same name, gauges and
+ * counters that are read from a supplier replace the previous supplier.
+ * <p>
+ * Names are given without the prefix of the registry, which is only added in the Prometheus output.
+ */
+public class MetricsRegistry implements HttpServer.Handler {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    public static final String DEFAULT_PREFIX = "elektrometer_";
+
+    private final String prefix;
+    // Insertion order is the order of the output, guarded by this
+    private final Map<String, Metric> metrics = new LinkedHashMap<>();
+
+    public MetricsRegistry() {
+        this(DEFAULT_PREFIX);
+    }
+
+    /**
+     * @param prefix added to the names of all metrics in the Prometheus output
+     */
+    public MetricsRegistry(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public synchronized Counter counter(String name, String help) {
+        Metric metric = metrics.get(name);
+        if (metric instanceof Counter) {
+            return (Counter) metric;
+        }
+        Counter counter = new Counter(name, help);
+        metrics.put(name, counter);
+        return counter;
+    }
+
+    /**
+     * Registers a counter that is maintained elsewhere.
+     */
+    public synchronized void counter(String name, String help, LongSupplier value) {
+        metrics.put(name, new SuppliedMetric(name, help, "counter", () -> (double) value.getAsLong()));
+    }
+
+    public synchronized void gauge(String name, String help, DoubleSupplier value) {
+        metrics.put(name, new SuppliedMetric(name, help, "gauge", value));
+    }
+
+    /**
+     * @param bounds ascending upper bounds of the buckets, the bucket {@code +Inf} is added
+     */
+    public synchronized Histogram histogram(String name, String help, double... bounds) {
+        Metric metric = metrics.get(name);
+        if (metric instanceof Histogram && Arrays.equals(((Histogram) metric).bounds, bounds)) {
+            return (Histogram) metric;
+        }
+        Histogram histogram = new Histogram(name, help, bounds);
+        metrics.put(name, histogram);
+        return histogram;
+    }
+
+    private synchronized List<Metric> snapshot() {
+        return new ArrayList<>(metrics.values());
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text format.
+     */
+    public void write(Writer writer) throws IOException {
+        for (Metric metric : snapshot()) {
+            String name = prefix + metric.name;
+            writer.write("# HELP " + name + " " + metric.help.replace("\\", "\\\\").replace("\n", "\\n") + "\n");
+            writer.write("# TYPE " + name + " " + metric.type + "\n");
+            metric.write(writer, name);
+        }
+    }
+
+    /**
+     * @return one short line per metric for showing on the screen, without the prefix, histograms with the
+     * number of observations, the mean and the estimated 90th percentile
+     */
+    public List<String> summarize() {
+        List<Metric> snapshot = snapshot();
+        List<String> lines = new ArrayList<>(snapshot.size());
+        for (Metric metric : snapshot) {
+            lines.add(metric.name + ": " + metric.summarize());
+        }
+        return lines;
+    }
+
+    @Override
+    public void handle(HttpServer.Request request, HttpServer.Response response) throws IOException {
+        response.setHeader("Content-Type", CONTENT_TYPE);
+        response.setHeader("Cache-Control", "no-cache");
+        Writer writer = new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8);
+        if (request.isHead()) {
+            return;
+        }
+        write(writer);
+        writer.flush();
+    }
+
+    private static String formatValue(double value) {
+        if (value == Double.POSITIVE_INFINITY) {
+            return "+Inf";
+        }
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    private static String formatShort(double value) {
+        if (Double.isNaN(value)) {
+            return "-";
+        }
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return String.format(Locale.US, "%.3g", value);
+    }
+
+    private abstract static class Metric {
+        final String name, help, type;
+
+        Metric(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+
+        /**
+         * @param name with the prefix of the registry
+         */
+        abstract void write(Writer writer, String name) throws IOException;
+
+        abstract String summarize();
+    }
+
+    public static class Counter extends Metric {
+        private final AtomicLong value = new AtomicLong();
+
+        private Counter(String name, String help) {
+            super(name, help, "counter");
+        }
+
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        public void add(long amount) {
+            value.addAndGet(amount);
+        }
+
+        public long get() {
+            return value.get();
+        }
+
+        @Override
+        void write(Writer writer, String name) throws IOException {
+            writer.write(name + " " + value.get() + "\n");
+        }
+
+        @Override
+        String summarize() {
+            return Long.toString(value.get());
+        }
+    }
+
+    private static class SuppliedMetric extends Metric {
+        private final DoubleSupplier value;
+
+        SuppliedMetric(String name, String help, String type, DoubleSupplier value) {
+            super(name, help, type);
+            this.value = value;
+        }
+
+        @Override
+        void write(Writer writer, String name) throws IOException {
+            writer.write(name + " " + formatValue(value.getAsDouble()) + "\n");
+        }
+
+        @Override
+        String summarize() {
+            return formatShort(value.getAsDouble());
+        }
+    }
+
+    /**
+     * Counts observations in fixed buckets. The buckets, the count and the sum are updated
+     * independently, a concurrent reader can see an observation in some of them only.
+     */
+    public static class Histogram extends Metric {
+        private final double[] bounds;
+        // Not cumulative, the last bucket is +Inf
+        private final AtomicLongArray buckets;
+        private final AtomicLong count = new AtomicLong();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        private Histogram(String name, String help, double[] bounds) {
+            super(name, help, "histogram");
+            if (bounds.length == 0) {
+                throw new IllegalArgumentException("no bounds");
+            }
+            for (int i = 1; i < bounds.length; i++) {
+                if (!(bounds[i - 1] < bounds[i])) {
+                    throw new IllegalArgumentException("bounds not ascending");
+                }
+            }
+            this.bounds = bounds.clone();
+            buckets = new AtomicLongArray(bounds.length + 1);
+        }
+
+        public void observe(double value) {
+            int i = 0;
+            while (i < bounds.length && value > bounds[i]) {
+                i++;
+            }
+            buckets.incrementAndGet(i);
+            sum.add(value);
+            count.incrementAndGet();
+        }
+
+        /**
+         * @param nanos duration in nanoseconds, observed in seconds
+         */
+        public void observeNanos(long nanos) {
+            observe(nanos / 1e9);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * @return the upper bound of the bucket that contains the quantile or NaN without observations
+         */
+        public double estimateQuantile(double quantile) {
+            long total = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                total += buckets.get(i);
+            }
+            if (total == 0) {
+                return Double.NaN;
+            }
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                cumulative += buckets.get(i);
+                if (cumulative >= quantile * total) {
+                    return bounds[i];
+                }
+            }
+            return Double.POSITIVE_INFINITY;
+        }
+
+        @Override
+        void write(Writer writer, String name) throws IOException {
+            long cumulative = 0;
+            for (int i = 0; i <= bounds.length; i++) {
+                cumulative += buckets.get(i);
+                writer.write(name + "_bucket{le=\"" +
+                        formatValue(i < bounds.length ? bounds[i] : Double.POSITIVE_INFINITY) + "\"} " +
+                        cumulative + "\n");
+            }
+            writer.write(name + "_sum " + formatValue(sum.sum()) + "\n");
+            writer.write(name + "_count " + cumulative + "\n");
+        }
+
+        @Override
+        String summarize() {
+            long n = count.get();
+            if (n == 0) {
+                return "n=0";
+            }
+            double p90 = estimateQuantile(0.9);
+            return "n=" + n + " mean=" + formatShort(sum.sum() / n) + " p90" +
+                    (p90 == Double.POSITIVE_INFINITY ? ">" + formatShort(bounds[bounds.length - 1])
+                            : "<=" + formatShort(p90));
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.unrud.elektrometer;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * Measures the window fill of a {@link DetectionEngine} on multiple cores.
+ * <p>
+ * The window is split into bands of rows. The calling thread scans the first band and a fixed
+ * set of worker threads scan the others, the partial match counts are added up afterwards.
+ * <p>
+ * Scanning moves the positions of the buffers, so every worker scans duplicates of them. Unlike
+ * {@link DetectionEngine}, this allocates three {@link ByteBuffer} objects per worker and frame.
+ */
+public class ParallelWindowScanner implements Closeable {
+    private static final String THREAD_NAME = "elektrometer::ParallelWindowScanner";
+
+    private final DetectionEngine detectionEngine;
+    private final int bandCount;
+    private final int[] bandStart, bandEnd, bandMatchCount;
+    private final DetectionEngine.ScanContext[] bandScanContexts;
+    private final Thread[] workers;
+    private final CyclicBarrier startBarrier, finishBarrier;
+    private final RuntimeException[] bandError;
+    // Frame that is scanned, published to the workers by startBarrier
+    private ByteBuffer yBuffer, uBuffer, vBuffer;
+    private int yRowStride, yPixelStride, uRowStride, uPixelStride, vRowStride, vPixelStride;
+    private volatile boolean closed;
+
+    /**
+     * @param bandCount number of bands, one thread is started for every band but the first
+     */
+    public ParallelWindowScanner(DetectionEngine detectionEngine, int bandCount) {
+        if (bandCount < 1) {
+            throw new IllegalArgumentException("bandCount must be positive");
+        }
+        this.detectionEngine = detectionEngine;
+        this.bandCount = bandCount;
+        bandStart = new int[bandCount];
+        bandEnd = new int[bandCount];
+        bandMatchCount = new int[bandCount];
+        bandError = new RuntimeException[bandCount];
+        bandScanContexts = new DetectionEngine.ScanContext[bandCount];
+        for (int band = 0; band < bandCount; band++) {
+            bandScanContexts[band] = new DetectionEngine.ScanContext();
+        }
+        startBarrier = new CyclicBarrier(bandCount);
+        finishBarrier = new CyclicBarrier(bandCount);
+        workers = new Thread[bandCount - 1];
+        for (int i = 0; i < workers.length; i++) {
+            final int band = i + 1;
+            workers[i] = new Thread(() -> runWorker(band), THREAD_NAME + "::" + band);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    public int getBandCount() {
+        return bandCount;
+    }
+
+    /**
+     * @see DetectionEngine#measureWindowFill(ByteBuffer, int, int, ByteBuffer, int, int, ByteBuffer, int, int)
+     */
+    public int measureWindowFill(ByteBuffer yBuffer, int yRowStride, int yPixelStride,
+                                 ByteBuffer uBuffer, int uRowStride, int uPixelStride,
+                                 ByteBuffer vBuffer, int vRowStride, int vPixelStride) {
+        if (closed) {
+            throw new IllegalStateException("closed");
+        }
+        this.yBuffer = yBuffer;
+        this.yRowStride = yRowStride;
+        this.yPixelStride = yPixelStride;
+        this.uBuffer = uBuffer;
+        this.uRowStride = uRowStride;
+        this.uPixelStride = uPixelStride;
+        this.vBuffer = vBuffer;
+        this.vRowStride = vRowStride;
+        this.vPixelStride = vPixelStride;
+        // Split the window into bands with the same number of scanned rows
+        int feed = detectionEngine.getLineAndColumnFeed();
+        int windowStartY = detectionEngine.getWindowStartY();
+        int windowEndY = detectionEngine.getWindowEndY();
+        int rowCount = Math.max(0, (windowEndY - windowStartY + feed - 1) / feed);
+        for (int band = 0; band < bandCount; band++) {
+            bandStart[band] = windowStartY + rowCount * band / bandCount * feed;
+            bandEnd[band] = Math.min(windowEndY, windowStartY + rowCount * (band + 1) / bandCount * feed);
+        }
+        await(startBarrier);
+        scanBand(0);
+        await(finishBarrier);
+        this.yBuffer = this.uBuffer = this.vBuffer = null;
+        int matchCount = 0;
+        long matchSumX = 0, matchSumY = 0;
+        for (int band = 0; band < bandCount; band++) {
+            if (bandError[band] != null) {
+                RuntimeException e = bandError[band];
+                bandError[band] = null;
+                throw e;
+            }
+            matchCount += bandMatchCount[band];
+            matchSumX += bandScanContexts[band].matchSumX;
+            matchSumY += bandScanContexts[band].matchSumY;
+        }
+        return detectionEngine.finishScan(matchCount, matchSumX, matchSumY);
+    }
+
+    private void scanBand(int band) {
+        try {
+            // The calling thread reads through the original buffers and restores their positions
+            boolean duplicate = band != 0;
+            bandMatchCount[band] = detectionEngine.countMatches(bandStart[band], bandEnd[band],
+                    duplicate ? yBuffer.duplicate() : yBuffer, yRowStride, yPixelStride,
+                    duplicate ? uBuffer.duplicate() : uBuffer, uRowStride, uPixelStride,
+                    duplicate ? vBuffer.duplicate() : vBuffer, vRowStride, vPixelStride, bandScanContexts[band]);
+        } catch (RuntimeException e) {
+            bandMatchCount[band] = 0;
+            bandError[band] = e;
+        }
+    }
+
+    private void runWorker(int band) {
+        while (true) {
+            try {
+                startBarrier.await();
+            } catch (InterruptedException | BrokenBarrierException e) {
+                return;
+            }
+            scanBand(band);
+            try {
+                finishBarrier.await();
+            } catch (InterruptedException | BrokenBarrierException e) {
+                return;
+            }
+        }
+    }
+
+    private static void await(CyclicBarrier barrier) {
+        try {
+            barrier.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while scanning", e);
+        } catch (BrokenBarrierException e) {
+            throw new IllegalStateException("scanner was closed", e);
+        }
+    }
+
+    /**
+     * Stops the worker threads. Must not be called while {@link #measureWindowFill} is running.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+}
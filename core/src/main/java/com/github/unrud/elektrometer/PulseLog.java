@@ -0,0 +1,50 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.unrud.elektrometer;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Destination for detected pulses.
+ */
+public interface PulseLog extends Closeable {
+    long NO_PULSE = Long.MIN_VALUE;
+
+    /**
+     * @param wallClockTime milliseconds since the unix epoch
+     */
+    void append(long wallClockTime) throws IOException;
+
+    /**
+     * Makes appended pulses visible to readers.
+     */
+    void flush() throws IOException;
+
+    /**
+     * Flushes and syncs appended pulses to disk.
+     */
+    void sync() throws IOException;
+
+    /**
+     * Used to append pulses again that might have been lost when writing failed.
+     *
+     * @return time of the last appended pulse in milliseconds since the unix epoch or {@link #NO_PULSE}
+     */
+    long getLastPulseTime();
+}
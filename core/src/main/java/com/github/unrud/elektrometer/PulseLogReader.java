@@ -0,0 +1,33 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.unrud.elektrometer;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Reads pulses from a {@link PulseLog} in the order they were appended.
+ */
+public interface PulseLogReader extends Closeable {
+    long END = -1;
+
+    /**
+     * @return milliseconds since the unix epoch or {@link #END}
+     */
+    long read() throws IOException;
+}
@@ -0,0 +1,372 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.unrud.elektrometer;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Number of pulses per minute, hour, day or month in local time, updated with every pulse.
+ * <p>
+ * File layout (big endian):
+ * <ul>
+ * <li>Header: magic {@code EMRU}, version, period, reserved (4 bytes each)</li>
+ * <li>Records: start of the period (8 bytes), number of pulses (4 bytes), time of the last pulse
+ * counted in the record (8 bytes)</li>
+ * </ul>
+ * Pulses that are not after the last counted pulse are ignored, the same pulses can be counted
+ * again after a rebuild. The count and the time of the last pulse are updated with a single write,
+ * a failed write can't leave the count ahead of the time.
+ */
+public class PulseRollup implements PulseLog {
+    private static final int MAGIC = 0x454d5255; // EMRU
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 20;
+
+    public enum Period {
+        MINUTE("minutes", Calendar.MINUTE, 60 * 1000),
+        HOUR("hours", Calendar.HOUR_OF_DAY, 60 * 60 * 1000),
+        DAY("days", Calendar.DAY_OF_MONTH, 0),
+        MONTH("months", Calendar.MONTH, 0);
+
+        private final String name;
+        private final int calendarField;
+        private final long length;
+
+        /**
+         * @param length fixed length in milliseconds or 0 if it depends on the calendar
+         */
+        Period(String name, int calendarField, long length) {
+            this.name = name;
+            this.calendarField = calendarField;
+            this.length = length;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the period or null if the name is unknown
+         */
+        public static Period fromName(String name) {
+            for (Period period : values()) {
+                if (period.name.equals(name)) {
+                    return period;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @param calendar used for the time zone and calculations
+         * @return start of the period that contains {@code time}
+         */
+        long start(Calendar calendar, long time) {
+            if (length > 0) {
+                // Calendar fields are ambiguous when the clock is turned back
+                long localTime = time + calendar.getTimeZone().getOffset(time);
+                return time - Math.floorMod(localTime, length);
+            }
+            calendar.setTimeInMillis(time);
+            calendar.set(Calendar.MILLISECOND, 0);
+            calendar.set(Calendar.SECOND, 0);
+            calendar.set(Calendar.MINUTE, 0);
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+            if (this == MONTH) {
+                calendar.set(Calendar.DAY_OF_MONTH, 1);
+            }
+            return calendar.getTimeInMillis();
+        }
+
+        /**
+         * @return start of the following period
+         */
+        long end(Calendar calendar, long start) {
+            if (length > 0) {
+                return start + length;
+            }
+            calendar.setTimeInMillis(start);
+            calendar.add(calendarField, 1);
+            return calendar.getTimeInMillis();
+        }
+    }
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final Period period;
+    private final Calendar calendar;
+    private final ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+    private long recordCount, lastPulseTime = NO_PULSE, currentStart, currentEnd;
+    private int currentCount;
+    private boolean dirty;
+
+    /**
+     * Opens or creates the rollup for appending.
+     *
+     * @param timeZone time zone of the period boundaries
+     */
+    public PulseRollup(File file, Period period, TimeZone timeZone) throws IOException {
+        this.period = period;
+        calendar = Calendar.getInstance(timeZone);
+        this.file = new RandomAccessFile(file, "rw");
+        channel = this.file.getChannel();
+        try {
+            if (channel.size() == 0) {
+                writeHeader();
+            } else {
+                Period filePeriod = readHeader(channel);
+                if (filePeriod != period) {
+                    throw new IOException("rollup has period " + filePeriod.getName());
+                }
+            }
+            // Discard an incompletely written record
+            recordCount = (channel.size() - HEADER_SIZE) / RECORD_SIZE;
+            channel.truncate(recordOffset(recordCount));
+            if (recordCount > 0) {
+                readFully(channel, buffer, recordOffset(recordCount - 1), RECORD_SIZE);
+                setCurrent(buffer.getLong());
+                currentCount = buffer.getInt();
+                lastPulseTime = buffer.getLong();
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public Period getPeriod() {
+        return period;
+    }
+
+    @Override
+    public long getLastPulseTime() {
+        return lastPulseTime;
+    }
+
+    /**
+     * @return true when the rollup doesn't contain any pulses
+     */
+    public boolean isEmpty() {
+        return lastPulseTime == NO_PULSE;
+    }
+
+    private static long recordOffset(long record) {
+        return HEADER_SIZE + record * RECORD_SIZE;
+    }
+
+    private void setCurrent(long start) {
+        currentStart = start;
+        currentEnd = period.end(calendar, start);
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(period.ordinal()).putInt(0).flip();
+        writeFully(channel, header, 0);
+    }
+
+    /**
+     * @return the period
+     */
+    private static Period readHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, 0, HEADER_SIZE);
+        if (header.getInt() != MAGIC) {
+            throw new IOException("not a pulse rollup");
+        }
+        int periodOrdinal;
+        if (header.getInt() != VERSION || (periodOrdinal = header.getInt()) < 0 ||
+                periodOrdinal >= Period.values().length) {
+            throw new IOException("unsupported pulse rollup version");
+        }
+        return Period.values()[periodOrdinal];
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position, int length)
+            throws IOException {
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("unexpected end of file");
+            }
+        }
+        buffer.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private void writeCurrentRecord() throws IOException {
+        buffer.clear();
+        buffer.putLong(currentStart).putInt(currentCount).putLong(lastPulseTime).flip();
+        writeFully(channel, buffer, recordOffset(recordCount - 1));
+    }
+
+    /**
+     * Counts the pulse. Changes are written by {@link #flush()}.
+     */
+    @Override
+    public void append(long wallClockTime) throws IOException {
+        if (lastPulseTime != NO_PULSE && wallClockTime <= lastPulseTime) {
+            return;
+        }
+        // Pulses before the current period can only occur when the time zone changed,
+        // they are counted in the current period
+        if (recordCount == 0 || wallClockTime >= currentEnd) {
+            if (dirty) {
+                writeCurrentRecord();
+            }
+            setCurrent(period.start(calendar, wallClockTime));
+            currentCount = 0;
+            recordCount++;
+        }
+        currentCount++;
+        lastPulseTime = wallClockTime;
+        dirty = true;
+    }
+
+    /**
+     * Writes the current record.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        writeCurrentRecord();
+        dirty = false;
+    }
+
+    @Override
+    public void sync() throws IOException {
+        flush();
+        channel.force(false);
+    }
+
+    /**
+     * Removes all pulses.
+     */
+    public void clear() throws IOException {
+        channel.truncate(HEADER_SIZE);
+        recordCount = 0;
+        currentCount = 0;
+        lastPulseTime = NO_PULSE;
+        dirty = false;
+        writeHeader();
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Reads the records in ascending order.
+     */
+    public static class Reader implements Closeable {
+        private final DataInputStream inputStream;
+        private final Period period;
+        private final long lastPulseTime;
+        private long remainingRecords, start;
+        private int count;
+
+        public Reader(File file) throws IOException {
+            FileInputStream fileInputStream = new FileInputStream(file);
+            try {
+                // Records that are appended while reading are ignored
+                FileChannel channel = fileInputStream.getChannel();
+                period = readHeader(channel);
+                remainingRecords = (channel.size() - HEADER_SIZE) / RECORD_SIZE;
+                if (remainingRecords > 0) {
+                    ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+                    readFully(channel, record, recordOffset(remainingRecords - 1), RECORD_SIZE);
+                    lastPulseTime = record.getLong(12);
+                } else {
+                    lastPulseTime = NO_PULSE;
+                }
+                channel.position(HEADER_SIZE);
+            } catch (IOException e) {
+                fileInputStream.close();
+                throw e;
+            }
+            inputStream = new DataInputStream(new BufferedInputStream(fileInputStream));
+        }
+
+        public Period getPeriod() {
+            return period;
+        }
+
+        /**
+         * @return time of the last counted pulse in milliseconds or {@link PulseLogReader#END} if
+         * there is none
+         */
+        public long getLastPulseTime() {
+            return lastPulseTime == NO_PULSE ? PulseLogReader.END : lastPulseTime;
+        }
+
+        /**
+         * Advances to the next record.
+         *
+         * @return false at the end
+         */
+        public boolean next() throws IOException {
+            if (remainingRecords == 0) {
+                return false;
+            }
+            remainingRecords--;
+            start = inputStream.readLong();
+            count = inputStream.readInt();
+            inputStream.readLong();
+            return true;
+        }
+
+        /**
+         * @return start of the period of the current record in milliseconds
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * @return number of pulses in the period of the current record
+         */
+        public int getCount() {
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            inputStream.close();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.unrud.elektrometer;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Serves the rollup of the period given by the query parameter {@code period} (e.g.
+ * {@code hours}) of a detection log.
+ * <p>
+ * Every line contains the start of a period as unix time stamp in seconds and the number of pulses.
+ * The time of the last counted pulse is sent in the header {@link #LAST_PULSE_HEADER}, pulses after
+ * it can be requested from the log.
+ */
+public class PulseRollupHandler implements HttpServer.Handler {
+    public static final String LAST_PULSE_HEADER = "X-Rollup-Last-Pulse";
+
+    private final File log;
+
+    public PulseRollupHandler(File log) {
+        this.log = log;
+    }
+
+    @Override
+    public void handle(HttpServer.Request request, HttpServer.Response response) throws IOException {
+        PulseRollup.Period period = PulseRollup.Period.fromName(String.valueOf(request.getParameter("period")));
+        if (period == null) {
+            response.sendError(400, "Bad Request");
+            return;
+        }
+        PulseRollup.Reader reader;
+        try {
+            reader = new PulseRollup.Reader(PulseRollups.rollupFile(log, period));
+        } catch (FileNotFoundException e) {
+            response.sendError(404, "Not Found");
+            return;
+        }
+        try {
+            response.setHeader("Content-Type", "text/plain; charset=utf-8");
+            response.setHeader("Cache-Control", "no-cache");
+            long lastPulseTime = reader.getLastPulseTime();
+            if (lastPulseTime != PulseLogReader.END) {
+                response.setHeader(LAST_PULSE_HEADER, String.format(Locale.US, "%d.%03d",
+                        Math.floorDiv(lastPulseTime, 1000), Math.floorMod(lastPulseTime, 1000)));
+            }
+            OutputStream outputStream = response.getOutputStream();
+            if (request.isHead()) {
+                return;
+            }
+            Writer writer = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
+            while (reader.next()) {
+                writer.write(Long.toString(Math.floorDiv(reader.getStart(), 1000)));
+                writer.write(' ');
+                writer.write(Integer.toString(reader.getCount()));
+                writer.write('\n');
+            }
+            writer.flush();
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.unrud.elektrometer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Rollups of all periods for a detection log, stored next to it as
+ * {@code <name>.<period>.rollup} (e.g. {@code ElektroMeter.hours.rollup}).
+ * <p>
+ * When a rollup was created or is empty while the log isn't, all rollups are rebuilt from the log
+ * when they are opened.
+ */
+public class PulseRollups implements PulseLog {
+    private static final String SUFFIX = ".rollup";
+
+    private final File log;
+    private final List<PulseRollup> rollups = new ArrayList<>();
+
+    /**
+     * @param log text (including its closed segments) or binary detection log
+     * @param timeZone time zone of the period boundaries
+     * @throws IOException also when rebuilding the rollups failed, it's retried when they are opened again
+     */
+    public PulseRollups(File log, TimeZone timeZone) throws IOException {
+        this.log = log;
+        try {
+            boolean rebuild = false;
+            for (PulseRollup.Period period : PulseRollup.Period.values()) {
+                PulseRollup rollup = new PulseRollup(rollupFile(log, period), period, timeZone);
+                rollups.add(rollup);
+                rebuild |= rollup.isEmpty();
+            }
+            if (rebuild && (log.length() > 0 || SegmentedPulseLog.manifestFile(log).exists())) {
+                rebuild();
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public static File rollupFile(File log, PulseRollup.Period period) {
+        String name = log.getName();
+        int extension = name.lastIndexOf('.');
+        if (extension > 0) {
+            name = name.substring(0, extension);
+        }
+        return new File(log.getParentFile(), name + "." + period.getName() + SUFFIX);
+    }
+
+    /**
+     * Replaces the content of all rollups with the pulses from the log.
+     * Pulses appended to the log after they were read are counted when they are appended.
+     *
+     * @return the number of pulses read from the log
+     */
+    public long rebuild() throws IOException {
+        for (PulseRollup rollup : rollups) {
+            rollup.clear();
+        }
+        long count = 0;
+        if (log.exists()) {
+            try (PulseLogReader reader = BinaryPulseLog.isBinaryPulseLog(log) ?
+                    new BinaryPulseLog.Reader(log) : new SegmentedPulseLog.Reader(log)) {
+                long wallClockTime;
+                while ((wallClockTime = reader.read()) != PulseLogReader.END) {
+                    for (PulseRollup rollup : rollups) {
+                        rollup.append(wallClockTime);
+                    }
+                    count++;
+                }
+            }
+        }
+        flush();
+        return count;
+    }
+
+    @Override
+    public void append(long wallClockTime) throws IOException {
+        for (PulseRollup rollup : rollups) {
+            rollup.append(wallClockTime);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        for (PulseRollup rollup : rollups) {
+            rollup.flush();
+        }
+    }
+
+    /**
+     * @return the earliest last pulse of the rollups, every rollup ignores the pulses it already counted
+     */
+    @Override
+    public long getLastPulseTime() {
+        long lastPulseTime = Long.MAX_VALUE;
+        for (PulseRollup rollup : rollups) {
+            lastPulseTime = Math.min(lastPulseTime, rollup.getLastPulseTime());
+        }
+        return lastPulseTime;
+    }
+
+    @Override
+    public void sync() throws IOException {
+        for (PulseRollup rollup : rollups) {
+            rollup.sync();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException exception = null;
+        for (PulseRollup rollup : rollups) {
+            try {
+                rollup.close();
+            } catch (IOException e) {
+                exception = e;
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.unrud.elektrometer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Lossless dump of a camera image with the Y, U and V planes as delivered by the camera.
+ * <p>
+ * File layout (big endian):
+ * <ul>
+ * <li>Header: magic {@code EMRD}, version, image width, image height (4 bytes each), sensor time in
+ * milliseconds (8 bytes)</li>
+ * <li>Row stride, pixel stride and length of the Y, U and V plane (4 bytes each)</li>
+ * <li>The data of the Y, U and V plane</li>
+ * </ul>
+ */
+public final class RawDump {
+    private static final int MAGIC = 0x454d5244; // EMRD
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 60;
+
+    private final int width, height;
+    private final long time;
+    private final Plane[] planes;
+
+    private RawDump(int width, int height, long time, Plane[] planes) {
+        this.width = width;
+        this.height = height;
+        this.time = time;
+        this.planes = planes;
+    }
+
+    /**
+     * Writes the remaining bytes of the buffers without copying them, their positions are unchanged.
+     */
+    public static void write(File file, int width, int height, long time,
+                             ByteBuffer yBuffer, int yRowStride, int yPixelStride,
+                             ByteBuffer uBuffer, int uRowStride, int uPixelStride,
+                             ByteBuffer vBuffer, int vRowStride, int vPixelStride) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putLong(time)
+                .putInt(yRowStride).putInt(yPixelStride).putInt(yBuffer.remaining())
+                .putInt(uRowStride).putInt(uPixelStride).putInt(uBuffer.remaining())
+                .putInt(vRowStride).putInt(vPixelStride).putInt(vBuffer.remaining());
+        header.flip();
+        ByteBuffer[] buffers = {header, yBuffer.duplicate(), uBuffer.duplicate(), vBuffer.duplicate()};
+        try (FileOutputStream outputStream = new FileOutputStream(file);
+             FileChannel channel = outputStream.getChannel()) {
+            while (buffers[buffers.length - 1].hasRemaining()) {
+                channel.write(buffers);
+            }
+        }
+    }
+
+    public static boolean isRawDump(File file) throws IOException {
+        if (file.length() < HEADER_SIZE) {
+            return false;
+        }
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            return randomAccessFile.readInt() == MAGIC;
+        }
+    }
+
+    public static RawDump read(File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            if (randomAccessFile.length() < HEADER_SIZE || randomAccessFile.readInt() != MAGIC) {
+                throw new IOException("not a raw dump");
+            }
+            if (randomAccessFile.readInt() != VERSION) {
+                throw new IOException("unsupported raw dump version");
+            }
+            int width = randomAccessFile.readInt(), height = randomAccessFile.readInt();
+            long time = randomAccessFile.readLong();
+            int[] rowStrides = new int[3], pixelStrides = new int[3], lengths = new int[3];
+            long dataLength = 0;
+            for (int i = 0; i < 3; i++) {
+                rowStrides[i] = randomAccessFile.readInt();
+                pixelStrides[i] = randomAccessFile.readInt();
+                lengths[i] = randomAccessFile.readInt();
+                dataLength += lengths[i];
+            }
+            if (width <= 0 || height <= 0 || lengths[0] < 0 || lengths[1] < 0 || lengths[2] < 0 ||
+                    randomAccessFile.length() != HEADER_SIZE + dataLength) {
+                throw new IOException("corrupt raw dump");
+            }
+            Plane[] planes = new Plane[3];
+            for (int i = 0; i < 3; i++) {
+                byte[] data = new byte[lengths[i]];
+                randomAccessFile.readFully(data);
+                planes[i] = new Plane(ByteBuffer.wrap(data), rowStrides[i], pixelStrides[i]);
+                int planeWidth = i == 0 ? width : (width + 1) / 2, planeHeight = i == 0 ? height : (height + 1) / 2;
+                if (planes[i].getRowStride() < 0 || planes[i].getPixelStride() <= 0 ||
+                        (long) (planeHeight - 1) * planes[i].getRowStride() +
+                                (long) (planeWidth - 1) * planes[i].getPixelStride() >= lengths[i]) {
+                    throw new IOException("corrupt raw dump");
+                }
+            }
+            return new RawDump(width, height, time, planes);
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return sensor time in milliseconds
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @param index 0 for Y, 1 for U and 2 for V
+     */
+    public Plane getPlane(int index) {
+        return planes[index];
+    }
+
+    public static final class Plane {
+        private final ByteBuffer buffer;
+        private final int rowStride, pixelStride;
+
+        private Plane(ByteBuffer buffer, int rowStride, int pixelStride) {
+            this.buffer = buffer;
+            this.rowStride = rowStride;
+            this.pixelStride = pixelStride;
+        }
+
+        public ByteBuffer getBuffer() {
+            return buffer;
+        }
+
+        public int getRowStride() {
+            return rowStride;
+        }
+
+        public int getPixelStride() {
+            return pixelStride;
+        }
+    }
+}
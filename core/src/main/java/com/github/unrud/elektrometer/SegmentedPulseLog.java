@@ -0,0 +1,612 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.unrud.elektrometer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.EventListener;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * {@link TextPulseLog} that is split into monthly segments.
+ * <p>
+ * Pulses are appended to the log (e.g. {@code ElektroMeter.log}). When the first pulse of a new month is
+ * appended, the log is renamed to a closed segment named after the month of its first pulse (e.g.
+ * {@code ElektroMeter.2026-09.log}) and a new log is started. Closed segments are optionally compressed with
+ * gzip on a background thread ({@code ElektroMeter.2026-09.log.gz}). Closed segments whose pulses are all older
+ * than the retention period are deleted when the log is opened and rotated.
+ * <p>
+ * The manifest ({@code ElektroMeter.segments}) lists the closed segments with one line per segment: the file
+ * name, the time stamps of the first and the last pulse and the number of pulses. It's replaced atomically
+ * and repaired from the segment files when the log is opened after a crash.
+ */
+public class SegmentedPulseLog implements PulseLog {
+    public static final String GZIP_SUFFIX = ".gz";
+    private static final String MANIFEST_SUFFIX = ".segments";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final String THREAD_NAME = "elektrometer::SegmentedPulseLog";
+
+    private final File log;
+    private final Calendar calendar;
+    private final ExecutorService compressor;
+    private final CompressionListener compressionListener;
+    private final int retentionMonths;
+    // Guards the manifest, which is also updated by the compressor
+    private final Object manifestLock = new Object();
+    // Stops a running compression
+    private volatile boolean closed;
+    private TextPulseLog activeLog;
+    private long activeSegmentEnd = NO_PULSE, closedSegmentsLastPulse = NO_PULSE;
+
+    /**
+     * Opens or creates the log for appending.
+     *
+     * @param timeZone time zone of the month boundaries
+     * @param compress compress closed segments, including uncompressed segments from before
+     */
+    public SegmentedPulseLog(File log, TimeZone timeZone, boolean compress) throws IOException {
+        this(log, timeZone, compress, 0, (segment, e) -> {
+        });
+    }
+
+    /**
+     * @param retentionMonths     number of months before the month of the latest pulse whose segments are kept,
+     *                            0 keeps all segments
+     * @param compressionListener is notified when compressing a segment failed
+     */
+    public SegmentedPulseLog(File log, TimeZone timeZone, boolean compress, int retentionMonths,
+                             CompressionListener compressionListener) throws IOException {
+        this.log = log;
+        this.retentionMonths = retentionMonths;
+        this.compressionListener = compressionListener;
+        calendar = Calendar.getInstance(timeZone);
+        compressor = compress ? Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, THREAD_NAME);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }) : null;
+        try {
+            List<Segment> segments = repairManifest(log);
+            for (Segment segment : segments) {
+                closedSegmentsLastPulse = Math.max(closedSegmentsLastPulse, segment.lastPulse);
+            }
+            try (TextPulseLog.Reader reader = new TextPulseLog.Reader(log)) {
+                long firstPulse = reader.read();
+                if (firstPulse != PulseLogReader.END) {
+                    activeSegmentEnd = monthEnd(firstPulse);
+                }
+            } catch (FileNotFoundException e) {
+                // Created below
+            }
+            activeLog = new TextPulseLog(log);
+            segments = deleteExpiredSegments(getLastPulseTime());
+            if (compress) {
+                for (Segment segment : segments) {
+                    if (!segment.isCompressed()) {
+                        scheduleCompression(segment);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public static File manifestFile(File log) {
+        return new File(log.getParentFile(), baseName(log) + MANIFEST_SUFFIX);
+    }
+
+    private static String baseName(File log) {
+        String name = log.getName();
+        int extension = name.lastIndexOf('.');
+        return extension > 0 ? name.substring(0, extension) : name;
+    }
+
+    private static String extension(File log) {
+        String name = log.getName();
+        int extension = name.lastIndexOf('.');
+        return extension > 0 ? name.substring(extension) : "";
+    }
+
+    private static Pattern segmentPattern(File log) {
+        return Pattern.compile(Pattern.quote(baseName(log)) + "\\.\\d{4}-\\d{2}(-\\d+)?" +
+                Pattern.quote(extension(log)) + "(" + Pattern.quote(GZIP_SUFFIX) + ")?");
+    }
+
+    private long monthEnd(long time) {
+        return PulseRollup.Period.MONTH.end(calendar, PulseRollup.Period.MONTH.start(calendar, time));
+    }
+
+    @Override
+    public void append(long wallClockTime) throws IOException {
+        if (activeSegmentEnd != NO_PULSE && wallClockTime >= activeSegmentEnd) {
+            rotate();
+            deleteExpiredSegments(wallClockTime);
+        }
+        if (activeSegmentEnd == NO_PULSE) {
+            activeSegmentEnd = monthEnd(wallClockTime);
+        }
+        activeLog.append(wallClockTime);
+    }
+
+    /**
+     * Closes the log as segment and starts a new log.
+     */
+    private void rotate() throws IOException {
+        TextPulseLog closedLog = activeLog;
+        activeLog = null;
+        // When closing fails, the log is continued and closing is retried at the next month boundary or when the
+        // log is opened again
+        activeSegmentEnd = NO_PULSE;
+        try {
+            closedLog.sync();
+            closedLog.close();
+            closeSegment();
+        } finally {
+            activeLog = new TextPulseLog(log);
+        }
+    }
+
+    private void closeSegment() throws IOException {
+        Segment segment = Segment.scan(log);
+        if (segment.count > 0) {
+            calendar.setTimeInMillis(segment.firstPulse);
+            String name = String.format(Locale.US, "%s.%04d-%02d", baseName(log),
+                    calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH) + 1);
+            File file = new File(log.getParentFile(), name + extension(log));
+            for (int i = 2; file.exists() || new File(file.getPath() + GZIP_SUFFIX).exists(); i++) {
+                file = new File(log.getParentFile(), name + "-" + i + extension(log));
+            }
+            if (!log.renameTo(file)) {
+                throw new IOException("failed to rename " + log + " to " + file);
+            }
+            segment = new Segment(file.getName(), segment.firstPulse, segment.lastPulse, segment.count);
+            closedSegmentsLastPulse = Math.max(closedSegmentsLastPulse, segment.lastPulse);
+            synchronized (manifestLock) {
+                List<Segment> segments = readManifest(log);
+                segments.add(segment);
+                writeManifest(log, segments);
+            }
+            if (compressor != null) {
+                scheduleCompression(segment);
+            }
+        }
+    }
+
+    /**
+     * Deletes the closed segments whose last pulse is before the retention period.
+     *
+     * @param latestPulse the retention period ends with the month of this pulse
+     * @return the remaining closed segments
+     */
+    private List<Segment> deleteExpiredSegments(long latestPulse) throws IOException {
+        synchronized (manifestLock) {
+            List<Segment> segments = readManifest(log);
+            if (retentionMonths <= 0 || latestPulse == NO_PULSE) {
+                return segments;
+            }
+            calendar.setTimeInMillis(PulseRollup.Period.MONTH.start(calendar, latestPulse));
+            calendar.add(Calendar.MONTH, -retentionMonths);
+            long retentionStart = calendar.getTimeInMillis();
+            List<Segment> kept = new ArrayList<>();
+            List<Segment> expired = new ArrayList<>();
+            for (Segment segment : segments) {
+                (segment.lastPulse < retentionStart ? expired : kept).add(segment);
+            }
+            if (expired.isEmpty()) {
+                return kept;
+            }
+            // Files that are left after a crash are listed again by repairManifest and deleted again
+            writeManifest(log, kept);
+            for (Segment segment : expired) {
+                File file = new File(log.getParentFile(), segment.name);
+                if (!file.delete() && file.exists()) {
+                    throw new IOException("failed to delete " + file);
+                }
+            }
+            return kept;
+        }
+    }
+
+    private void scheduleCompression(Segment segment) {
+        compressor.execute(() -> {
+            File file = new File(log.getParentFile(), segment.name);
+            File compressedFile = new File(file.getPath() + GZIP_SUFFIX);
+            File temporaryFile = new File(compressedFile.getPath() + TEMPORARY_SUFFIX);
+            try {
+                try (InputStream inputStream = new FileInputStream(file);
+                     FileOutputStream fileOutputStream = new FileOutputStream(temporaryFile);
+                     GZIPOutputStream outputStream = new GZIPOutputStream(fileOutputStream, 8192)) {
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = inputStream.read(buffer)) >= 0) {
+                        if (closed) {
+                            throw new IOException("closed");
+                        }
+                        outputStream.write(buffer, 0, read);
+                    }
+                    outputStream.finish();
+                    fileOutputStream.getFD().sync();
+                }
+                if (!temporaryFile.renameTo(compressedFile)) {
+                    throw new IOException("failed to rename " + temporaryFile);
+                }
+                synchronized (manifestLock) {
+                    List<Segment> segments = readManifest(log);
+                    boolean listed = false;
+                    for (int i = 0; i < segments.size(); i++) {
+                        if (segments.get(i).name.equals(segment.name)) {
+                            segments.set(i, segment.withName(compressedFile.getName()));
+                            listed = true;
+                        }
+                    }
+                    if (!listed) {
+                        // Deleted by the retention in the meantime
+                        compressedFile.delete();
+                        return;
+                    }
+                    writeManifest(log, segments);
+                }
+                // Readers fall back to the compressed file
+                if (!file.delete()) {
+                    throw new IOException("failed to delete " + file);
+                }
+            } catch (IOException e) {
+                // The segment stays uncompressed, compression is retried when the log is opened again
+                temporaryFile.delete();
+                if (!closed) {
+                    compressionListener.onCompressionFailed(segment.name, e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void flush() throws IOException {
+        activeLog.flush();
+    }
+
+    @Override
+    public void sync() throws IOException {
+        activeLog.sync();
+    }
+
+    @Override
+    public long getLastPulseTime() {
+        long lastPulseTime = activeLog.getLastPulseTime();
+        return lastPulseTime != NO_PULSE ? lastPulseTime : closedSegmentsLastPulse;
+    }
+
+    /**
+     * Cancels pending compressions and waits until a running compression stopped, they are retried when the log
+     * is opened again.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (compressor != null) {
+            compressor.shutdownNow();
+            boolean interrupted = false;
+            while (!compressor.isTerminated()) {
+                try {
+                    compressor.awaitTermination(1, TimeUnit.MINUTES);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (activeLog != null) {
+            activeLog.close();
+        }
+    }
+
+    /**
+     * @return closed segments ordered by their first pulse, empty when there is no manifest
+     */
+    public static List<Segment> readManifest(File log) throws IOException {
+        List<Segment> segments = new ArrayList<>();
+        File manifest = manifestFile(log);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.trim().split(" ");
+                try {
+                    if (fields.length != 4 || fields[0].contains("/")) {
+                        throw new NumberFormatException();
+                    }
+                    segments.add(new Segment(fields[0], parseTime(fields[1]), parseTime(fields[2]),
+                            Long.parseLong(fields[3])));
+                } catch (NumberFormatException | ArithmeticException e) {
+                    throw new IOException("invalid line in " + manifest + ": " + line, e);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            return segments;
+        }
+        segments.sort(Comparator.comparingLong(segment -> segment.firstPulse));
+        return segments;
+    }
+
+    private static long parseTime(String value) {
+        return new BigDecimal(value).movePointRight(3).longValueExact();
+    }
+
+    private static String formatTime(long time) {
+        return String.format(Locale.US, "%d.%03d", Math.floorDiv(time, 1000), Math.floorMod(time, 1000));
+    }
+
+    private static void writeManifest(File log, List<Segment> segments) throws IOException {
+        File manifest = manifestFile(log);
+        File temporaryFile = new File(manifest.getPath() + TEMPORARY_SUFFIX);
+        StringBuilder content = new StringBuilder();
+        for (Segment segment : segments) {
+            content.append(segment.name).append(' ').append(formatTime(segment.firstPulse)).append(' ')
+                    .append(formatTime(segment.lastPulse)).append(' ').append(segment.count).append('\n');
+        }
+        try (FileOutputStream outputStream = new FileOutputStream(temporaryFile)) {
+            outputStream.write(content.toString().getBytes(StandardCharsets.UTF_8));
+            outputStream.getFD().sync();
+        }
+        if (!temporaryFile.renameTo(manifest)) {
+            throw new IOException("failed to rename " + temporaryFile + " to " + manifest);
+        }
+    }
+
+    /**
+     * Brings the manifest in line with the segment files, after a crash between renaming a file and
+     * updating the manifest.
+     *
+     * @return closed segments ordered by their first pulse
+     */
+    static List<Segment> repairManifest(File log) throws IOException {
+        List<Segment> segments = readManifest(log);
+        boolean changed = false;
+        Set<String> listed = new HashSet<>();
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            File file = new File(log.getParentFile(), segment.name);
+            File compressedFile = new File(file.getPath() + GZIP_SUFFIX);
+            if (!segment.isCompressed() && compressedFile.exists()) {
+                // Compressed completely, but the manifest wasn't updated or the file wasn't deleted
+                segment = segment.withName(compressedFile.getName());
+                segments.set(i, segment);
+                file.delete();
+                changed = true;
+            } else if (!file.exists()) {
+                segments.remove(i--);
+                changed = true;
+                continue;
+            }
+            listed.add(segment.name);
+        }
+        Pattern pattern = segmentPattern(log);
+        File[] files = log.getAbsoluteFile().getParentFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!pattern.matcher(file.getName()).matches() || listed.contains(file.getName())) {
+                    continue;
+                }
+                if (!file.getName().endsWith(GZIP_SUFFIX) && new File(file.getPath() + GZIP_SUFFIX).exists()) {
+                    // Compressed completely, the compressed file is added instead
+                    file.delete();
+                } else {
+                    Segment segment = Segment.scan(file);
+                    segments.add(segment);
+                    listed.add(segment.name);
+                    changed = true;
+                }
+            }
+        }
+        if (changed) {
+            segments.sort(Comparator.comparingLong(segment -> segment.firstPulse));
+            writeManifest(log, segments);
+        }
+        return segments;
+    }
+
+    static InputStream openSegment(File directory, String name) throws IOException {
+        File file = new File(directory, name);
+        if (!name.endsWith(GZIP_SUFFIX)) {
+            try {
+                return new FileInputStream(file);
+            } catch (FileNotFoundException e) {
+                // Compressed in the meantime
+                file = new File(file.getPath() + GZIP_SUFFIX);
+            }
+        }
+        return new GZIPInputStream(new FileInputStream(file), 8192);
+    }
+
+    public interface CompressionListener extends EventListener {
+        /**
+         * Called on the background thread. The segment stays uncompressed, compression is retried when the log is
+         * opened again.
+         *
+         * @param segment file name of the segment
+         */
+        void onCompressionFailed(String segment, IOException e);
+    }
+
+    /**
+     * Closed segment of the log.
+     */
+    public static final class Segment {
+        private final String name;
+        private final long firstPulse, lastPulse, count;
+
+        Segment(String name, long firstPulse, long lastPulse, long count) {
+            this.name = name;
+            this.firstPulse = firstPulse;
+            this.lastPulse = lastPulse;
+            this.count = count;
+        }
+
+        /**
+         * Reads the pulses of a segment or log, invalid lines are skipped.
+         */
+        static Segment scan(File file) throws IOException {
+            long firstPulse = NO_PULSE, lastPulse = NO_PULSE, count = 0;
+            try (PulseLogReader reader = new TextPulseLog.Reader(openSegment(file.getParentFile(),
+                    file.getName()), true)) {
+                long wallClockTime;
+                while ((wallClockTime = reader.read()) != PulseLogReader.END) {
+                    if (count == 0) {
+                        firstPulse = wallClockTime;
+                    }
+                    lastPulse = Math.max(lastPulse, wallClockTime);
+                    count++;
+                }
+            }
+            return new Segment(file.getName(), firstPulse, lastPulse, count);
+        }
+
+        Segment withName(String name) {
+            return new Segment(name, firstPulse, lastPulse, count);
+        }
+
+        /**
+         * @return file name in the directory of the log
+         */
+        public String getName() {
+            return name;
+        }
+
+        public boolean isCompressed() {
+            return name.endsWith(GZIP_SUFFIX);
+        }
+
+        public long getFirstPulse() {
+            return firstPulse;
+        }
+
+        public long getLastPulse() {
+            return lastPulse;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the segment might contain pulses in the interval
+         */
+        boolean overlaps(long start, long end) {
+            return count > 0 && lastPulse >= start && firstPulse < end;
+        }
+    }
+
+    /**
+     * Reads the pulses of the closed segments and the log in the interval, only the segments that overlap the
+     * interval are opened.
+     */
+    public static class Reader implements PulseLogReader {
+        private final File directory;
+        private final long start, end;
+        private final Deque<String> pendingFiles = new ArrayDeque<>();
+        private PulseLogReader reader;
+
+        public Reader(File log) throws IOException {
+            this(log, Long.MIN_VALUE, Long.MAX_VALUE);
+        }
+
+        /**
+         * @param start first millisecond of the interval
+         * @param end   millisecond after the interval
+         */
+        public Reader(File log, long start, long end) throws IOException {
+            this(log, start, end, true);
+        }
+
+        /**
+         * @param includeLog read the log after the closed segments
+         */
+        Reader(File log, long start, long end, boolean includeLog) throws IOException {
+            directory = log.getAbsoluteFile().getParentFile();
+            this.start = start;
+            this.end = end;
+            for (Segment segment : readManifest(log)) {
+                if (segment.overlaps(start, end)) {
+                    pendingFiles.add(segment.name);
+                }
+            }
+            if (includeLog && log.exists()) {
+                pendingFiles.add(log.getName());
+            }
+        }
+
+        @Override
+        public long read() throws IOException {
+            while (true) {
+                if (reader == null) {
+                    String name = pendingFiles.poll();
+                    if (name == null) {
+                        return END;
+                    }
+                    reader = new TextPulseLog.Reader(openSegment(directory, name));
+                }
+                long wallClockTime;
+                while ((wallClockTime = reader.read()) != END) {
+                    if (wallClockTime >= start && wallClockTime < end) {
+                        return wallClockTime;
+                    }
+                }
+                reader.close();
+                reader = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+}
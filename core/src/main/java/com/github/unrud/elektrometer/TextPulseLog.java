@@ -0,0 +1,297 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.unrud.elektrometer;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Detection log with one unix time stamp in seconds per line.
+ * <p>
+ * Time stamps are written with three decimal places, older logs contain whole seconds.
+ */
+public class TextPulseLog implements PulseLog {
+    private static final Charset FILE_CHARSET = StandardCharsets.UTF_8;
+    private static final int MAX_LINE_LENGTH = 64;
+    private static final int LINEAR_SEARCH_LENGTH = 4096;
+
+    private final FileOutputStream fileOutputStream;
+    private final OutputStream outputStream;
+    private long lastPulseTime;
+
+    /**
+     * Opens or creates the log for appending. An incompletely written last line is discarded.
+     */
+    public TextPulseLog(File file) throws IOException {
+        lastPulseTime = repairTail(file);
+        fileOutputStream = new FileOutputStream(file, true);
+        outputStream = new BufferedOutputStream(fileOutputStream);
+    }
+
+    /**
+     * Truncates the file after the last complete line, e.g. after a power failure while writing.
+     *
+     * @return time of the last pulse or {@link #NO_PULSE}
+     */
+    static long repairTail(File file) throws IOException {
+        if (!file.exists()) {
+            return NO_PULSE;
+        }
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            long length = completeLength(randomAccessFile);
+            if (length < randomAccessFile.length()) {
+                randomAccessFile.setLength(length);
+            }
+            byte[] buffer = new byte[MAX_LINE_LENGTH + 1];
+            long lineEnd = length;
+            while (lineEnd > 0) {
+                long lineStart = previousLineStart(randomAccessFile, lineEnd - 1, buffer);
+                long lineTime = readTimeStamp(randomAccessFile, lineStart, lineEnd, buffer);
+                if (lineTime != Long.MIN_VALUE) {
+                    return lineTime;
+                }
+                lineEnd = lineStart;
+            }
+        }
+        return NO_PULSE;
+    }
+
+    /**
+     * @return length of the file up to the end of the last complete line
+     */
+    static long completeLength(RandomAccessFile file) throws IOException {
+        long length = file.length();
+        byte[] buffer = new byte[256];
+        while (length > 0) {
+            int size = (int) Math.min(buffer.length, length);
+            file.seek(length - size);
+            file.readFully(buffer, 0, size);
+            for (int i = size - 1; i >= 0; i--) {
+                if (buffer[i] == '\n') {
+                    return length - size + i + 1;
+                }
+            }
+            length -= size;
+        }
+        return 0;
+    }
+
+    /**
+     * @return offset after the last line break before {@code position} or 0
+     */
+    private static long previousLineStart(RandomAccessFile file, long position, byte[] buffer) throws IOException {
+        while (position > 0) {
+            int size = (int) Math.min(buffer.length, position);
+            file.seek(position - size);
+            file.readFully(buffer, 0, size);
+            for (int i = size - 1; i >= 0; i--) {
+                if (buffer[i] == '\n') {
+                    return position - size + i + 1;
+                }
+            }
+            position -= size;
+        }
+        return 0;
+    }
+
+    @Override
+    public void append(long wallClockTime) throws IOException {
+        // write unix time stamp
+        outputStream.write(String.format(Locale.US, "%d.%03d\n",
+                Math.floorDiv(wallClockTime, 1000), Math.floorMod(wallClockTime, 1000)).getBytes(FILE_CHARSET));
+        lastPulseTime = wallClockTime;
+    }
+
+    @Override
+    public long getLastPulseTime() {
+        return lastPulseTime;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        outputStream.flush();
+    }
+
+    @Override
+    public void sync() throws IOException {
+        outputStream.flush();
+        fileOutputStream.getFD().sync();
+    }
+
+    @Override
+    public void close() throws IOException {
+        outputStream.close();
+    }
+
+    /**
+     * @param line time stamp without surrounding whitespace
+     * @return time in milliseconds
+     */
+    private static long parseTimeStamp(String line) throws NumberFormatException, ArithmeticException {
+        return new BigDecimal(line).movePointRight(3).setScale(0, RoundingMode.HALF_UP).longValueExact();
+    }
+
+    /**
+     * Finds the first line with a time stamp after {@code time} by binary search.
+     * Time stamps must be ascending, invalid lines are skipped.
+     *
+     * @param length only the first {@code length} bytes are searched, must be the end of a line
+     * @return byte offset of the line or {@code length} if there is none
+     */
+    public static long findFirstAfter(RandomAccessFile file, long length, long time) throws IOException {
+        byte[] buffer = new byte[MAX_LINE_LENGTH + 1];
+        // lines before low are not after time, the line at high is after time or high is length
+        long low = 0, high = length;
+        while (high - low > LINEAR_SEARCH_LENGTH) {
+            long middle = nextLineStart(file, low + (high - low) / 2 - 1, high, buffer);
+            long lineTime = Long.MIN_VALUE;
+            long lineEnd = middle;
+            // skip empty and invalid lines
+            while (lineTime == Long.MIN_VALUE && lineEnd < high) {
+                middle = lineEnd;
+                lineEnd = nextLineStart(file, middle, high, buffer);
+                lineTime = readTimeStamp(file, middle, lineEnd, buffer);
+            }
+            if (lineTime == Long.MIN_VALUE) {
+                break;  // no valid line in the upper half, search linearly
+            }
+            if (lineTime > time) {
+                high = middle;
+            } else {
+                low = lineEnd;
+            }
+        }
+        long lineStart = low;
+        while (lineStart < high) {
+            long lineEnd = nextLineStart(file, lineStart, high, buffer);
+            long lineTime = readTimeStamp(file, lineStart, lineEnd, buffer);
+            if (lineTime != Long.MIN_VALUE && lineTime > time) {
+                return lineStart;
+            }
+            lineStart = lineEnd;
+        }
+        return high;
+    }
+
+    /**
+     * @return offset after the first line break at or after {@code position} or {@code limit}
+     */
+    private static long nextLineStart(RandomAccessFile file, long position, long limit, byte[] buffer)
+            throws IOException {
+        while (position < limit) {
+            file.seek(position);
+            int read = file.read(buffer, 0, (int) Math.min(buffer.length, limit - position));
+            if (read < 0) {
+                throw new IOException("unexpected end of file");
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer[i] == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return limit;
+    }
+
+    /**
+     * @return time in milliseconds or {@link Long#MIN_VALUE} if the line is empty or invalid
+     */
+    private static long readTimeStamp(RandomAccessFile file, long lineStart, long lineEnd, byte[] buffer)
+            throws IOException {
+        if (lineEnd - lineStart > buffer.length) {
+            return Long.MIN_VALUE;
+        }
+        file.seek(lineStart);
+        file.readFully(buffer, 0, (int) (lineEnd - lineStart));
+        String line = new String(buffer, 0, (int) (lineEnd - lineStart), FILE_CHARSET).trim();
+        if (line.isEmpty()) {
+            return Long.MIN_VALUE;
+        }
+        try {
+            return parseTimeStamp(line);
+        } catch (NumberFormatException | ArithmeticException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    public static class Reader implements PulseLogReader {
+        private final BufferedReader reader;
+        private final boolean skipInvalidLines;
+        private long lineNumber;
+
+        public Reader(File file) throws FileNotFoundException {
+            this(new FileInputStream(file));
+        }
+
+        /**
+         * @param inputStream is closed by the reader
+         */
+        public Reader(InputStream inputStream) {
+            this(inputStream, false);
+        }
+
+        /**
+         * @param skipInvalidLines skip lines without a valid time stamp instead of failing
+         */
+        Reader(InputStream inputStream, boolean skipInvalidLines) {
+            reader = new BufferedReader(new InputStreamReader(inputStream, FILE_CHARSET));
+            this.skipInvalidLines = skipInvalidLines;
+        }
+
+        @Override
+        public long read() throws IOException {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                try {
+                    return parseTimeStamp(line);
+                } catch (NumberFormatException | ArithmeticException e) {
+                    if (skipInvalidLines) {
+                        continue;
+                    }
+                    throw new IOException("invalid time stamp in line " + lineNumber + ": " + line, e);
+                }
+            }
+            return END;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+}
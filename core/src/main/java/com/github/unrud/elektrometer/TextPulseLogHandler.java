@@ -0,0 +1,170 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.unrud.elektrometer;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Serves a {@link TextPulseLog} that is being appended to.
+ * <p>
+ * Only complete lines are served. The query parameter {@code since} (unix time stamp in seconds)
+ * limits the response to the pulses after it, which lets clients fetch only new pulses. The pulses of the
+ * closed segments of a {@link SegmentedPulseLog} that overlap are sent first. Byte ranges
+ * ({@code Range: bytes=...}) are supported as well, they refer to the log without the closed segments.
+ */
+public class TextPulseLogHandler implements HttpServer.Handler {
+    /**
+     * Response header that tells clients that the {@code since} query is supported
+     */
+    public static final String QUERIES_HEADER = "X-Pulse-Log-Queries";
+
+    private final File file;
+
+    public TextPulseLogHandler(File file) {
+        this.file = file;
+    }
+
+    @Override
+    public void handle(HttpServer.Request request, HttpServer.Response response) throws IOException {
+        RandomAccessFile randomAccessFile;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+        } catch (FileNotFoundException e) {
+            response.sendError(404, "Not Found");
+            return;
+        }
+        try {
+            long length = TextPulseLog.completeLength(randomAccessFile);
+            long start = 0, end = length, sinceTime = Long.MIN_VALUE;
+            String range = request.getHeader("Range");
+            String since = request.getParameter("since");
+            if (range != null) {
+                long[] parsedRange = parseRange(range, length);
+                if (parsedRange == null) {
+                    response.setHeader("Content-Range", "bytes */" + length);
+                    response.sendError(416, "Range Not Satisfiable");
+                    return;
+                }
+                start = parsedRange[0];
+                end = parsedRange[1];
+                response.setStatus(206, "Partial Content");
+                response.setHeader("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + length);
+            } else if (since != null) {
+                try {
+                    sinceTime = new BigDecimal(since).movePointRight(3).setScale(0, RoundingMode.FLOOR)
+                            .longValueExact();
+                } catch (NumberFormatException | ArithmeticException e) {
+                    response.sendError(400, "Bad Request");
+                    return;
+                }
+                start = TextPulseLog.findFirstAfter(randomAccessFile, length, sinceTime);
+            }
+            boolean segments = false;
+            if (range == null) {
+                for (SegmentedPulseLog.Segment segment : SegmentedPulseLog.readManifest(file)) {
+                    segments |= segment.overlaps(sinceTime + 1, Long.MAX_VALUE);
+                }
+            }
+            response.setHeader("Content-Type", "text/plain; charset=utf-8");
+            if (!segments) {
+                // The length of the decompressed segments is unknown
+                response.setHeader("Content-Length", Long.toString(end - start));
+            }
+            response.setHeader("Cache-Control", "no-cache");
+            response.setHeader("Accept-Ranges", "bytes");
+            response.setHeader(QUERIES_HEADER, "since");
+            OutputStream outputStream = response.getOutputStream();
+            if (request.isHead()) {
+                return;
+            }
+            if (segments) {
+                writeSegments(outputStream, sinceTime + 1);
+            }
+            byte[] buffer = new byte[8192];
+            randomAccessFile.seek(start);
+            for (long remaining = end - start; remaining > 0; ) {
+                int read = randomAccessFile.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new IOException("unexpected end of file");
+                }
+                outputStream.write(buffer, 0, read);
+                remaining -= read;
+            }
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private void writeSegments(OutputStream outputStream, long start) throws IOException {
+        Writer writer = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
+        try (PulseLogReader reader = new SegmentedPulseLog.Reader(file, start, Long.MAX_VALUE, false)) {
+            long wallClockTime;
+            while ((wallClockTime = reader.read()) != PulseLogReader.END) {
+                writer.write(String.format(Locale.US, "%d.%03d\n",
+                        Math.floorDiv(wallClockTime, 1000), Math.floorMod(wallClockTime, 1000)));
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * Parses a single byte range.
+     *
+     * @return start (inclusive) and end (exclusive) or null if it's invalid or not satisfiable
+     */
+    private static long[] parseRange(String range, long length) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = range.substring("bytes=".length()).trim();
+        int separator = spec.indexOf('-');
+        if (separator < 0) {
+            return null;
+        }
+        try {
+            String first = spec.substring(0, separator).trim();
+            String last = spec.substring(separator + 1).trim();
+            long start, end;
+            if (first.isEmpty()) {
+                // suffix range
+                start = Math.max(0, length - Long.parseLong(last));
+                end = length;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? length : Math.min(length, Long.parseLong(last) + 1);
+            }
+            if (start < 0 || start >= end) {
+                return null;
+            }
+            return new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
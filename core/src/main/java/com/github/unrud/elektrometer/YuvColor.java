@@ -0,0 +1,49 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.unrud.elektrometer;
+
+/**
+ * Color conversions of the camera images, shared by the app and the tools.
+ */
+public final class YuvColor {
+    private YuvColor() {
+    }
+
+    /**
+     * Converts from JPEG YUV (full range) to RGB using 16.16 fixed point math.
+     *
+     * @return opaque ARGB color
+     */
+    public static int toArgb(int y, int u, int v) {
+        int y1 = 65536 * y;
+        int r = Math.max(0, Math.min(255, y1 + 91881 * v - 11760828 >> 16));
+        int g = Math.max(0, Math.min(255, y1 - 22553 * u - 46802 * v + 8877429 >> 16));
+        int b = Math.max(0, Math.min(255, y1 + 116130 * u - 14864613 >> 16));
+        return 0xff000000 | r << 16 | g << 8 | b;
+    }
+
+    /**
+     * Packs the samples into the channels of the dump image: V into red, Y into green and U into blue.
+     *
+     * @return opaque ARGB color
+     */
+    public static int toDumpArgb(int y, int u, int v) {
+        return 0xff000000 | v << 16 | y << 8 | u;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.unrud.elektrometer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BinaryPulseLogTest {
+    private static final long START = 1612137600000L;  // 2021-02-01T00:00:00Z
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * @return pulses in several blocks and over several days
+     */
+    private static List<Long> pulses() {
+        List<Long> pulses = new ArrayList<>();
+        for (int i = 0; i < BinaryPulseLog.BLOCK_CAPACITY * 3 + 10; i++) {
+            pulses.add(START + i * 1000L * 60 * 7 + i % 3);
+        }
+        return pulses;
+    }
+
+    @Test
+    public void readsAppendedPulses() throws IOException {
+        File file = new File(folder.getRoot(), "pulses.bin");
+        List<Long> pulses = pulses();
+        int half = pulses.size() / 2;
+        try (BinaryPulseLog log = new BinaryPulseLog(file)) {
+            assertEquals(PulseLog.NO_PULSE, log.getLastPulseTime());
+            for (long pulse : pulses.subList(0, half)) {
+                log.append(pulse);
+            }
+        }
+        assertTrue(BinaryPulseLog.isBinaryPulseLog(file));
+        try (BinaryPulseLog log = new BinaryPulseLog(file)) {
+            assertEquals((long) pulses.get(half - 1), log.getLastPulseTime());
+            for (long pulse : pulses.subList(half, pulses.size())) {
+                log.append(pulse);
+            }
+        }
+        assertEquals(pulses, PulseLogReaders.readAll(new BinaryPulseLog.Reader(file)));
+    }
+
+    @Test
+    public void seeksToFirstPulseAtOrAfterTime() throws IOException {
+        File file = new File(folder.getRoot(), "pulses.bin");
+        List<Long> pulses = pulses();
+        try (BinaryPulseLog log = new BinaryPulseLog(file)) {
+            for (long pulse : pulses) {
+                log.append(pulse);
+            }
+        }
+        try (BinaryPulseLog.Reader reader = new BinaryPulseLog.Reader(file)) {
+            for (int i = 0; i < pulses.size(); i += 37) {
+                reader.seek(pulses.get(i));
+                assertEquals((long) pulses.get(i), reader.read());
+                reader.seek(pulses.get(i) + 1);
+                assertEquals(i + 1 < pulses.size() ? pulses.get(i + 1) : PulseLogReader.END, reader.read());
+            }
+            reader.seek(Long.MIN_VALUE);
+            assertEquals((long) pulses.get(0), reader.read());
+            reader.seek(Long.MAX_VALUE);
+            assertEquals(PulseLogReader.END, reader.read());
+        }
+    }
+
+    @Test
+    public void dropsPulsesBeforeLastPulse() throws IOException {
+        File file = new File(folder.getRoot(), "pulses.bin");
+        try (BinaryPulseLog log = new BinaryPulseLog(file)) {
+            log.append(START);
+            log.append(START + 2000);
+            log.append(START + 1000);
+            log.append(START + 2000);
+            log.append(START + 3000);
+            assertEquals(START + 3000, log.getLastPulseTime());
+        }
+        List<Long> expected = new ArrayList<>();
+        expected.add(START);
+        expected.add(START + 2000);
+        expected.add(START + 2000);
+        expected.add(START + 3000);
+        assertEquals(expected, PulseLogReaders.readAll(new BinaryPulseLog.Reader(file)));
+    }
+
+    @Test
+    public void discardsIncompletelyAllocatedBlock() throws IOException {
+        File file = new File(folder.getRoot(), "pulses.bin");
+        List<Long> pulses = pulses().subList(0, BinaryPulseLog.BLOCK_CAPACITY);
+        try (BinaryPulseLog log = new BinaryPulseLog(file)) {
+            for (long pulse : pulses) {
+                log.append(pulse);
+            }
+        }
+        long length = file.length();
+        try (FileOutputStream outputStream = new FileOutputStream(file, true)) {
+            outputStream.write(new byte[100]);
+        }
+        try (BinaryPulseLog log = new BinaryPulseLog(file)) {
+            assertEquals(length, file.length());
+            assertEquals((long) pulses.get(pulses.size() - 1), log.getLastPulseTime());
+        }
+        assertEquals(pulses, PulseLogReaders.readAll(new BinaryPulseLog.Reader(file)));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.unrud.elektrometer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CalibratorTest {
+    private static final int WIDTH = 64, HEIGHT = 48;
+
+    private final DetectionEngine engine = new DetectionEngine();
+    private final Calibrator calibrator = new Calibrator(32);
+
+    public CalibratorTest() {
+        // The window covers the rows 12 to 35
+        engine.configure(WIDTH, HEIGHT, 0, 50, 25, 0, 0, 0, 0, true);
+    }
+
+    /**
+     * @param markerWidth columns of the marker, 0 for none
+     */
+    private TestFrame frame(int markerWidth) {
+        TestFrame frame = new TestFrame(WIDTH, HEIGHT, 1, 2, false);
+        if (markerWidth > 0) {
+            frame.paintMarker(20, 20 + markerWidth, 0, HEIGHT);
+        }
+        return frame;
+    }
+
+    private void addFrame(TestFrame frame) {
+        calibrator.addFrame(engine.getWindowStartX(), engine.getWindowEndX(),
+                engine.getWindowStartY(), engine.getWindowEndY(),
+                frame.yBuffer, frame.yRowStride, frame.yPixelStride,
+                frame.uBuffer, frame.uvRowStride, frame.uvPixelStride,
+                frame.vBuffer, frame.uvRowStride, frame.uvPixelStride);
+    }
+
+    /**
+     * Records passes of the marker that cover up to a quarter of the window.
+     */
+    private void recordPasses(int passes) {
+        for (int pass = 0; pass < passes; pass++) {
+            addFrame(frame(0));
+            addFrame(frame(8));
+            addFrame(frame(16));
+            addFrame(frame(8));
+            addFrame(frame(0));
+        }
+    }
+
+    @Test
+    public void proposesSettingsThatDetectMarker() throws Calibrator.CalibrationException {
+        recordPasses(3);
+        Calibrator.Result result = calibrator.compute();
+        assertEquals(3, result.passes);
+        assertEquals(TestFrame.MARKER_U * 100 / 255, result.colorBlueProjection);
+        assertEquals(Math.round(TestFrame.MARKER_V * 100 / 255f), result.colorRedProjection);
+        assertTrue(result.separation > 1);
+        assertEquals(12, result.triggerFillThreshold);
+        assertEquals(6, result.triggerFillResetThreshold);
+        engine.configure(WIDTH, HEIGHT, 0, 50, 25, result.colorBlueProjection, result.colorRedProjection,
+                result.colorDistanceThreshold, result.colorLumaThreshold, true);
+        assertEquals(0, frame(0).measure(engine));
+        assertEquals(25, frame(16).measure(engine));
+    }
+
+    @Test
+    public void keepsLatestFrames() throws Calibrator.CalibrationException {
+        recordPasses(1);
+        for (int i = 0; i < 32; i++) {
+            addFrame(frame(0));
+        }
+        assertEquals(32, calibrator.getFrameCount());
+        // The pass was overwritten
+        assertCalibrationFails();
+        recordPasses(2);
+        assertEquals(2, calibrator.compute().passes);
+    }
+
+    @Test
+    public void failsWithoutMarker() {
+        for (int i = 0; i < 10; i++) {
+            addFrame(frame(0));
+        }
+        assertCalibrationFails();
+    }
+
+    @Test
+    public void failsWithSinglePass() {
+        recordPasses(1);
+        assertCalibrationFails();
+    }
+
+    @Test
+    public void failsWithoutFrames() {
+        assertCalibrationFails();
+    }
+
+    private void assertCalibrationFails() {
+        try {
+            calibrator.compute();
+        } catch (Calibrator.CalibrationException e) {
+            return;
+        }
+        throw new AssertionError("expected CalibrationException");
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.unrud.elektrometer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DetectionEngineTest {
+    private static final int WIDTH = 64, HEIGHT = 48;
+    // Columns 8 to 23 cover a quarter of the window with their centroid at a quarter of its width
+    private static final int MARKER_START = 8, MARKER_END = 24;
+
+    private DetectionEngine engine;
+
+    @Before
+    public void setUp() {
+        engine = new DetectionEngine();
+        // The window covers the rows 12 to 35
+        engine.configure(WIDTH, HEIGHT, 0, 50, 25, 40, 83, 20, 25, true);
+    }
+
+    @Test
+    public void measuresPlanarFrame() {
+        assertMarkerMeasured(frame(1, 1, false));
+    }
+
+    @Test
+    public void measuresSemiPlanarFrame() {
+        assertMarkerMeasured(frame(1, 2, false));
+    }
+
+    @Test
+    public void measuresPaddedSemiPlanarFrame() {
+        assertMarkerMeasured(frame(1, 2, true));
+    }
+
+    @Test
+    public void measuresFrameWithLumaPixelStride() {
+        assertMarkerMeasured(frame(2, 1, false));
+    }
+
+    @Test
+    public void scansRowsLikeSamples() {
+        Random random = new Random(0);
+        TestFrame[] frames = {frame(1, 1, false), frame(1, 2, false), frame(1, 2, true)};
+        for (TestFrame frame : frames) {
+            frame.paintNoise(random);
+            for (int rotation = 0; rotation < 360; rotation += 90) {
+                for (boolean fullResolution : new boolean[]{true, false}) {
+                    // The window starts and ends in the middle of chroma samples
+                    engine.configure(WIDTH, HEIGHT, rotation, 33, 17, 40, 83, 20, 25, fullResolution);
+                    frame.yBuffer.position(1);
+                    frame.uBuffer.position(2);
+                    frame.vBuffer.position(3);
+                    int windowFill = frame.measure(engine);
+                    assertTrue(windowFill > 0);
+                    // The array variant reads sample by sample
+                    assertEquals(frame.measureArrays(engine), windowFill);
+                    // The row copies don't move the caller's buffers
+                    assertEquals(1, frame.yBuffer.position());
+                    assertEquals(2, frame.uBuffer.position());
+                    assertEquals(3, frame.vBuffer.position());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void ignoresMarkerOutsideOfWindow() {
+        TestFrame frame = frame(1, 2, false);
+        frame.paintMarker(MARKER_START, MARKER_END, 0, 12);
+        frame.paintMarker(MARKER_START, MARKER_END, 36, HEIGHT);
+        assertEquals(0, frame.measure(engine));
+        assertTrue(Float.isNaN(engine.getMarkerPosition()));
+    }
+
+    @Test
+    public void measuresMarkerPositionInRotatedPreview() {
+        TestFrame frame = frame(1, 2, false);
+        frame.paintMarker(MARKER_START, MARKER_END, 0, HEIGHT);
+        engine.configure(WIDTH, HEIGHT, 180, 50, 25, 40, 83, 20, 25, true);
+        frame.measure(engine);
+        assertEquals(0.75f, engine.getMarkerPosition(), 1e-6f);
+        // Rows 0 to 47 along the long axis of the window
+        engine.configure(WIDTH, HEIGHT, 90, 100, 0, 40, 83, 20, 25, true);
+        frame.measure(engine);
+        assertEquals(0.5f, engine.getMarkerPosition(), 1e-6f);
+    }
+
+    @Test
+    public void matchesColorRegions() {
+        engine.configure(WIDTH, HEIGHT, 0, 50, 25, 0, 0, 5, 25, true);
+        TestFrame frame = frame(1, 2, false);
+        frame.paintMarker(MARKER_START, MARKER_END, 0, HEIGHT);
+        assertEquals(0, frame.measure(engine));
+        engine.configureColorRegions("circle 40 83 20");
+        assertEquals(25, frame.measure(engine));
+        try {
+            engine.configureColorRegions("circle 40 83");
+            fail("expected exception");
+        } catch (IllegalArgumentException e) {
+            // The previous regions are kept
+            assertEquals(25, frame.measure(engine));
+        }
+        engine.configureColorRegions("");
+        assertEquals(0, frame.measure(engine));
+    }
+
+    @Test
+    public void skipsLinesAndColumnsOfLargeFrames() {
+        engine.configure(1280, 960, 0, 50, 25, 40, 83, 20, 25, false);
+        // Twice the preferred resolution in each direction and the u and v planes have half of it
+        assertEquals(4, engine.getLineAndColumnFeed());
+    }
+
+    @Test
+    public void triggersWithHysteresis() {
+        engine.configureTrigger(20, 10, 100, false);
+        assertFalse(engine.updateTrigger(0, 1000));
+        assertTrue(engine.updateTrigger(30, 1100));
+        assertEquals(1100, engine.getTriggerTime());
+        assertFalse(engine.updateTrigger(30, 1200));
+        // Below the reset threshold, but not long enough
+        assertFalse(engine.updateTrigger(5, 1300));
+        assertFalse(engine.updateTrigger(25, 1310));
+        assertFalse(engine.updateTrigger(5, 1400));
+        assertFalse(engine.updateTrigger(5, 1500));
+        assertTrue(engine.updateTrigger(25, 1550));
+        assertEquals(1550, engine.getTriggerTime());
+    }
+
+    @Test
+    public void interpolatesTriggerTime() {
+        engine.configureTrigger(20, 10, 0, true);
+        assertFalse(engine.updateTrigger(0, 1000));
+        assertTrue(engine.updateTrigger(40, 1100));
+        // The fill reached the threshold halfway between the frames
+        assertEquals(1050, engine.getTriggerTime());
+    }
+
+    private static TestFrame frame(int yPixelStride, int uvPixelStride, boolean padded) {
+        return new TestFrame(WIDTH, HEIGHT, yPixelStride, uvPixelStride, padded);
+    }
+
+    private void assertMarkerMeasured(TestFrame frame) {
+        assertEquals(0, frame.measure(engine));
+        assertEquals(0, frame.measureArrays(engine));
+        frame.paintMarker(MARKER_START, MARKER_END, 0, HEIGHT);
+        assertEquals(25, frame.measure(engine));
+        assertEquals(0.25f, engine.getMarkerPosition(), 1e-6f);
+        assertEquals(25, frame.measureArrays(engine));
+        assertEquals(0.25f, engine.getMarkerPosition(), 1e-6f);
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.unrud.elektrometer;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DetectionLogWriterTest {
+    private static final long TIMEOUT = 10000;
+
+    private final List<IOException> errors = Collections.synchronizedList(new ArrayList<>());
+
+    @Test
+    public void syncsQueuedDetectionsOnClose() {
+        Storage storage = new Storage();
+        DetectionLogWriter writer = new DetectionLogWriter(
+                () -> Collections.singletonList(storage.open()), errors::add);
+        writer.setSyncPolicy(60000, 100);
+        writer.append(1000);
+        writer.append(2000);
+        writer.close();
+        assertEquals(Arrays.asList(1000L, 2000L), storage.getPulses());
+        assertEquals(2, storage.getSyncedCount());
+        assertEquals(0, storage.getOpenCount());
+        assertEquals(0, errors.size());
+    }
+
+    @Test
+    public void syncsAfterSyncCount() throws InterruptedException {
+        Storage storage = new Storage();
+        DetectionLogWriter writer = new DetectionLogWriter(
+                () -> Collections.singletonList(storage.open()), errors::add);
+        try {
+            writer.setSyncPolicy(60000, 2);
+            writer.append(1000);
+            writer.append(2000);
+            awaitSynced(storage, 2);
+            writer.append(3000);
+            Thread.sleep(100);
+            assertEquals(2, storage.getSyncedCount());
+        } finally {
+            writer.close();
+        }
+        assertEquals(3, storage.getSyncedCount());
+    }
+
+    @Test
+    public void syncsAfterSyncInterval() throws InterruptedException {
+        Storage storage = new Storage();
+        DetectionLogWriter writer = new DetectionLogWriter(
+                () -> Collections.singletonList(storage.open()), errors::add);
+        try {
+            writer.setSyncPolicy(50, 100);
+            writer.append(1000);
+            awaitSynced(storage, 1);
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void appendsJournaledDetectionsMissingAfterError() throws InterruptedException {
+        Storage complete = new Storage(), failing = new Storage();
+        failing.failOnce(2000);
+        DetectionLogWriter writer = new DetectionLogWriter(
+                () -> Arrays.asList(complete.open(), failing.open()), errors::add);
+        try {
+            writer.setSyncPolicy(60000, 100);
+            writer.append(1000);
+            writer.append(2000);
+            writer.append(3000);
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (writer.getRecoveryCount() == 0) {
+                assertTrue("not recovered", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            writer.append(4000);
+        } finally {
+            writer.close();
+        }
+        List<Long> expected = Arrays.asList(1000L, 2000L, 3000L, 4000L);
+        assertEquals(expected, complete.getPulses());
+        assertEquals(expected, failing.getPulses());
+        assertEquals(1, errors.size());
+        assertEquals(1, writer.getRecoveryCount());
+    }
+
+    @Test
+    public void retriesOpening() throws InterruptedException {
+        Storage storage = new Storage();
+        int[] attempts = new int[1];
+        DetectionLogWriter writer = new DetectionLogWriter(() -> {
+            if (attempts[0]++ == 0) {
+                throw new IOException("unavailable");
+            }
+            return Collections.singletonList(storage.open());
+        }, errors::add);
+        writer.append(1000);
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (errors.isEmpty()) {
+            assertTrue("not opened", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        // Closing retries without waiting for the delay
+        writer.close();
+        assertEquals(Collections.singletonList(1000L), storage.getPulses());
+        assertEquals(1, errors.size());
+    }
+
+    private static void awaitSynced(Storage storage, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (storage.getSyncedCount() < count) {
+            assertTrue("not synced", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Pulses that survive reopening, like a file.
+     */
+    private static final class Storage {
+        private final List<Long> pulses = new ArrayList<>();
+        private int syncedCount, openCount;
+        private long failingPulse = PulseLog.NO_PULSE;
+
+        synchronized void failOnce(long wallClockTime) {
+            failingPulse = wallClockTime;
+        }
+
+        synchronized List<Long> getPulses() {
+            return new ArrayList<>(pulses);
+        }
+
+        synchronized int getSyncedCount() {
+            return syncedCount;
+        }
+
+        synchronized int getOpenCount() {
+            return openCount;
+        }
+
+        synchronized PulseLog open() {
+            openCount++;
+            return new PulseLog() {
+                @Override
+                public void append(long wallClockTime) throws IOException {
+                    synchronized (Storage.this) {
+                        if (wallClockTime == failingPulse) {
+                            failingPulse = NO_PULSE;
+                            throw new IOException("write failed");
+                        }
+                        pulses.add(wallClockTime);
+                    }
+                }
+
+                @Override
+                public void flush() {
+                }
+
+                @Override
+                public void sync() {
+                    synchronized (Storage.this) {
+                        syncedCount = pulses.size();
+                    }
+                }
+
+                @Override
+                public long getLastPulseTime() {
+                    synchronized (Storage.this) {
+                        return pulses.isEmpty() ? NO_PULSE : pulses.get(pulses.size() - 1);
+                    }
+                }
+
+                @Override
+                public void close() {
+                    synchronized (Storage.this) {
+                        openCount--;
+                    }
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.unrud.elektrometer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EventBroadcasterTest {
+    private static final long TIMEOUT = 10000;
+
+    private final EventBroadcaster eventBroadcaster = new EventBroadcaster(2);
+    private final List<Socket> sockets = new ArrayList<>();
+    private HttpServer httpServer;
+
+    @Before
+    public void setUp() throws IOException {
+        httpServer = new HttpServer(0, 4);
+        httpServer.addHandler("/events", eventBroadcaster);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        httpServer.close();
+    }
+
+    private BufferedReader connect(String target) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), httpServer.getPort());
+        socket.setSoTimeout((int) TIMEOUT);
+        sockets.add(socket);
+        socket.getOutputStream().write(("GET " + target + " HTTP/1.1\r\nHost: localhost\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1));
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                StandardCharsets.UTF_8));
+        String statusLine = reader.readLine();
+        String line;
+        while ((line = reader.readLine()) != null && !line.isEmpty()) {
+            // skip headers
+        }
+        if (statusLine.startsWith("HTTP/1.1 200 ")) {
+            assertEquals("retry: 2000", reader.readLine());
+            assertEquals("", reader.readLine());
+        }
+        return reader;
+    }
+
+    private void awaitClients(String type) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!eventBroadcaster.hasClients(type)) {
+            assertTrue("not connected", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static void assertEvent(BufferedReader reader, String type, String data) throws IOException {
+        assertEquals("event: " + type, reader.readLine());
+        assertEquals("data: " + data, reader.readLine());
+        assertEquals("", reader.readLine());
+    }
+
+    @Test
+    public void sendsFramesOnlyWhenRequested() throws IOException, InterruptedException {
+        assertFalse(eventBroadcaster.hasClients(EventBroadcaster.PULSE));
+        BufferedReader pulseReader = connect("/events");
+        awaitClients(EventBroadcaster.PULSE);
+        assertFalse(eventBroadcaster.hasClients(EventBroadcaster.FRAME));
+        BufferedReader frameReader = connect("/events?frames=1");
+        awaitClients(EventBroadcaster.FRAME);
+        eventBroadcaster.publish(EventBroadcaster.FRAME, "{\"fill\":1}");
+        eventBroadcaster.publish(EventBroadcaster.PULSE, "{\"time\":2}");
+        assertEvent(pulseReader, EventBroadcaster.PULSE, "{\"time\":2}");
+        assertEvent(frameReader, EventBroadcaster.FRAME, "{\"fill\":1}");
+        assertEvent(frameReader, EventBroadcaster.PULSE, "{\"time\":2}");
+    }
+
+    @Test
+    public void rejectsClientsAboveLimit() throws IOException {
+        // Clients are registered before the retry interval is sent
+        connect("/events");
+        connect("/events");
+        BufferedReader reader = connect("/events");
+        assertEquals("503 Service Unavailable", reader.readLine());
+    }
+
+    @Test
+    public void dropsOldestEventsWhenRingIsFull() {
+        EventBroadcaster.Client client = new EventBroadcaster.Client(Thread.currentThread(), false);
+        for (int i = 0; i < 70; i++) {
+            client.offer(Integer.toString(i));
+        }
+        assertEquals(6, client.dropped);
+        String[] events = new String[64];
+        assertEquals(64, client.drain(events));
+        assertEquals("6", events[0]);
+        assertEquals("69", events[63]);
+        assertTrue(client.isEmpty());
+        client.offer("70");
+        assertEquals(1, client.drain(events));
+        assertEquals("70", events[0]);
+        assertEquals(6, client.dropped);
+    }
+}
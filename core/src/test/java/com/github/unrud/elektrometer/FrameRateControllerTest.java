@@ -0,0 +1,96 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.unrud.elektrometer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class FrameRateControllerTest {
+    private final FrameRateController controller = new FrameRateController(5, 30, 3);
+
+    /**
+     * Pulses every 2 s, the marker leaves the window after 200 ms.
+     */
+    private void observePulses() {
+        controller.update(0, true, true);
+        controller.update(100, false, false);
+        assertEquals(30, controller.getTargetFps());
+        controller.update(2000, true, true);
+        controller.update(2100, true, false);
+        assertEquals(30, controller.getTargetFps());
+        controller.update(2200, false, false);
+    }
+
+    @Test
+    public void capturesMarkerInEnoughFrames() {
+        observePulses();
+        // 3 frames in 200 ms
+        assertEquals(15, controller.getTargetFps());
+    }
+
+    @Test
+    public void smoothsMarkerDuration() {
+        observePulses();
+        controller.update(4000, true, true);
+        controller.update(4400, false, false);
+        // 200 ms + (400 ms - 200 ms) / 4
+        assertEquals(12, controller.getTargetFps());
+    }
+
+    @Test
+    public void limitsFrameRate() {
+        controller.update(0, true, true);
+        controller.update(100000, true, true);
+        controller.update(130000, false, false);
+        assertEquals(5, controller.getTargetFps());
+        FrameRateController fastController = new FrameRateController(5, 30, 3);
+        fastController.update(0, true, true);
+        fastController.update(100, true, true);
+        fastController.update(110, false, false);
+        assertEquals(30, fastController.getTargetFps());
+    }
+
+    @Test
+    public void usesMaximalFrameRateWhenPulseIsOverdue() {
+        observePulses();
+        controller.update(6000, false, false);
+        assertEquals(15, controller.getTargetFps());
+        controller.update(6001, false, false);
+        assertEquals(30, controller.getTargetFps());
+        // The rotor slowed down
+        controller.update(10000, true, true);
+        controller.update(10800, false, false);
+        assertEquals(5, controller.getTargetFps());
+    }
+
+    @Test
+    public void forgetsPulsesOnReset() {
+        observePulses();
+        controller.reset();
+        assertEquals(30, controller.getTargetFps());
+        controller.update(10000, true, true);
+        controller.update(10200, false, false);
+        assertEquals(30, controller.getTargetFps());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidLimits() {
+        new FrameRateController(30, 5, 3);
+    }
+}
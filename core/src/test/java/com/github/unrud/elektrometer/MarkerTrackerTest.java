@@ -0,0 +1,75 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.unrud.elektrometer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MarkerTrackerTest {
+    private MarkerTracker tracker;
+
+    @Before
+    public void setUp() {
+        tracker = new MarkerTracker();
+        tracker.configure(20, 10, 100);
+    }
+
+    @Test
+    public void countsPassAtMiddleOfWindow() {
+        assertFalse(tracker.update(1000, 30, 0.2f));
+        assertFalse(tracker.update(1033, 30, 0.4f));
+        assertTrue(tracker.update(1066, 30, 0.6f));
+        assertEquals(1049, tracker.getTriggerTime());
+        assertEquals(1, tracker.getDirection());
+        assertFalse(tracker.update(1200, 0, Float.NaN));
+        assertFalse(tracker.update(1300, 0, Float.NaN));
+        assertFalse(tracker.update(2000, 30, 0.8f));
+        assertFalse(tracker.update(2033, 30, 0.6f));
+        assertTrue(tracker.update(2066, 30, 0.4f));
+        assertEquals(2049, tracker.getTriggerTime());
+        assertEquals(-1, tracker.getDirection());
+        assertEquals(0.5f, tracker.getProgress(2549), 1e-6f);
+    }
+
+    @Test
+    public void keepsPassWhenMarkerFlickers() {
+        assertFalse(tracker.update(1000, 30, 0.2f));
+        assertTrue(tracker.update(1066, 30, 0.6f));
+        assertFalse(tracker.update(1100, 0, Float.NaN));
+        assertFalse(tracker.update(1133, 30, 0.8f));
+        assertFalse(tracker.update(1166, 5, 0.9f));
+        assertFalse(tracker.update(1400, 0, Float.NaN));
+        assertEquals(1, tracker.getDirection());
+    }
+
+    @Test
+    public void splitsPassWithoutResetTime() {
+        tracker.configure(20, 10, 0);
+        assertFalse(tracker.update(1000, 30, 0.2f));
+        assertTrue(tracker.update(1066, 30, 0.6f));
+        assertFalse(tracker.update(1100, 0, Float.NaN));
+        assertFalse(tracker.update(1133, 30, 0.8f));
+        // Seen too briefly to cross the middle, counted when it leaves
+        assertTrue(tracker.update(1166, 0, Float.NaN));
+        assertEquals(1133, tracker.getTriggerTime());
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.unrud.elektrometer;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsRegistryTest {
+    private final MetricsRegistry metrics = new MetricsRegistry("test_");
+
+    private String write() throws IOException {
+        StringWriter writer = new StringWriter();
+        metrics.write(writer);
+        return writer.toString();
+    }
+
+    @Test
+    public void writesPrometheusFormat() throws IOException {
+        metrics.counter("frames_total", "Frames\nprocessed").add(3);
+        metrics.gauge("fill", "Fill of the window", () -> 1.5);
+        MetricsRegistry.Histogram histogram = metrics.histogram("latency_seconds", "Latency", 0.25, 1);
+        histogram.observe(0.0625);
+        histogram.observe(0.5);
+        histogram.observe(2);
+        assertEquals("# HELP test_frames_total Frames\\nprocessed\n" +
+                "# TYPE test_frames_total counter\n" +
+                "test_frames_total 3\n" +
+                "# HELP test_fill Fill of the window\n" +
+                "# TYPE test_fill gauge\n" +
+                "test_fill 1.5\n" +
+                "# HELP test_latency_seconds Latency\n" +
+                "# TYPE test_latency_seconds histogram\n" +
+                "test_latency_seconds_bucket{le=\"0.25\"} 1\n" +
+                "test_latency_seconds_bucket{le=\"1\"} 2\n" +
+                "test_latency_seconds_bucket{le=\"+Inf\"} 3\n" +
+                "test_latency_seconds_sum 2.5625\n" +
+                "test_latency_seconds_count 3\n", write());
+        assertEquals(Arrays.asList("frames_total: 3", "fill: 1.50", "latency_seconds: n=3 mean=0.854 p90>1"),
+                metrics.summarize());
+    }
+
+    @Test
+    public void returnsSameMetricForName() throws IOException {
+        MetricsRegistry.Counter counter = metrics.counter("errors_total", "Errors");
+        counter.increment();
+        assertSame(counter, metrics.counter("errors_total", "Errors"));
+        MetricsRegistry.Histogram histogram = metrics.histogram("latency_seconds", "Latency", 1, 2);
+        assertSame(histogram, metrics.histogram("latency_seconds", "Latency", 1, 2));
+        // Supplied counters replace the previous supplier
+        metrics.counter("recoveries_total", "Recoveries", () -> 1);
+        metrics.counter("recoveries_total", "Recoveries", () -> 2);
+        String output = write();
+        assertTrue(output, output.contains("test_errors_total 1\n"));
+        assertTrue(output, output.contains("test_recoveries_total 2\n"));
+        assertEquals(3, metrics.summarize().size());
+    }
+
+    @Test
+    public void estimatesQuantiles() {
+        MetricsRegistry.Histogram histogram = metrics.histogram("latency_seconds", "Latency", 1, 2, 4);
+        assertTrue(Double.isNaN(histogram.estimateQuantile(0.5)));
+        for (int i = 0; i < 10; i++) {
+            histogram.observeNanos(i < 9 ? 1500000000 : 3000000000L);
+        }
+        assertEquals(10, histogram.getCount());
+        assertEquals(2, histogram.estimateQuantile(0.9), 0);
+        assertEquals(4, histogram.estimateQuantile(0.95), 0);
+        assertEquals(Arrays.asList("latency_seconds: n=10 mean=1.65 p90<=2"), metrics.summarize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnorderedBounds() {
+        metrics.histogram("latency_seconds", "Latency", 2, 1);
+    }
+}
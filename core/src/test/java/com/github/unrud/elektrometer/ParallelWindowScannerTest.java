@@ -0,0 +1,114 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.unrud.elektrometer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ParallelWindowScannerTest {
+    private final DetectionEngine engine = new DetectionEngine();
+    private final List<ParallelWindowScanner> scanners = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (ParallelWindowScanner scanner : scanners) {
+            scanner.close();
+        }
+    }
+
+    private ParallelWindowScanner scanner(int bandCount) {
+        ParallelWindowScanner scanner = new ParallelWindowScanner(engine, bandCount);
+        scanners.add(scanner);
+        return scanner;
+    }
+
+    @Test
+    public void matchesSingleThreadedScan() {
+        Random random = new Random(0);
+        TestFrame frame = new TestFrame(640, 480, 1, 2, false);
+        frame.paintNoise(random);
+        TestFrame largeFrame = new TestFrame(1280, 960, 1, 1, true);
+        largeFrame.paintNoise(random);
+        for (int bandCount = 1; bandCount <= 5; bandCount++) {
+            ParallelWindowScanner scanner = scanner(bandCount);
+            for (int rotation = 0; rotation < 360; rotation += 90) {
+                engine.configure(frame.width, frame.height, rotation, 33, 17, 40, 83, 20, 25, true);
+                assertSameFill(frame, scanner);
+                // Bands are aligned to the skipped lines
+                engine.configure(largeFrame.width, largeFrame.height, rotation, 33, 17, 40, 83, 20, 25, false);
+                assertSameFill(largeFrame, scanner);
+            }
+        }
+    }
+
+    @Test
+    public void scansWindowWithFewerRowsThanBands() {
+        TestFrame frame = new TestFrame(64, 48, 1, 2, false);
+        frame.paintNoise(new Random(0));
+        engine.configure(frame.width, frame.height, 0, 5, 50, 40, 83, 20, 25, true);
+        assertEquals(2, engine.getWindowEndY() - engine.getWindowStartY());
+        assertSameFill(frame, scanner(8));
+    }
+
+    @Test
+    public void rethrowsErrorOfWorker() {
+        TestFrame frame = new TestFrame(64, 48, 1, 2, false);
+        frame.paintMarker(0, 64, 0, 48);
+        engine.configure(frame.width, frame.height, 0, 100, 0, 40, 83, 20, 25, true);
+        ParallelWindowScanner scanner = scanner(2);
+        // Only the first band is readable
+        ByteBuffer yBuffer = frame.yBuffer.duplicate();
+        yBuffer.limit(yBuffer.capacity() / 2);
+        try {
+            scanner.measureWindowFill(yBuffer.slice(), frame.yRowStride, frame.yPixelStride,
+                    frame.uBuffer, frame.uvRowStride, frame.uvPixelStride,
+                    frame.vBuffer, frame.uvRowStride, frame.uvPixelStride);
+            fail("expected exception");
+        } catch (RuntimeException e) {
+            // Not a broken barrier
+            assertFalse(e instanceof IllegalStateException);
+        }
+        // The workers are still running
+        assertEquals(100, frame.measure(scanner));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void failsAfterClose() {
+        TestFrame frame = new TestFrame(64, 48, 1, 2, false);
+        engine.configure(frame.width, frame.height, 0, 50, 25, 40, 83, 20, 25, true);
+        ParallelWindowScanner scanner = scanner(2);
+        scanner.close();
+        frame.measure(scanner);
+    }
+
+    private void assertSameFill(TestFrame frame, ParallelWindowScanner scanner) {
+        int windowFill = frame.measure(engine);
+        assertTrue(windowFill > 0);
+        assertEquals(windowFill, frame.measure(scanner));
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.unrud.elektrometer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+final class PulseLogReaders {
+    private PulseLogReaders() {
+    }
+
+    /**
+     * Reads the remaining pulses and closes the reader.
+     */
+    static List<Long> readAll(PulseLogReader reader) throws IOException {
+        List<Long> pulses = new ArrayList<>();
+        try {
+            long wallClockTime;
+            while ((wallClockTime = reader.read()) != PulseLogReader.END) {
+                pulses.add(wallClockTime);
+            }
+        } finally {
+            reader.close();
+        }
+        return pulses;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.unrud.elektrometer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+
+public class PulseRollupsTest {
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    private static final long MINUTE = 60 * 1000, HOUR = 60 * MINUTE, DAY = 24 * HOUR;
+    private static final long JANUARY = 1609459200000L;  // 2021-01-01T00:00:00Z
+    private static final long FEBRUARY = 1612137600000L;
+    private static final List<Long> PULSES = Arrays.asList(FEBRUARY - 30000, FEBRUARY - 10000, FEBRUARY + 10000,
+            FEBRUARY + 70000);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void rebuildsFromLog() throws IOException {
+        File log = new File(folder.getRoot(), "pulses.log");
+        try (TextPulseLog textLog = new TextPulseLog(log)) {
+            for (long pulse : PULSES) {
+                textLog.append(pulse);
+            }
+        }
+        try (PulseRollups rollups = new PulseRollups(log, UTC)) {
+            assertEquals(PULSES.size(), rollups.rebuild());
+            assertEquals(FEBRUARY + 70000, rollups.getLastPulseTime());
+        }
+        assertCounts(log);
+    }
+
+    @Test
+    public void rebuildsMissingRollupsWhenOpened() throws IOException {
+        File log = new File(folder.getRoot(), "pulses.log");
+        try (TextPulseLog textLog = new TextPulseLog(log)) {
+            for (long pulse : PULSES.subList(0, 3)) {
+                textLog.append(pulse);
+            }
+        }
+        try (PulseRollups rollups = new PulseRollups(log, UTC)) {
+            assertEquals(FEBRUARY + 10000, rollups.getLastPulseTime());
+            rollups.append(PULSES.get(3));
+            rollups.sync();
+        }
+        assertCounts(log);
+    }
+
+    @Test
+    public void countsAppendedPulses() throws IOException {
+        File log = new File(folder.getRoot(), "pulses.log");
+        try (PulseRollups rollups = new PulseRollups(log, UTC)) {
+            for (long pulse : PULSES.subList(0, 2)) {
+                rollups.append(pulse);
+            }
+            rollups.sync();
+        }
+        try (PulseRollups rollups = new PulseRollups(log, UTC)) {
+            for (long pulse : PULSES.subList(2, PULSES.size())) {
+                rollups.append(pulse);
+            }
+            rollups.sync();
+        }
+        assertCounts(log);
+    }
+
+    @Test
+    public void replaysPulsesMissingFromSomeRollups() throws IOException {
+        File log = new File(folder.getRoot(), "pulses.log");
+        try (PulseRollups rollups = new PulseRollups(log, UTC)) {
+            for (long pulse : PULSES.subList(0, 2)) {
+                rollups.append(pulse);
+            }
+            rollups.sync();
+        }
+        // Writing failed after the first rollup was written
+        try (PulseRollup rollup = new PulseRollup(PulseRollups.rollupFile(log, PulseRollup.Period.MINUTE),
+                PulseRollup.Period.MINUTE, UTC)) {
+            rollup.append(PULSES.get(2));
+            rollup.sync();
+        }
+        try (PulseRollups rollups = new PulseRollups(log, UTC)) {
+            long lastPulseTime = rollups.getLastPulseTime();
+            assertEquals((long) PULSES.get(1), lastPulseTime);
+            for (long pulse : PULSES) {
+                if (pulse > lastPulseTime) {
+                    rollups.append(pulse);
+                }
+            }
+            rollups.sync();
+        }
+        assertCounts(log);
+    }
+
+    private static void assertCounts(File log) throws IOException {
+        assertEquals(Arrays.asList(FEBRUARY - MINUTE, 2L, FEBRUARY, 1L, FEBRUARY + MINUTE, 1L),
+                readRollup(log, PulseRollup.Period.MINUTE));
+        assertEquals(Arrays.asList(FEBRUARY - HOUR, 2L, FEBRUARY, 2L), readRollup(log, PulseRollup.Period.HOUR));
+        assertEquals(Arrays.asList(FEBRUARY - DAY, 2L, FEBRUARY, 2L), readRollup(log, PulseRollup.Period.DAY));
+        assertEquals(Arrays.asList(JANUARY, 2L, FEBRUARY, 2L), readRollup(log, PulseRollup.Period.MONTH));
+    }
+
+    /**
+     * @return start and count of every record
+     */
+    private static List<Long> readRollup(File log, PulseRollup.Period period) throws IOException {
+        List<Long> records = new ArrayList<>();
+        try (PulseRollup.Reader reader = new PulseRollup.Reader(PulseRollups.rollupFile(log, period))) {
+            assertEquals(period, reader.getPeriod());
+            assertEquals((long) PULSES.get(PULSES.size() - 1), reader.getLastPulseTime());
+            while (reader.next()) {
+                records.add(reader.getStart());
+                records.add((long) reader.getCount());
+            }
+        }
+        return records;
+    }
+}
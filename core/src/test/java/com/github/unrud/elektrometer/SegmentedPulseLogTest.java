@@ -0,0 +1,185 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.unrud.elektrometer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SegmentedPulseLogTest {
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    private static final long JANUARY = 1609459200000L;  // 2021-01-01T00:00:00Z
+    private static final long FEBRUARY = 1612137600000L;
+    private static final long MARCH = 1614556800000L;
+    private static final List<Long> PULSES = Arrays.asList(JANUARY + 1000, FEBRUARY - 1, FEBRUARY, FEBRUARY + 1,
+            MARCH + 500, MARCH + 1500);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File appendAll(boolean compress, int retentionMonths) throws IOException {
+        File log = new File(folder.getRoot(), "pulses.log");
+        try (SegmentedPulseLog segmentedLog = new SegmentedPulseLog(log, UTC, compress, retentionMonths,
+                (segment, e) -> {
+                    throw new AssertionError(e);
+                })) {
+            for (long pulse : PULSES) {
+                segmentedLog.append(pulse);
+            }
+            assertEquals(MARCH + 1500, segmentedLog.getLastPulseTime());
+        }
+        return log;
+    }
+
+    @Test
+    public void closesSegmentEveryMonth() throws IOException {
+        File log = appendAll(false, 0);
+        List<SegmentedPulseLog.Segment> segments = SegmentedPulseLog.readManifest(log);
+        assertEquals(2, segments.size());
+        assertSegment(segments.get(0), "pulses.2021-01.log", JANUARY + 1000, FEBRUARY - 1, 2);
+        assertSegment(segments.get(1), "pulses.2021-02.log", FEBRUARY, FEBRUARY + 1, 2);
+        assertEquals(PULSES, PulseLogReaders.readAll(new SegmentedPulseLog.Reader(log)));
+        assertEquals(PULSES.subList(1, 4),
+                PulseLogReaders.readAll(new SegmentedPulseLog.Reader(log, FEBRUARY - 1, MARCH)));
+        try (SegmentedPulseLog segmentedLog = new SegmentedPulseLog(log, UTC, false)) {
+            assertEquals(MARCH + 1500, segmentedLog.getLastPulseTime());
+        }
+    }
+
+    @Test
+    public void compressesClosedSegments() throws IOException, InterruptedException {
+        File log = appendAll(false, 0);
+        SegmentedPulseLog segmentedLog = new SegmentedPulseLog(log, UTC, true);
+        try {
+            // Closing cancels the compressions
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!isCompressed(SegmentedPulseLog.readManifest(log))) {
+                assertTrue("not compressed", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+        } finally {
+            segmentedLog.close();
+        }
+        List<SegmentedPulseLog.Segment> segments = SegmentedPulseLog.readManifest(log);
+        assertSegment(segments.get(0), "pulses.2021-01.log.gz", JANUARY + 1000, FEBRUARY - 1, 2);
+        assertSegment(segments.get(1), "pulses.2021-02.log.gz", FEBRUARY, FEBRUARY + 1, 2);
+        assertFalse(new File(folder.getRoot(), "pulses.2021-01.log").exists());
+        assertEquals(PULSES, PulseLogReaders.readAll(new SegmentedPulseLog.Reader(log)));
+    }
+
+    @Test
+    public void deletesExpiredSegments() throws IOException {
+        File log = appendAll(false, 1);
+        List<SegmentedPulseLog.Segment> segments = SegmentedPulseLog.readManifest(log);
+        assertEquals(1, segments.size());
+        assertSegment(segments.get(0), "pulses.2021-02.log", FEBRUARY, FEBRUARY + 1, 2);
+        assertFalse(new File(folder.getRoot(), "pulses.2021-01.log").exists());
+        assertEquals(PULSES.subList(2, PULSES.size()), PulseLogReaders.readAll(new SegmentedPulseLog.Reader(log)));
+    }
+
+    @Test
+    public void addsSegmentsMissingFromManifest() throws IOException {
+        File log = appendAll(false, 0);
+        assertTrue(SegmentedPulseLog.manifestFile(log).delete());
+        try (SegmentedPulseLog segmentedLog = new SegmentedPulseLog(log, UTC, false)) {
+            segmentedLog.append(MARCH + 2000);
+        }
+        assertEquals(2, SegmentedPulseLog.readManifest(log).size());
+        List<Long> expected = new ArrayList<>(PULSES);
+        expected.add(MARCH + 2000);
+        assertEquals(expected, PulseLogReaders.readAll(new SegmentedPulseLog.Reader(log)));
+    }
+
+    @Test
+    public void skipsInvalidLinesWhenClosingSegment() throws IOException {
+        File log = new File(folder.getRoot(), "pulses.log");
+        try (SegmentedPulseLog segmentedLog = new SegmentedPulseLog(log, UTC, false)) {
+            segmentedLog.append(JANUARY + 1000);
+        }
+        try (FileOutputStream outputStream = new FileOutputStream(log, true)) {
+            outputStream.write("invalid\n".getBytes(StandardCharsets.UTF_8));
+        }
+        try (SegmentedPulseLog segmentedLog = new SegmentedPulseLog(log, UTC, false)) {
+            segmentedLog.append(FEBRUARY - 1);
+            segmentedLog.append(FEBRUARY);
+        }
+        List<SegmentedPulseLog.Segment> segments = SegmentedPulseLog.readManifest(log);
+        assertEquals(1, segments.size());
+        assertSegment(segments.get(0), "pulses.2021-01.log", JANUARY + 1000, FEBRUARY - 1, 2);
+    }
+
+    @Test
+    public void continuesLogWhenClosingSegmentFailed() throws IOException {
+        File log = new File(folder.getRoot(), "pulses.log");
+        // Replacing the manifest fails
+        File blocker = folder.newFolder("pulses.segments.tmp");
+        try (SegmentedPulseLog segmentedLog = new SegmentedPulseLog(log, UTC, false)) {
+            segmentedLog.append(JANUARY + 1000);
+            try {
+                segmentedLog.append(FEBRUARY);
+                fail("expected IOException");
+            } catch (IOException e) {
+                // Appended again like DetectionLogWriter does
+            }
+            segmentedLog.append(FEBRUARY);
+            segmentedLog.append(FEBRUARY + 1);
+            assertTrue(blocker.delete());
+            segmentedLog.append(MARCH + 500);
+        }
+        try (SegmentedPulseLog segmentedLog = new SegmentedPulseLog(log, UTC, false)) {
+            assertEquals(MARCH + 500, segmentedLog.getLastPulseTime());
+        }
+        List<SegmentedPulseLog.Segment> segments = SegmentedPulseLog.readManifest(log);
+        assertEquals(2, segments.size());
+        assertSegment(segments.get(0), "pulses.2021-01.log", JANUARY + 1000, JANUARY + 1000, 1);
+        assertSegment(segments.get(1), "pulses.2021-02.log", FEBRUARY, FEBRUARY + 1, 2);
+        assertEquals(Arrays.asList(JANUARY + 1000, FEBRUARY, FEBRUARY + 1, MARCH + 500),
+                PulseLogReaders.readAll(new SegmentedPulseLog.Reader(log)));
+    }
+
+    private static boolean isCompressed(List<SegmentedPulseLog.Segment> segments) {
+        for (SegmentedPulseLog.Segment segment : segments) {
+            if (!segment.isCompressed()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void assertSegment(SegmentedPulseLog.Segment segment, String name, long firstPulse,
+                                      long lastPulse, long count) {
+        assertEquals(name, segment.getName());
+        assertEquals(firstPulse, segment.getFirstPulse());
+        assertEquals(lastPulse, segment.getLastPulse());
+        assertEquals(count, segment.getCount());
+    }
+}
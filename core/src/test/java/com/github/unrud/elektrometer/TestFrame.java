@@ -0,0 +1,125 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.unrud.elektrometer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A gray YUV_420_888 frame with the planes laid out like {@code android.media.Image}, both as direct buffers
+ * and as arrays.
+ */
+final class TestFrame {
+    // Matches the default color settings
+    static final int MARKER_Y = 90, MARKER_U = 102, MARKER_V = 211;
+    private static final int BACKGROUND = 128;
+    private static final int ROW_ALIGNMENT = 128;
+
+    final int width, height;
+    final byte[] yPlane, chroma;
+    final int yRowStride, yPixelStride, uvRowStride, uvPixelStride, vOffset;
+    final ByteBuffer yBuffer, uBuffer, vBuffer;
+
+    /**
+     * @param uvPixelStride 1 for planar, 2 for semi-planar (the V plane starts one byte after the U plane)
+     * @param padded        row strides are aligned to {@link #ROW_ALIGNMENT} bytes
+     */
+    TestFrame(int width, int height, int yPixelStride, int uvPixelStride, boolean padded) {
+        this.width = width;
+        this.height = height;
+        this.yPixelStride = yPixelStride;
+        this.uvPixelStride = uvPixelStride;
+        yRowStride = rowStride(width * yPixelStride, padded);
+        uvRowStride = rowStride(width / 2 * uvPixelStride, padded);
+        vOffset = uvPixelStride == 1 ? uvRowStride * height / 2 : 1;
+        yPlane = new byte[yRowStride * height];
+        chroma = new byte[uvRowStride * height / 2 + vOffset];
+        Arrays.fill(yPlane, (byte) BACKGROUND);
+        Arrays.fill(chroma, (byte) BACKGROUND);
+        yBuffer = ByteBuffer.allocateDirect(yPlane.length);
+        ByteBuffer chromaBuffer = ByteBuffer.allocateDirect(chroma.length);
+        chromaBuffer.limit(chroma.length - vOffset);
+        uBuffer = chromaBuffer.slice();
+        chromaBuffer.limit(chroma.length).position(vOffset);
+        vBuffer = chromaBuffer.slice();
+        copyToBuffers();
+    }
+
+    private static int rowStride(int rowLength, boolean padded) {
+        return padded ? (rowLength + ROW_ALIGNMENT - 1) / ROW_ALIGNMENT * ROW_ALIGNMENT : rowLength;
+    }
+
+    /**
+     * Paints the marker from {@code startX} and {@code startY} (inclusive, even) to {@code endX} and {@code endY}.
+     */
+    void paintMarker(int startX, int endX, int startY, int endY) {
+        for (int y = startY; y < endY; y++) {
+            for (int x = startX; x < endX; x++) {
+                setPixel(x, y, MARKER_Y, MARKER_U, MARKER_V);
+            }
+        }
+        copyToBuffers();
+    }
+
+    /**
+     * Paints noise around the marker color, about half of the pixels match.
+     */
+    void paintNoise(Random random) {
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                setPixel(x, y, MARKER_Y - 40 + random.nextInt(80), MARKER_U - 30 + random.nextInt(60),
+                        MARKER_V - 30 + random.nextInt(60));
+            }
+        }
+        copyToBuffers();
+    }
+
+    private void setPixel(int x, int y, int pixelY, int pixelU, int pixelV) {
+        yPlane[y * yRowStride + x * yPixelStride] = (byte) pixelY;
+        int uv = (y / 2) * uvRowStride + (x / 2) * uvPixelStride;
+        chroma[uv] = (byte) pixelU;
+        chroma[vOffset + uv] = (byte) pixelV;
+    }
+
+    private void copyToBuffers() {
+        yBuffer.clear();
+        yBuffer.put(yPlane).clear();
+        for (int i = 0; i < uBuffer.capacity(); i++) {
+            uBuffer.put(i, chroma[i]);
+            vBuffer.put(i, chroma[vOffset + i]);
+        }
+    }
+
+    int measure(DetectionEngine engine) {
+        return engine.measureWindowFill(yBuffer, yRowStride, yPixelStride,
+                uBuffer, uvRowStride, uvPixelStride, vBuffer, uvRowStride, uvPixelStride);
+    }
+
+    int measure(ParallelWindowScanner scanner) {
+        return scanner.measureWindowFill(yBuffer, yRowStride, yPixelStride,
+                uBuffer, uvRowStride, uvPixelStride, vBuffer, uvRowStride, uvPixelStride);
+    }
+
+    int measureArrays(DetectionEngine engine) {
+        byte[] vPlane = new byte[chroma.length - vOffset];
+        System.arraycopy(chroma, vOffset, vPlane, 0, vPlane.length);
+        return engine.measureWindowFill(yPlane, yRowStride, yPixelStride,
+                chroma, uvRowStride, uvPixelStride, vPlane, uvRowStride, uvPixelStride);
+    }
+}
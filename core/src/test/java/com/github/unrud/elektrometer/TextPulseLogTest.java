@@ -0,0 +1,107 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.unrud.elektrometer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+public class TextPulseLogTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsAppendedPulses() throws IOException {
+        File file = folder.newFile("pulses.log");
+        List<Long> pulses = Arrays.asList(0L, 1L, 1500L, 1612137600123L, 1612137601000L);
+        try (TextPulseLog log = new TextPulseLog(file)) {
+            assertEquals(PulseLog.NO_PULSE, log.getLastPulseTime());
+            for (long pulse : pulses) {
+                log.append(pulse);
+            }
+            assertEquals(1612137601000L, log.getLastPulseTime());
+        }
+        assertEquals(pulses, PulseLogReaders.readAll(new TextPulseLog.Reader(file)));
+        try (TextPulseLog log = new TextPulseLog(file)) {
+            assertEquals(1612137601000L, log.getLastPulseTime());
+        }
+    }
+
+    @Test
+    public void discardsIncompleteLastLine() throws IOException {
+        File file = folder.newFile("pulses.log");
+        write(file, "1.000\n\n2.500\n3.2");
+        try (TextPulseLog log = new TextPulseLog(file)) {
+            assertEquals(2500, log.getLastPulseTime());
+            assertEquals("1.000\n\n2.500\n".length(), file.length());
+            log.append(4000);
+        }
+        assertEquals(Arrays.asList(1000L, 2500L, 4000L), PulseLogReaders.readAll(new TextPulseLog.Reader(file)));
+    }
+
+    @Test
+    public void findsFirstLineAfterTime() throws IOException {
+        File file = folder.newFile("pulses.log");
+        // Long enough for the binary search, with lines that are skipped
+        StringBuilder content = new StringBuilder();
+        List<Long> times = new ArrayList<>(), offsets = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            if (i % 1000 == 500) {
+                content.append(i % 2000 == 500 ? "\n" : "invalid\n");
+            }
+            long time = 1612137600000L + i * 1500L;
+            times.add(time);
+            offsets.add((long) content.length());
+            content.append(String.format(Locale.US, "%d.%03d\n", time / 1000, time % 1000));
+        }
+        write(file, content.toString());
+        long length = file.length();
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            assertEquals(0, TextPulseLog.findFirstAfter(randomAccessFile, length, Long.MIN_VALUE));
+            assertEquals(0, TextPulseLog.findFirstAfter(randomAccessFile, length, times.get(0) - 1));
+            for (int i = 0; i < times.size() - 1; i += 7) {
+                assertEquals((long) offsets.get(i + 1),
+                        TextPulseLog.findFirstAfter(randomAccessFile, length, times.get(i)));
+                assertEquals((long) offsets.get(i + 1),
+                        TextPulseLog.findFirstAfter(randomAccessFile, length, times.get(i) + 1));
+            }
+            assertEquals(length, TextPulseLog.findFirstAfter(randomAccessFile, length, times.get(times.size() - 1)));
+            // Only the beginning of the file
+            long partialLength = offsets.get(100);
+            assertEquals(partialLength, TextPulseLog.findFirstAfter(randomAccessFile, partialLength, times.get(200)));
+        }
+    }
+
+    private static void write(File file, String content) throws IOException {
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
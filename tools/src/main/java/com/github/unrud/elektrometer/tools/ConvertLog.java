@@ -0,0 +1,74 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.unrud.elektrometer.tools;
+
+import com.github.unrud.elektrometer.BinaryPulseLog;
+import com.github.unrud.elektrometer.PulseLog;
+import com.github.unrud.elektrometer.PulseLogReader;
+import com.github.unrud.elektrometer.SegmentedPulseLog;
+import com.github.unrud.elektrometer.TextPulseLog;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Converts the detection log between the text format and the binary format.
+ */
+final class ConvertLog {
+    private ConvertLog() {
+    }
+
+    private static void printUsage() {
+        System.err.println("usage: elektrometer-tools convert-log INPUT OUTPUT\n" +
+                "\n" +
+                "Converts ElektroMeter.log (text) to the binary format and vice versa.\n" +
+                "The format of INPUT is detected automatically, OUTPUT must not exist.\n" +
+                "The closed segments of a text log (e.g. ElektroMeter.2026-09.log.gz) are included.");
+    }
+
+    static int run(String[] args) {
+        if (args.length != 2) {
+            printUsage();
+            return 2;
+        }
+        File input = new File(args[0]), output = new File(args[1]);
+        if (output.exists()) {
+            System.err.println("output exists: " + output);
+            return 1;
+        }
+        try {
+            boolean binaryInput = BinaryPulseLog.isBinaryPulseLog(input);
+            long count = 0;
+            try (PulseLogReader reader = binaryInput ? new BinaryPulseLog.Reader(input) :
+                    new SegmentedPulseLog.Reader(input);
+                 PulseLog writer = binaryInput ? new TextPulseLog(output) : new BinaryPulseLog(output)) {
+                long wallClockTime;
+                while ((wallClockTime = reader.read()) != PulseLogReader.END) {
+                    writer.append(wallClockTime);
+                    count++;
+                }
+                writer.sync();
+            }
+            System.err.printf("Converted %d pulses to %s format%n", count, binaryInput ? "text" : "binary");
+        } catch (IOException e) {
+            System.err.println("conversion failed: " + e.getMessage());
+            return 1;
+        }
+        return 0;
+    }
+}
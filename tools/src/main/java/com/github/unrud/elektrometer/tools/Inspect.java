@@ -0,0 +1,404 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.unrud.elektrometer.tools;
+
+import com.github.unrud.elektrometer.ColorLookupTable;
+import com.github.unrud.elektrometer.DetectionEngine;
+import com.github.unrud.elektrometer.RawDump;
+import com.github.unrud.elektrometer.YuvColor;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.IntStream;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Measures the window fill of dump images and raw dumps with the detection of the app, for sweeps over the
+ * color settings.
+ */
+final class Inspect {
+    private static final ThreadLocal<DetectionEngine> DETECTION_ENGINES =
+            ThreadLocal.withInitial(DetectionEngine::new);
+    // Marks matching pixels in the rendered window, all other pixels are opaque
+    private static final int MATCH_COLOR = 0;
+
+    private Inspect() {
+    }
+
+    private static void printUsage() {
+        System.err.println("usage: elektrometer-tools inspect [OPTIONS] DUMP...\n" +
+                "\n" +
+                "Measures the window fill of dump images (ElektroMeter.dump.png) or raw dumps\n" +
+                "(ElektroMeter.dump.yuv) for every combination of the color settings and prints\n" +
+                "a line with the dump, blue projection, red projection, distance threshold, luma\n" +
+                "threshold and window fill.\n" +
+                "\n" +
+                "options:\n" +
+                "  --rotation DEGREES        camera rotation: 0, 90, 180 or 270 (default: 0)\n" +
+                "  --window-height PERCENT   detection window height (default: 100)\n" +
+                "  --window-offset PERCENT   detection window offset (default: 0)\n" +
+                "  --blue VALUES             color blue projection (default: 40)\n" +
+                "  --red VALUES              color red projection (default: 83)\n" +
+                "  --dist VALUES             color distance threshold (default: 20)\n" +
+                "  --luma VALUES             color luma threshold (default: 25)\n" +
+                "  --regions REGIONS         additional color regions (default: none)\n" +
+                "  --full-resolution         scan every pixel of large images like parallel detection\n" +
+                "  --images                  write DUMP.color.png, DUMP.dist.png and DUMP.mask.png,\n" +
+                "                            requires a single combination of settings\n" +
+                "\n" +
+                "VALUES is a number from 0 to 100, a comma separated list or FIRST:LAST[:STEP].");
+    }
+
+    private static final class Options {
+        int rotation = 0, windowHeight = 100, windowOffset = 0;
+        int[] blue = {40}, red = {83}, dist = {20}, luma = {25};
+        String regions = "";
+        boolean fullResolution, images;
+        final List<File> dumps = new ArrayList<>();
+    }
+
+    /**
+     * Planes of a dump with pixel stride 1.
+     */
+    private static final class Dump {
+        final File file;
+        final int width, height, uvRowStride;
+        final byte[] y, u, v;
+
+        Dump(File file) throws IOException {
+            this.file = file;
+            if (RawDump.isRawDump(file)) {
+                RawDump rawDump = RawDump.read(file);
+                width = rawDump.getWidth();
+                height = rawDump.getHeight();
+                uvRowStride = (width + 1) / 2;
+                y = copyPlane(rawDump.getPlane(0), width, height);
+                u = copyPlane(rawDump.getPlane(1), uvRowStride, (height + 1) / 2);
+                v = copyPlane(rawDump.getPlane(2), uvRowStride, (height + 1) / 2);
+                return;
+            }
+            BufferedImage image = ImageIO.read(file);
+            if (image == null) {
+                throw new IOException("unsupported image format: " + file);
+            }
+            width = image.getWidth();
+            height = image.getHeight();
+            uvRowStride = (width + 1) / 2;
+            int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+            y = new byte[width * height];
+            u = new byte[uvRowStride * ((height + 1) / 2)];
+            v = new byte[u.length];
+            for (int i = 0; i < pixels.length; i++) {
+                y[i] = (byte) (pixels[i] >> 8);
+            }
+            // The dump repeats the samples of the U and V planes for every pixel
+            for (int row = 0; row < height; row += 2) {
+                for (int column = 0; column < width; column += 2) {
+                    int pixel = pixels[row * width + column], i = row / 2 * uvRowStride + column / 2;
+                    u[i] = (byte) pixel;
+                    v[i] = (byte) (pixel >> 16);
+                }
+            }
+        }
+
+        private static byte[] copyPlane(RawDump.Plane plane, int width, int height) {
+            byte[] result = new byte[width * height];
+            ByteBuffer buffer = plane.getBuffer();
+            for (int row = 0; row < height; row++) {
+                for (int column = 0; column < width; column++) {
+                    result[row * width + column] = buffer.get(row * plane.getRowStride() +
+                            column * plane.getPixelStride());
+                }
+            }
+            return result;
+        }
+    }
+
+    static int run(String[] args) {
+        Options options;
+        try {
+            options = parseOptions(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            printUsage();
+            return 2;
+        }
+        if (options == null) {
+            printUsage();
+            return 2;
+        }
+        long startNanoTime = System.nanoTime();
+        List<Dump> dumps;
+        try {
+            dumps = loadDumps(options.dumps);
+        } catch (IOException e) {
+            System.err.println("failed to read dump: " + e.getMessage());
+            return 1;
+        }
+        int combinations = options.blue.length * options.red.length * options.dist.length * options.luma.length;
+        int[] fills = new int[dumps.size() * combinations];
+        IntStream.range(0, fills.length).parallel().forEach(i -> {
+            Dump dump = dumps.get(i / combinations);
+            DetectionEngine detectionEngine = configure(DETECTION_ENGINES.get(), options, dump, i % combinations);
+            fills[i] = detectionEngine.measureWindowFill(dump.y, dump.width, 1,
+                    dump.u, dump.uvRowStride, 1, dump.v, dump.uvRowStride, 1);
+        });
+        for (int i = 0; i < fills.length; i++) {
+            int combination = i % combinations;
+            System.out.printf(Locale.US, "%s %3d %3d %3d %3d %3d%n", dumps.get(i / combinations).file,
+                    blue(options, combination), red(options, combination), dist(options, combination),
+                    luma(options, combination), fills[i]);
+        }
+        System.out.flush();
+        System.err.printf(Locale.US, "Measured %d combinations of settings on %d dumps in %.2f s%n",
+                combinations, dumps.size(), (System.nanoTime() - startNanoTime) / 1e9);
+        if (options.images) {
+            try {
+                for (Dump dump : dumps) {
+                    writeImages(options, dump);
+                }
+            } catch (IOException e) {
+                System.err.println("failed to write image: " + e.getMessage());
+                return 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return null when the arguments are incomplete
+     */
+    private static Options parseOptions(String[] args) throws IllegalArgumentException {
+        Options options = new Options();
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("--"); i++) {
+            String option = args[i];
+            if (option.equals("--full-resolution")) {
+                options.fullResolution = true;
+                continue;
+            } else if (option.equals("--images")) {
+                options.images = true;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                return null;
+            }
+            String value = args[++i];
+            switch (option) {
+                case "--rotation":
+                    options.rotation = parseInt(value, 0, 270);
+                    if (options.rotation % 90 != 0) {
+                        throw new IllegalArgumentException("invalid rotation: " + value);
+                    }
+                    break;
+                case "--window-height":
+                    options.windowHeight = parseInt(value, 0, 100);
+                    break;
+                case "--window-offset":
+                    options.windowOffset = parseInt(value, 0, 100);
+                    break;
+                case "--blue":
+                    options.blue = parseValues(value);
+                    break;
+                case "--red":
+                    options.red = parseValues(value);
+                    break;
+                case "--dist":
+                    options.dist = parseValues(value);
+                    break;
+                case "--luma":
+                    options.luma = parseValues(value);
+                    break;
+                case "--regions":
+                    ColorLookupTable.parseRegions(value);
+                    options.regions = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option: " + option);
+            }
+        }
+        if (options.windowHeight + options.windowOffset > 100) {
+            throw new IllegalArgumentException("window height and offset exceed 100");
+        }
+        if (options.images && options.blue.length * options.red.length * options.dist.length *
+                options.luma.length != 1) {
+            throw new IllegalArgumentException("--images requires a single combination of settings");
+        }
+        for (; i < args.length; i++) {
+            options.dumps.add(new File(args[i]));
+        }
+        return options.dumps.isEmpty() ? null : options;
+    }
+
+    private static int parseInt(String value, int min, int max) throws IllegalArgumentException {
+        int result;
+        try {
+            result = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("not a number: " + value);
+        }
+        if (result < min || result > max) {
+            throw new IllegalArgumentException(String.format(Locale.US, "not in range %d to %d: %s",
+                    min, max, value));
+        }
+        return result;
+    }
+
+    /**
+     * @param values {@code N}, {@code N,M,...} or {@code FIRST:LAST[:STEP]}
+     */
+    private static int[] parseValues(String values) throws IllegalArgumentException {
+        if (values.contains(":")) {
+            String[] range = values.split(":", -1);
+            if (range.length > 3) {
+                throw new IllegalArgumentException("invalid range: " + values);
+            }
+            int first = parseInt(range[0], 0, 100), last = parseInt(range[1], first, 100);
+            int step = range.length == 3 ? parseInt(range[2], 1, 100) : 1;
+            return IntStream.iterate(first, value -> value + step).limit((last - first) / step + 1).toArray();
+        }
+        String[] list = values.split(",", -1);
+        int[] result = new int[list.length];
+        for (int i = 0; i < list.length; i++) {
+            result[i] = parseInt(list[i], 0, 100);
+        }
+        return result;
+    }
+
+    private static List<Dump> loadDumps(List<File> files) throws IOException {
+        try {
+            return Arrays.asList(files.parallelStream().map(file -> {
+                try {
+                    return new Dump(file);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).toArray(Dump[]::new));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // The combinations are numbered with the luma threshold changing fastest
+    private static int luma(Options options, int combination) {
+        return options.luma[combination % options.luma.length];
+    }
+
+    private static int dist(Options options, int combination) {
+        return options.dist[combination / options.luma.length % options.dist.length];
+    }
+
+    private static int red(Options options, int combination) {
+        return options.red[combination / options.luma.length / options.dist.length % options.red.length];
+    }
+
+    private static int blue(Options options, int combination) {
+        return options.blue[combination / options.luma.length / options.dist.length / options.red.length];
+    }
+
+    private static DetectionEngine configure(DetectionEngine detectionEngine, Options options, Dump dump,
+                                             int combination) {
+        detectionEngine.configure(dump.width, dump.height, options.rotation,
+                options.windowHeight, options.windowOffset,
+                blue(options, combination), red(options, combination),
+                dist(options, combination), luma(options, combination), options.fullResolution);
+        detectionEngine.configureColorRegions(options.regions);
+        return detectionEngine;
+    }
+
+    /**
+     * Writes the images in display orientation: the colors, the distance from the blue and red projection
+     * and the colors of the pixels in the window that match the marker.
+     */
+    private static void writeImages(Options options, Dump dump) throws IOException {
+        int width = dump.width, height = dump.height;
+        int[] color = new int[width * height], distance = new int[width * height], mask = new int[width * height];
+        int blue = options.blue[0] * 255 / 100, red = options.red[0] * 255 / 100;
+        IntStream.range(0, height).parallel().forEach(row -> {
+            for (int column = 0; column < width; column++) {
+                int i = row * width + column, uvIndex = row / 2 * dump.uvRowStride + column / 2;
+                int pixelY = dump.y[i] & 0xff, pixelU = dump.u[uvIndex] & 0xff, pixelV = dump.v[uvIndex] & 0xff;
+                color[i] = YuvColor.toArgb(pixelY, pixelU, pixelV);
+                int gray = (int) Math.min(255, Math.round(Math.hypot(blue - pixelU, red - pixelV)));
+                distance[i] = 0xff000000 | gray << 16 | gray << 8 | gray;
+            }
+        });
+        DetectionEngine detectionEngine = configure(new DetectionEngine(), options, dump, 0);
+        int windowStartX = detectionEngine.getWindowStartX(), windowEndX = detectionEngine.getWindowEndX();
+        int windowStartY = detectionEngine.getWindowStartY(), windowEndY = detectionEngine.getWindowEndY();
+        int windowWidth = windowEndX - windowStartX;
+        int[] window = new int[Math.max(0, windowWidth * (windowEndY - windowStartY))];
+        detectionEngine.renderWindow(ByteBuffer.wrap(dump.y), width, 1,
+                ByteBuffer.wrap(dump.u), dump.uvRowStride, 1, ByteBuffer.wrap(dump.v), dump.uvRowStride, 1,
+                window, MATCH_COLOR);
+        Arrays.fill(mask, 0xff000000);
+        for (int row = windowStartY; row < windowEndY; row++) {
+            for (int column = windowStartX; column < windowEndX; column++) {
+                if (window[(row - windowStartY) * windowWidth + column - windowStartX] == MATCH_COLOR) {
+                    mask[row * width + column] = color[row * width + column];
+                }
+            }
+        }
+        String base = dump.file.getPath().replaceFirst("\\.[^./\\\\]*$", "");
+        writeImage(new File(base + ".color.png"), color, width, height, options.rotation);
+        writeImage(new File(base + ".dist.png"), distance, width, height, options.rotation);
+        writeImage(new File(base + ".mask.png"), mask, width, height, options.rotation);
+    }
+
+    /**
+     * @param rotation clockwise
+     */
+    private static void writeImage(File file, int[] pixels, int width, int height, int rotation)
+            throws IOException {
+        boolean swap = rotation % 180 != 0;
+        int rotatedWidth = swap ? height : width, rotatedHeight = swap ? width : height;
+        BufferedImage image = new BufferedImage(rotatedWidth, rotatedHeight, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int rotatedX, rotatedY;
+                if (rotation == 90) {
+                    rotatedX = height - 1 - y;
+                    rotatedY = x;
+                } else if (rotation == 180) {
+                    rotatedX = width - 1 - x;
+                    rotatedY = height - 1 - y;
+                } else if (rotation == 270) {
+                    rotatedX = y;
+                    rotatedY = width - 1 - x;
+                } else {
+                    rotatedX = x;
+                    rotatedY = y;
+                }
+                image.setRGB(rotatedX, rotatedY, pixels[y * width + x]);
+            }
+        }
+        System.err.println("Saving " + file);
+        if (!ImageIO.write(image, "png", file)) {
+            throw new IOException("no png writer");
+        }
+    }
+}
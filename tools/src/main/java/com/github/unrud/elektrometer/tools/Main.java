@@ -0,0 +1,66 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.unrud.elektrometer.tools;
+
+import java.util.Arrays;
+
+/**
+ * Command line tools for working with Elektro Meter data on the computer.
+ */
+public final class Main {
+    private Main() {
+    }
+
+    private static void printUsage() {
+        System.err.println("usage: elektrometer-tools COMMAND [ARGS...]\n" +
+                "\n" +
+                "commands:\n" +
+                "  convert-log        convert the detection log between text and binary format\n" +
+                "  inspect            measure the window fill of dump images for color settings\n" +
+                "  rebuild-rollups    regenerate the pulses per minute, hour, day and month\n" +
+                "  replay             run the marker detection over a frame recording");
+    }
+
+    public static void main(String[] args) {
+        if (args.length == 0 || args[0].equals("--help") || args[0].equals("-h")) {
+            printUsage();
+            System.exit(args.length == 0 ? 2 : 0);
+        }
+        String[] commandArgs = Arrays.copyOfRange(args, 1, args.length);
+        int status;
+        switch (args[0]) {
+            case "convert-log":
+                status = ConvertLog.run(commandArgs);
+                break;
+            case "inspect":
+                status = Inspect.run(commandArgs);
+                break;
+            case "rebuild-rollups":
+                status = RebuildRollups.run(commandArgs);
+                break;
+            case "replay":
+                status = Replay.run(commandArgs);
+                break;
+            default:
+                System.err.println("unknown command: " + args[0]);
+                printUsage();
+                status = 2;
+        }
+        System.exit(status);
+    }
+}
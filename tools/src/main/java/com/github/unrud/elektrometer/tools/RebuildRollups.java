@@ -0,0 +1,73 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.unrud.elektrometer.tools;
+
+import com.github.unrud.elektrometer.PulseRollups;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.TimeZone;
+
+/**
+ * Regenerates the rollups (pulses per minute, hour, day and month) of a detection log.
+ */
+final class RebuildRollups {
+    private RebuildRollups() {
+    }
+
+    private static void printUsage() {
+        System.err.println("usage: elektrometer-tools rebuild-rollups [--time-zone ZONE] LOG\n" +
+                "\n" +
+                "Regenerates the rollups next to LOG (text or binary format), e.g.\n" +
+                "ElektroMeter.hours.rollup for ElektroMeter.log.\n" +
+                "Periods start in the local time zone of the computer or in ZONE (e.g. Europe/Berlin),\n" +
+                "which should be the time zone of the phone.");
+    }
+
+    static int run(String[] args) {
+        TimeZone timeZone = TimeZone.getDefault();
+        int i = 0;
+        if (args.length == 3 && args[0].equals("--time-zone")) {
+            timeZone = TimeZone.getTimeZone(args[1]);
+            if (!timeZone.getID().equals(args[1])) {
+                System.err.println("unknown time zone: " + args[1]);
+                return 2;
+            }
+            i = 2;
+        }
+        if (args.length != i + 1) {
+            printUsage();
+            return 2;
+        }
+        File log = new File(args[i]);
+        if (!log.isFile()) {
+            System.err.println("log not found: " + log);
+            return 1;
+        }
+        try (PulseRollups rollups = new PulseRollups(log, timeZone)) {
+            long count = rollups.rebuild();
+            rollups.sync();
+            System.err.printf("Counted %d pulses, periods start in time zone %s%n", count, timeZone.getID());
+        } catch (IOException e) {
+            System.err.println("rebuild failed: " + e.getMessage());
+            return 1;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * This file is part of Elektro Meter.
+ *
+ * Elektro Meter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Elektro Meter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Elektro Meter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.unrud.elektrometer.tools;
+
+import com.github.unrud.elektrometer.CameraSettings;
+import com.github.unrud.elektrometer.DetectionEngine;
+import com.github.unrud.elektrometer.FrameRecorder;
+import com.github.unrud.elektrometer.MarkerTracker;
+import com.github.unrud.elektrometer.ParallelWindowScanner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Runs the marker detection of the app over a frame recording.
+ */
+final class Replay {
+    private Replay() {
+    }
+
+    private static void printUsage() {
+        System.err.println("usage: elektrometer-tools replay [--set KEY=VALUE]... [--frames] RECORDING\n" +
+                "\n" +
+                "Detects the pulses in RECORDING (ElektroMeter.frames) with the settings of the\n" +
+                "recording and prints their time like the detection log.\n" +
+                "Settings can be overridden with --set, e.g. --set colorLumaThreshold=20.\n" +
+                "With --frames, the time, window fill and trigger state of every frame is printed\n" +
+                "instead. The number of frames and the throughput are printed to stderr.");
+    }
+
+    static int run(String[] args) {
+        Map<String, String> overrides = new HashMap<>();
+        boolean printFrames = false;
+        int i = 0;
+        for (; i < args.length - 1; i++) {
+            if (args[i].equals("--frames")) {
+                printFrames = true;
+            } else if (args[i].equals("--set") && i + 1 < args.length - 1 && args[i + 1].indexOf('=') > 0) {
+                String setting = args[++i];
+                int separator = setting.indexOf('=');
+                overrides.put(setting.substring(0, separator), setting.substring(separator + 1));
+            } else {
+                break;
+            }
+        }
+        if (i != args.length - 1) {
+            printUsage();
+            return 2;
+        }
+        File recording = new File(args[i]);
+        if (!recording.isFile()) {
+            System.err.println("recording not found: " + recording);
+            return 1;
+        }
+        try (FrameRecorder.Reader reader = new FrameRecorder.Reader(recording)) {
+            Map<String, Object> values = new HashMap<>();
+            Map<String, String> recordedValues = new HashMap<>(reader.getSettings());
+            recordedValues.putAll(overrides);
+            for (Map.Entry<String, String> entry : recordedValues.entrySet()) {
+                String value = entry.getValue();
+                // Booleans are stored as such in the preferences
+                values.put(entry.getKey(), value.equals("true") || value.equals("false") ?
+                        (Object) Boolean.valueOf(value) : value);
+            }
+            CameraSettings settings = CameraSettings.parse(values);
+            if (settings == null) {
+                System.err.println("invalid or missing settings");
+                return 1;
+            }
+            return replay(reader, settings, printFrames);
+        } catch (IOException e) {
+            System.err.println("replay failed: " + e.getMessage());
+            return 1;
+        }
+    }
+
+    /**
+     * Same steps as {@code CameraService.handleCameraImage}.
+     */
+    private static int replay(FrameRecorder.Reader reader, CameraSettings settings, boolean printFrames)
+            throws IOException {
+        DetectionEngine detectionEngine = new DetectionEngine();
+        detectionEngine.configure(reader.getImageWidth(), reader.getImageHeight(), settings.cameraRotation,
+                settings.windowHeight, settings.windowOffset,
+                settings.colorBlueProjection, settings.colorRedProjection,
+                settings.colorDistanceThreshold, settings.colorLumaThreshold,
+                settings.detectionParallel);
+        detectionEngine.configureColorRegions(settings.colorRegions);
+        detectionEngine.configureTrigger(settings.triggerFillThreshold,
+                settings.triggerFillResetThreshold, settings.triggerResetTime,
+                settings.triggerInterpolation);
+        MarkerTracker markerTracker = new MarkerTracker();
+        markerTracker.configure(settings.triggerFillThreshold, settings.triggerFillResetThreshold,
+                settings.triggerResetTime);
+        if (detectionEngine.getWindowStartX() < reader.getRegionStartX() ||
+                detectionEngine.getWindowEndX() > reader.getRegionEndX() ||
+                detectionEngine.getWindowStartY() < reader.getRegionStartY() ||
+                detectionEngine.getWindowEndY() > reader.getRegionEndY()) {
+            System.err.println("detection window is outside of the recorded region");
+            return 1;
+        }
+        ParallelWindowScanner parallelWindowScanner = settings.detectionParallel ?
+                new ParallelWindowScanner(detectionEngine, Runtime.getRuntime().availableProcessors()) : null;
+        ByteBuffer yBuffer = ByteBuffer.wrap(reader.getYPlane());
+        ByteBuffer uBuffer = ByteBuffer.wrap(reader.getUPlane());
+        ByteBuffer vBuffer = ByteBuffer.wrap(reader.getVPlane());
+        int yRowStride = reader.getImageWidth(), uvRowStride = reader.getUvRowStride();
+        long frames = 0, pulses = 0, firstTime = 0, lastTime = 0, detectionNanos = 0;
+        long startNanoTime = System.nanoTime();
+        try {
+            while (reader.next()) {
+                long time = reader.getTime();
+                long frameStartNanoTime = System.nanoTime();
+                int windowFill;
+                if (parallelWindowScanner != null) {
+                    windowFill = parallelWindowScanner.measureWindowFill(yBuffer, yRowStride, 1,
+                            uBuffer, uvRowStride, 1, vBuffer, uvRowStride, 1);
+                } else {
+                    windowFill = detectionEngine.measureWindowFill(yBuffer, yRowStride, 1,
+                            uBuffer, uvRowStride, 1, vBuffer, uvRowStride, 1);
+                }
+                boolean triggered;
+                long triggerTime;
+                if (settings.triggerTracking) {
+                    triggered = markerTracker.update(time, windowFill, detectionEngine.getMarkerPosition());
+                    triggerTime = markerTracker.getTriggerTime();
+                } else {
+                    triggered = detectionEngine.updateTrigger(windowFill, time);
+                    triggerTime = detectionEngine.getTriggerTime();
+                }
+                detectionNanos += System.nanoTime() - frameStartNanoTime;
+                if (frames == 0) {
+                    firstTime = time;
+                }
+                lastTime = time;
+                frames++;
+                if (triggered) {
+                    pulses++;
+                }
+                if (printFrames) {
+                    System.out.printf(Locale.US, "%s %d%s%n", formatTime(time + reader.getWallClockOffset()),
+                            windowFill, triggered ? " triggered" : "");
+                } else if (triggered) {
+                    System.out.println(formatTime(triggerTime + reader.getWallClockOffset()));
+                }
+            }
+        } finally {
+            if (parallelWindowScanner != null) {
+                parallelWindowScanner.close();
+            }
+        }
+        System.out.flush();
+        double seconds = (System.nanoTime() - startNanoTime) / 1e9, detectionSeconds = detectionNanos / 1e9;
+        double recordedSeconds = (lastTime - firstTime) / 1e3;
+        System.err.printf(Locale.US, "%d frames (%.1f s recorded), %d pulses%n", frames, recordedSeconds, pulses);
+        System.err.printf(Locale.US, "%.0f frames/s, %.1f times real time (detection only: %.0f frames/s)%n",
+                frames / seconds, recordedSeconds / seconds, frames / detectionSeconds);
+        return 0;
+    }
+
+    private static String formatTime(long wallClockTime) {
+        return String.format(Locale.US, "%d.%03d", Math.floorDiv(wallClockTime, 1000),
+                Math.floorMod(wallClockTime, 1000));
+    }
+}